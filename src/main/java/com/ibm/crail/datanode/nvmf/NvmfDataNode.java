@@ -25,24 +25,40 @@ package com.ibm.crail.datanode.nvmf;
 import com.ibm.crail.conf.CrailConfiguration;
 import com.ibm.crail.conf.CrailConstants;
 import com.ibm.crail.datanode.DataNodeEndpoint;
+import com.ibm.crail.datanode.nvmf.client.NvmfBlockCache;
+import com.ibm.crail.datanode.nvmf.client.NvmfStagingPool;
 import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeEndpoint;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeUtils;
+import com.ibm.crail.datanode.nvmf.client.NvmfDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfSimulatedDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfSpdkDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfQos;
 import com.ibm.crail.utils.CrailUtils;
 import com.ibm.crail.datanode.DataNode;
 import com.ibm.crail.namenode.protocol.DataNodeStatistics;
 import com.ibm.disni.nvmef.NvmeEndpointGroup;
 import com.ibm.disni.nvmef.NvmeServerEndpoint;
 import com.ibm.disni.nvmef.spdk.*;
+import com.sun.net.httpserver.HttpServer;
 import org.slf4j.Logger;
 
+import javax.management.ObjectName;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class NvmfDataNode extends DataNode {
 
 	private static final Logger LOG = CrailUtils.getLogger();
 	private InetSocketAddress datanodeAddr;
-	private NvmeEndpointGroup clientGroup;
+	private final CountDownLatch closed = new CountDownLatch(1);
+	private NvmfDevice.Factory deviceFactory;
+	private NvmfDevice.Factory localFactory;
+	private NvmfBlockCache blockCache;
+	private NvmfStagingPool stagingPool;
+	private NvmfQos qos;
 
 	public InetSocketAddress getAddress() {
 		if (datanodeAddr == null) {
@@ -61,55 +77,198 @@ public class NvmfDataNode extends DataNode {
 	}
 
 	public DataNodeEndpoint createEndpoint(InetSocketAddress inetSocketAddress) throws IOException {
-		if (clientGroup == null) {
-			clientGroup = new NvmeEndpointGroup(new NvmeTransportType[]{NvmeTransportType.RDMA},
-					NvmfDataNodeConstants.HUGEDIR,
-					NvmfDataNodeConstants.SOCKETMEM);
+		if (deviceFactory == null) {
+			if (NvmfDataNodeConstants.SIMULATED_TARGET != null) {
+				deviceFactory = simulatedDeviceFactory();
+				if (NvmfDataNodeConstants.LOCAL_ACCESS) {
+					// the namespace file of the datanode, without the simulated fabric
+					localFactory = new NvmfSimulatedDevice.Factory(NvmfDataNodeConstants.SIMULATED_TARGET,
+							NvmfDataNodeConstants.SIMULATED_SIZE, NvmfDataNodeConstants.SIMULATED_SECTOR_SIZE,
+							NvmfDataNodeConstants.SIMULATED_QUEUE_SIZE, 0, 0);
+				}
+			} else {
+				NvmeTransportType[] transportTypes = NvmfDataNodeConstants.LOCAL_ACCESS ?
+						new NvmeTransportType[]{NvmeTransportType.PCIE, NvmeTransportType.RDMA} :
+						new NvmeTransportType[]{NvmeTransportType.RDMA};
+				NvmeEndpointGroup clientGroup = new NvmeEndpointGroup(transportTypes,
+						NvmfDataNodeConstants.HUGEDIR,
+						NvmfDataNodeConstants.SOCKETMEM);
+				deviceFactory = new NvmfSpdkDevice.Factory(clientGroup);
+				if (NvmfDataNodeConstants.LOCAL_ACCESS) {
+					localFactory = new NvmfSpdkDevice.PcieFactory(clientGroup, NvmfDataNodeConstants.PCIE_ADDR);
+				}
+			}
 		}
-		return new NvmfDataNodeEndpoint(clientGroup, inetSocketAddress);
+		if (blockCache == null && NvmfDataNodeConstants.CACHE_SIZE > 0) {
+			blockCache = new NvmfBlockCache(NvmfDataNodeConstants.CACHE_SIZE, NvmfDataNodeConstants.CACHE_LINE_SIZE);
+			NvmfDataNodeUtils.registerMBean(blockCache, "BlockCache", "client");
+		}
+		if (stagingPool == null) {
+			stagingPool = new NvmfStagingPool();
+			if (NvmfDataNodeConstants.STATISTICS) {
+				NvmfDataNodeUtils.registerMBean(stagingPool, "StagingPool", "client");
+			}
+		}
+		if (qos == null && (NvmfDataNodeConstants.IOPS_LIMIT > 0 || NvmfDataNodeConstants.BANDWIDTH_LIMIT > 0)) {
+			qos = new NvmfQos(NvmfDataNodeConstants.TENANT, NvmfDataNodeConstants.IOPS_LIMIT,
+					NvmfDataNodeConstants.BANDWIDTH_LIMIT * 1024 * 1024, NvmfDataNodeConstants.QOS_BURST);
+			NvmfDataNodeUtils.registerMBean(qos, "Qos", NvmfDataNodeConstants.TENANT);
+		}
+		return new NvmfDataNodeEndpoint(deviceFactory, localFactory, inetSocketAddress, blockCache, stagingPool, qos);
+	}
+
+	private static NvmfDevice.Factory simulatedDeviceFactory() {
+		return new NvmfSimulatedDevice.Factory(NvmfDataNodeConstants.SIMULATED_TARGET,
+				NvmfDataNodeConstants.SIMULATED_SIZE, NvmfDataNodeConstants.SIMULATED_SECTOR_SIZE,
+				NvmfDataNodeConstants.SIMULATED_QUEUE_SIZE, NvmfDataNodeConstants.SIMULATED_LATENCY,
+				NvmfDataNodeConstants.SIMULATED_BANDWIDTH);
 	}
 
 	public void run() throws Exception {
 		LOG.info("initalizing NVMf datanode");
 
+		if (NvmfDataNodeConstants.SIMULATED_TARGET != null) {
+			runSimulated();
+			return;
+		}
+
+		if (NvmfDataNodeConstants.PCIE_ADDR == null) {
+			throw new IOException("pcieaddr or simulatedtarget must be set to run a datanode");
+		}
+
 		NvmeEndpointGroup group = new NvmeEndpointGroup(
 				new NvmeTransportType[]{NvmeTransportType.PCIE, NvmeTransportType.RDMA}, NvmfDataNodeConstants.HUGEDIR,
 				NvmfDataNodeConstants.SOCKETMEM);
-		NvmeServerEndpoint serverEndpoint = group.createServerEndpoint();
-		URI url = new URI("nvmef://" + NvmfDataNodeConstants.IP_ADDR.getHostAddress() + ":" + NvmfDataNodeConstants.PORT +
-				"/0/1?subsystem=nqn.2016-06.io.spdk:cnode1&pci=" + NvmfDataNodeConstants.PCIE_ADDR);
-		serverEndpoint.bind(url);
-
-		NvmeController controller = serverEndpoint.getNvmecontroller();
-		NvmeNamespace namespace = controller.getNamespace(NvmfDataNodeConstants.NAMESPACE);
-		long namespaceSize = namespace.getSize();
-		long alignedSize = namespaceSize - (namespaceSize % NvmfDataNodeConstants.ALLOCATION_SIZE);
-
-		Thread server = new Thread(new NvmfDataNodeServer(serverEndpoint, getAddress()));
-		server.start();
-
-		long addr = 0;
-		while (alignedSize > 0) {
-			DataNodeStatistics statistics = this.getDataNode();
-			LOG.info("datanode statistics, freeBlocks " + statistics.getFreeBlockCount());
-
-			LOG.info("new block, length " + NvmfDataNodeConstants.ALLOCATION_SIZE);
-			LOG.debug("block stag 0, addr " + addr + ", length " + NvmfDataNodeConstants.ALLOCATION_SIZE);
-			alignedSize -= NvmfDataNodeConstants.ALLOCATION_SIZE;
-			this.setBlock(addr, (int)NvmfDataNodeConstants.ALLOCATION_SIZE, 0);
-			addr += NvmfDataNodeConstants.ALLOCATION_SIZE;
+		/* every controller is exported as its own subsystem, cnode1 to cnodeN */
+		String[] pcieAddresses = NvmfDataNodeConstants.PCIE_ADDR;
+		NvmfDataNodeServer[] servers = new NvmfDataNodeServer[pcieAddresses.length];
+		Thread[] serverThreads = new Thread[pcieAddresses.length];
+		long alignedSize = Long.MAX_VALUE;
+		for (int i = 0; i < pcieAddresses.length; i++) {
+			NvmeServerEndpoint serverEndpoint = group.createServerEndpoint();
+			URI url = new URI("nvmef://" + NvmfDataNodeConstants.IP_ADDR.getHostAddress() + ":" + NvmfDataNodeConstants.PORT +
+					"/0/1?subsystem=nqn.2016-06.io.spdk:cnode" + (i + 1) + "&pci=" + pcieAddresses[i]);
+			serverEndpoint.bind(url);
+
+			NvmeController controller = serverEndpoint.getNvmecontroller();
+			NvmeNamespace namespace = controller.getNamespace(NvmfDataNodeConstants.NAMESPACE);
+			long namespaceSize = namespace.getSize();
+			alignedSize = Math.min(alignedSize, namespaceSize - (namespaceSize % NvmfDataNodeConstants.ALLOCATION_SIZE));
+			LOG.info("exporting controller " + pcieAddresses[i] + " as " + url + ", namespace size " + namespaceSize);
+
+			servers[i] = new NvmfDataNodeServer(serverEndpoint, getAddress(), pcieAddresses[i], namespaceSize);
+			NvmfDataNodeUtils.registerMBean(servers[i], "Controller", pcieAddresses[i]);
+			serverThreads[i] = new Thread(servers[i]);
+			serverThreads[i].start();
+		}
+
+		/*
+		 * Blocks are striped across the namespaces: block i of the address space we advertise
+		 * lives on namespace i % N, consecutive allocations hit different devices. All namespaces
+		 * contribute as much as the smallest one. The stripe width travels to clients in the key
+		 * of every region: NVMf blocks have no memory key, so the namenode hands the value back
+		 * unchanged as BlockInfo.getLkey() (see NvmfDataNodeUtils.stripeWidth).
+		 */
+		int stripeWidth = pcieAddresses.length;
+		serve(servers, serverThreads, alignedSize * stripeWidth, stripeWidth);
+	}
+
+	/*
+	 * A simulated datanode has no target, clients on this host map the same file. It serves
+	 * until the process is terminated.
+	 */
+	private void runSimulated() throws Exception {
+		NvmfDevice.Factory deviceFactory = simulatedDeviceFactory();
+		int stripeWidth = NvmfDataNodeConstants.SIMULATED_NAMESPACES;
+		long alignedSize = Long.MAX_VALUE;
+		for (int i = 0; i < stripeWidth; i++) {
+			URI url = new URI("nvmef://" + NvmfDataNodeConstants.IP_ADDR.getHostAddress() + ":" +
+					NvmfDataNodeConstants.PORT + "/0/1?subsystem=nqn.2016-06.io.spdk:cnode" + (i + 1));
+			NvmfDevice device = deviceFactory.connect(url);
+			long namespaceSize = device.getNamespaceSize();
+			device.close();
+			alignedSize = Math.min(alignedSize, namespaceSize - (namespaceSize % NvmfDataNodeConstants.ALLOCATION_SIZE));
+			LOG.info("exporting simulated namespace " + NvmfDataNodeConstants.SIMULATED_TARGET +
+					(i > 0 ? "." + (i + 1) : "") + " as " + url + ", size " + namespaceSize);
+		}
+		// striped like the controllers of a real target
+		serve(new NvmfDataNodeServer[0], null, alignedSize * stripeWidth, stripeWidth);
+	}
+
+	/* registers the capacity and monitors free blocks until all servers are gone or close(), serverThreads null = none */
+	private void serve(NvmfDataNodeServer[] servers, Thread[] serverThreads, long capacity, int stripeWidth)
+			throws Exception {
+		NvmfDataNodeStatistics statistics = new NvmfDataNodeStatistics(getAddress(), servers, capacity);
+		ObjectName statisticsName = NvmfDataNodeUtils.registerMBean(statistics, "DataNode", getAddress().toString());
+		HttpServer httpServer = null;
+		if (NvmfDataNodeConstants.STATISTICS_PORT > 0) {
+			httpServer = statistics.export(NvmfDataNodeConstants.STATISTICS_PORT);
+		}
+		long registered;
+		if (NvmfDataNodeConstants.FREE_WATERMARK > 0) {
+			registered = registerBlocks(0, Math.min(registrationBatchSize(), capacity), stripeWidth);
+		} else {
+			registered = registerBlocks(0, capacity, stripeWidth);
 		}
 
-		while (server.isAlive()) {
-			DataNodeStatistics statistics = this.getDataNode();
-			LOG.info("datanode statistics, freeBlocks " + statistics.getFreeBlockCount());
-			Thread.sleep(2000);
+		statistics.setRegisteredBytes(registered);
+
+		while (serverThreads == null || isAlive(serverThreads)) {
+			DataNodeStatistics namenodeStatistics = this.getDataNode();
+			long freeBlocks = namenodeStatistics.getFreeBlockCount();
+			statistics.setFreeBlocks(freeBlocks);
+			LOG.debug("datanode statistics, freeBlocks " + freeBlocks);
+			if (registered < capacity && freeBlocks < NvmfDataNodeConstants.FREE_WATERMARK) {
+				registered = registerBlocks(registered, Math.min(registrationBatchSize(), capacity - registered),
+						stripeWidth);
+				statistics.setRegisteredBytes(registered);
+			}
+			if (closed.await(2000, TimeUnit.MILLISECONDS)) {
+				break;
+			}
 		}
 
-		server.join();
+		if (httpServer != null) {
+			httpServer.stop(0);
+		}
+		NvmfDataNodeUtils.unregisterMBean(statisticsName);
 	}
 
-	public void close() throws Exception {
+	/*
+	 * setBlock carries the length of a region as an int, so one call registers at most 2GB - 1
+	 * bytes. The namenode cuts regions into blocks, not allocation units, so a call takes as
+	 * many whole blocks as fit: two 1GB allocation units less one block. Larger batches need a
+	 * wider length in the namenode protocol.
+	 */
+	private static long registrationBatchSize() {
+		return (Integer.MAX_VALUE / CrailConstants.BLOCK_SIZE) * CrailConstants.BLOCK_SIZE;
+	}
 
+	/* advertises [addr, addr + length) to the namenode in as few calls as possible */
+	private long registerBlocks(long addr, long length, int key) throws Exception {
+		long batchSize = registrationBatchSize();
+		long end = addr + length;
+		while (addr < end) {
+			long size = Math.min(batchSize, end - addr);
+			LOG.debug("block stag " + key + ", addr " + addr + ", length " + size);
+			this.setBlock(addr, (int) size, key);
+			addr += size;
+		}
+		LOG.info("registered " + length + " bytes, " + addr + " bytes in total");
+		return addr;
+	}
+
+	private static boolean isAlive(Thread[] servers) {
+		for (Thread server : servers) {
+			if (server.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* stops monitoring, run() returns; servers of a real target keep accepting until the process exits */
+	public void close() throws Exception {
+		closed.countDown();
 	}
 }
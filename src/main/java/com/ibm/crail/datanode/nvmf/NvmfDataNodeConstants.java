@@ -44,7 +44,7 @@ public class NvmfDataNodeConstants {
 	public static int PORT = 50025;
 
 	public static final String PCIE_ADDR_KEY = "pcieaddr";
-	public static String PCIE_ADDR;
+	public static String[] PCIE_ADDR; /* one controller per namespace exported by the datanode */
 
 	public static final String NAMESPACE_KEY = "namespace";
 	public static int NAMESPACE = 1;
@@ -58,6 +58,102 @@ public class NvmfDataNodeConstants {
 	public static final String SOCKETMEM_KEY = "socketmem";
 	public static long[] SOCKETMEM = {256, 256};
 
+	public static final String QUEUE_DEPTH_KEY = "queuedepth";
+	public static int QUEUE_DEPTH = 0; /* 0 = use the I/O queue size of the controller */
+
+	public static final String QUEUE_PAIRS_KEY = "queuepairs";
+	public static int QUEUE_PAIRS = 1;
+
+	public static final String TAIL_CACHE_SIZE_KEY = "tailcachesize";
+	public static int TAIL_CACHE_SIZE = 64; /* blocks */
+
+	public static final String COALESCE_SIZE_KEY = "coalescesize";
+	public static int COALESCE_SIZE = 0; /* 0 = no write coalescing */
+
+	public static final String COALESCE_TIMEOUT_KEY = "coalescetimeout";
+	public static long COALESCE_TIMEOUT = 100; /* us */
+
+	public static final String READ_AHEAD_KEY = "readahead";
+	public static int READ_AHEAD = 0; /* max window in bytes, 0 = no read-ahead */
+
+	public static final String READ_AHEAD_MEMORY_KEY = "readaheadmemory";
+	public static long READ_AHEAD_MEMORY = 67108864; /* 64MB */
+
+	public static final String STAGING_MEMORY_KEY = "stagingmemory";
+	public static long STAGING_MEMORY = 134217728; /* 128MB */
+
+	public static final String CACHE_SIZE_KEY = "cachesize";
+	public static long CACHE_SIZE = 0; /* bytes, 0 = no client block cache */
+
+	public static final String CACHE_LINE_SIZE_KEY = "cachelinesize";
+	public static int CACHE_LINE_SIZE = 4096;
+
+	public static final String WAIT_STRATEGY_KEY = "waitstrategy";
+	public static String WAIT_STRATEGY = "spin";
+
+	public static final String SHARED_QUEUE_PAIRS_KEY = "sharedqueuepairs";
+	public static boolean SHARED_QUEUE_PAIRS = false;
+
+	public static final String FREE_WATERMARK_KEY = "freewatermark";
+	public static long FREE_WATERMARK = 0; /* blocks, 0 = register all blocks at startup */
+
+	public static final String STATISTICS_KEY = "statistics";
+	public static boolean STATISTICS = false;
+
+	public static final String STATISTICS_PORT_KEY = "statisticsport";
+	public static int STATISTICS_PORT = 0; /* 0 = no JSON statistics endpoint on the datanode */
+
+	public static final String SIMULATED_TARGET_KEY = "simulatedtarget";
+	public static String SIMULATED_TARGET = null; /* file backing a simulated namespace, null = real NVMf target */
+
+	public static final String SIMULATED_SIZE_KEY = "simulatedsize";
+	public static long SIMULATED_SIZE = 1073741824; /* 1GB */
+
+	public static final String SIMULATED_SECTOR_SIZE_KEY = "simulatedsectorsize";
+	public static int SIMULATED_SECTOR_SIZE = 512;
+
+	public static final String SIMULATED_QUEUE_SIZE_KEY = "simulatedqueuesize";
+	public static int SIMULATED_QUEUE_SIZE = 128;
+
+	public static final String SIMULATED_LATENCY_KEY = "simulatedlatency";
+	public static long SIMULATED_LATENCY = 0; /* us */
+
+	public static final String SIMULATED_BANDWIDTH_KEY = "simulatedbandwidth";
+	public static long SIMULATED_BANDWIDTH = 0; /* MB/s, 0 = unlimited */
+
+	public static final String SIMULATED_NAMESPACES_KEY = "simulatednamespaces";
+	public static int SIMULATED_NAMESPACES = 1; /* exported as cnode1 to cnodeN, like controllers in pcieaddr */
+
+	public static final String TRANSFER_SIZE_KEY = "transfersize";
+	public static int TRANSFER_SIZE = 0; /* bytes, 0 = max transfer size of the controller */
+
+	public static final String LATENCY_SHARE_KEY = "latencyshare";
+	public static int LATENCY_SHARE = 0; /* percent of the in-flight window bulk commands leave free */
+
+	public static final String LATENCY_WEIGHT_KEY = "latencyweight";
+	public static int LATENCY_WEIGHT = 4; /* latency commands submitted per bulk command */
+
+	public static final String LATENCY_SIZE_KEY = "latencysize";
+	public static int LATENCY_SIZE = 512; /* bytes, larger operations are bulk operations */
+
+	public static final String TENANT_KEY = "tenant";
+	public static String TENANT = "default";
+
+	public static final String IOPS_LIMIT_KEY = "iopslimit";
+	public static long IOPS_LIMIT = 0; /* operations per second of a client, 0 = unlimited */
+
+	public static final String BANDWIDTH_LIMIT_KEY = "bandwidthlimit";
+	public static long BANDWIDTH_LIMIT = 0; /* MB/s of a client, 0 = unlimited */
+
+	public static final String QOS_BURST_KEY = "qosburst";
+	public static long QOS_BURST = 100; /* ms worth of the limits a client can save up */
+
+	public static final String CONNECTION_RATE_KEY = "connectionrate";
+	public static long CONNECTION_RATE = 0; /* accepted connections per second and controller, 0 = unlimited */
+
+	public static final String LOCAL_ACCESS_KEY = "localaccess";
+	public static boolean LOCAL_ACCESS = false; /* clients bypass the fabric to datanodes on their host */
+
 	public static final TimeUnit TIME_UNIT = TimeUnit.MINUTES;
 	public static final long TIME_OUT = 15;
 
@@ -72,7 +168,7 @@ public class NvmfDataNodeConstants {
 	public static void updateConstants(CrailConfiguration conf) throws UnknownHostException {
 		String arg = get(conf, PCIE_ADDR_KEY);
 		if (arg != null) {
-			PCIE_ADDR = arg;
+			PCIE_ADDR = arg.trim().split("\\s*,\\s*");
 		}
 
 		arg = get(conf, NAMESPACE_KEY);
@@ -108,24 +204,317 @@ public class NvmfDataNodeConstants {
 				SOCKETMEM[i] = Long.parseLong(split[i]);
 			}
 		}
+
+		arg = get(conf, QUEUE_DEPTH_KEY);
+		if (arg != null) {
+			QUEUE_DEPTH = Integer.parseInt(arg);
+		}
+
+		arg = get(conf, QUEUE_PAIRS_KEY);
+		if (arg != null) {
+			QUEUE_PAIRS = Integer.parseInt(arg);
+		}
+
+		arg = get(conf, TAIL_CACHE_SIZE_KEY);
+		if (arg != null) {
+			TAIL_CACHE_SIZE = Integer.parseInt(arg);
+		}
+
+		arg = get(conf, COALESCE_SIZE_KEY);
+		if (arg != null) {
+			COALESCE_SIZE = Integer.parseInt(arg);
+		}
+
+		arg = get(conf, COALESCE_TIMEOUT_KEY);
+		if (arg != null) {
+			COALESCE_TIMEOUT = Long.parseLong(arg);
+		}
+
+		arg = get(conf, READ_AHEAD_KEY);
+		if (arg != null) {
+			READ_AHEAD = Integer.parseInt(arg);
+		}
+
+		arg = get(conf, READ_AHEAD_MEMORY_KEY);
+		if (arg != null) {
+			READ_AHEAD_MEMORY = Long.parseLong(arg);
+		}
+
+		arg = get(conf, STAGING_MEMORY_KEY);
+		if (arg != null) {
+			STAGING_MEMORY = Long.parseLong(arg);
+		}
+
+		arg = get(conf, CACHE_SIZE_KEY);
+		if (arg != null) {
+			CACHE_SIZE = Long.parseLong(arg);
+		}
+
+		arg = get(conf, CACHE_LINE_SIZE_KEY);
+		if (arg != null) {
+			CACHE_LINE_SIZE = Integer.parseInt(arg);
+		}
+
+		arg = get(conf, WAIT_STRATEGY_KEY);
+		if (arg != null) {
+			WAIT_STRATEGY = arg;
+		}
+
+		arg = get(conf, SHARED_QUEUE_PAIRS_KEY);
+		if (arg != null) {
+			SHARED_QUEUE_PAIRS = Boolean.parseBoolean(arg);
+		}
+
+		arg = get(conf, FREE_WATERMARK_KEY);
+		if (arg != null) {
+			FREE_WATERMARK = Long.parseLong(arg);
+		}
+
+		arg = get(conf, STATISTICS_KEY);
+		if (arg != null) {
+			STATISTICS = Boolean.parseBoolean(arg);
+		}
+
+		arg = get(conf, STATISTICS_PORT_KEY);
+		if (arg != null) {
+			STATISTICS_PORT = Integer.parseInt(arg);
+		}
+
+		arg = get(conf, SIMULATED_TARGET_KEY);
+		if (arg != null) {
+			SIMULATED_TARGET = arg.length() == 0 ? null : arg;
+		}
+
+		arg = get(conf, SIMULATED_SIZE_KEY);
+		if (arg != null) {
+			SIMULATED_SIZE = Long.parseLong(arg);
+		}
+
+		arg = get(conf, SIMULATED_SECTOR_SIZE_KEY);
+		if (arg != null) {
+			SIMULATED_SECTOR_SIZE = Integer.parseInt(arg);
+		}
+
+		arg = get(conf, SIMULATED_QUEUE_SIZE_KEY);
+		if (arg != null) {
+			SIMULATED_QUEUE_SIZE = Integer.parseInt(arg);
+		}
+
+		arg = get(conf, SIMULATED_LATENCY_KEY);
+		if (arg != null) {
+			SIMULATED_LATENCY = Long.parseLong(arg);
+		}
+
+		arg = get(conf, SIMULATED_BANDWIDTH_KEY);
+		if (arg != null) {
+			SIMULATED_BANDWIDTH = Long.parseLong(arg);
+		}
+
+		arg = get(conf, SIMULATED_NAMESPACES_KEY);
+		if (arg != null) {
+			SIMULATED_NAMESPACES = Integer.parseInt(arg);
+		}
+
+		arg = get(conf, TRANSFER_SIZE_KEY);
+		if (arg != null) {
+			TRANSFER_SIZE = Integer.parseInt(arg);
+		}
+
+		arg = get(conf, LATENCY_SHARE_KEY);
+		if (arg != null) {
+			LATENCY_SHARE = Integer.parseInt(arg);
+		}
+
+		arg = get(conf, LATENCY_WEIGHT_KEY);
+		if (arg != null) {
+			LATENCY_WEIGHT = Integer.parseInt(arg);
+		}
+
+		arg = get(conf, LATENCY_SIZE_KEY);
+		if (arg != null) {
+			LATENCY_SIZE = Integer.parseInt(arg);
+		}
+
+		arg = get(conf, TENANT_KEY);
+		if (arg != null) {
+			TENANT = arg;
+		}
+
+		arg = get(conf, IOPS_LIMIT_KEY);
+		if (arg != null) {
+			IOPS_LIMIT = Long.parseLong(arg);
+		}
+
+		arg = get(conf, BANDWIDTH_LIMIT_KEY);
+		if (arg != null) {
+			BANDWIDTH_LIMIT = Long.parseLong(arg);
+		}
+
+		arg = get(conf, QOS_BURST_KEY);
+		if (arg != null) {
+			QOS_BURST = Long.parseLong(arg);
+		}
+
+		arg = get(conf, CONNECTION_RATE_KEY);
+		if (arg != null) {
+			CONNECTION_RATE = Long.parseLong(arg);
+		}
+
+		arg = get(conf, LOCAL_ACCESS_KEY);
+		if (arg != null) {
+			LOCAL_ACCESS = Boolean.parseBoolean(arg);
+		}
 	}
 
 	public static void verify() throws IOException {
+		if (PCIE_ADDR != null){
+			for (String address : PCIE_ADDR) {
+				if (!address.matches("[0-9a-fA-F]{4}:[0-9a-fA-F]{2}:[0-9a-fA-F]{2}\\.[0-7]")) {
+					throw new IOException("pcieaddr must be a comma separated list of controllers, " +
+							"dddd:bb:dd.f, found '" + address + "'");
+				}
+			}
+		}
 		if (NAMESPACE <= 0){
 			throw new IOException("Namespace must be > 0");
 		}
 		if (ALLOCATION_SIZE % CrailConstants.BLOCK_SIZE != 0){
 			throw new IOException("allocationsize must be multiple of crail.blocksize");
 		}
+		if (QUEUE_DEPTH < 0){
+			throw new IOException("queuedepth must be >= 0");
+		}
+		if (QUEUE_PAIRS <= 0){
+			throw new IOException("queuepairs must be > 0");
+		}
+		if (TAIL_CACHE_SIZE < 0){
+			throw new IOException("tailcachesize must be >= 0");
+		}
+		if (COALESCE_SIZE < 0 || COALESCE_SIZE > CrailConstants.BLOCK_SIZE){
+			throw new IOException("coalescesize must be >= 0 and <= crail.blocksize");
+		}
+		if (COALESCE_TIMEOUT < 0){
+			throw new IOException("coalescetimeout must be >= 0");
+		}
+		if (READ_AHEAD < 0 || READ_AHEAD > CrailConstants.BLOCK_SIZE){
+			throw new IOException("readahead must be >= 0 and <= crail.blocksize");
+		}
+		if (READ_AHEAD_MEMORY < 0){
+			throw new IOException("readaheadmemory must be >= 0");
+		}
+		if (STAGING_MEMORY < 0){
+			throw new IOException("stagingmemory must be >= 0");
+		}
+		for (long memory : SOCKETMEM) {
+			if (memory < 0) {
+				throw new IOException("socketmem must be >= 0");
+			}
+		}
+		if (CACHE_SIZE < 0 || CACHE_SIZE > Integer.MAX_VALUE){
+			throw new IOException("cachesize must be >= 0 and < 2GB");
+		}
+		if (CACHE_LINE_SIZE <= 0 || CrailConstants.BLOCK_SIZE % CACHE_LINE_SIZE != 0){
+			throw new IOException("crail.blocksize must be multiple of cachelinesize");
+		}
+		if (!WAIT_STRATEGY.equalsIgnoreCase("spin") && !WAIT_STRATEGY.equalsIgnoreCase("yield") &&
+				!WAIT_STRATEGY.equalsIgnoreCase("park")){
+			throw new IOException("waitstrategy must be spin, yield or park");
+		}
+		if (FREE_WATERMARK < 0){
+			throw new IOException("freewatermark must be >= 0");
+		}
+		if (STATISTICS_PORT < 0 || STATISTICS_PORT > 65535){
+			throw new IOException("statisticsport must be >= 0 and <= 65535");
+		}
+		if (SIMULATED_SIZE <= 0){
+			throw new IOException("simulatedsize must be > 0");
+		}
+		if (SIMULATED_SECTOR_SIZE < 512 || Integer.bitCount(SIMULATED_SECTOR_SIZE) != 1){
+			throw new IOException("simulatedsectorsize must be a power of two >= 512");
+		}
+		if (SIMULATED_QUEUE_SIZE <= 0){
+			throw new IOException("simulatedqueuesize must be > 0");
+		}
+		if (SIMULATED_LATENCY < 0){
+			throw new IOException("simulatedlatency must be >= 0");
+		}
+		if (SIMULATED_BANDWIDTH < 0){
+			throw new IOException("simulatedbandwidth must be >= 0");
+		}
+		if (SIMULATED_NAMESPACES <= 0){
+			throw new IOException("simulatednamespaces must be > 0");
+		}
+		if (TRANSFER_SIZE < 0){
+			throw new IOException("transfersize must be >= 0");
+		}
+		if (LATENCY_SHARE < 0 || LATENCY_SHARE >= 100){
+			throw new IOException("latencyshare must be >= 0 and < 100");
+		}
+		if (LATENCY_WEIGHT < 1){
+			throw new IOException("latencyweight must be >= 1");
+		}
+		if (LATENCY_SIZE < 0){
+			throw new IOException("latencysize must be >= 0");
+		}
+		if (TENANT.length() == 0){
+			throw new IOException("tenant must not be empty");
+		}
+		if (IOPS_LIMIT < 0){
+			throw new IOException("iopslimit must be >= 0");
+		}
+		if (BANDWIDTH_LIMIT < 0){
+			throw new IOException("bandwidthlimit must be >= 0");
+		}
+		if (QOS_BURST <= 0){
+			throw new IOException("qosburst must be > 0");
+		}
+		if (CONNECTION_RATE < 0){
+			throw new IOException("connectionrate must be >= 0");
+		}
+		if (LOCAL_ACCESS && PCIE_ADDR == null && SIMULATED_TARGET == null){
+			throw new IOException("localaccess requires pcieaddr or simulatedtarget");
+		}
 	}
 
 	public static void printConf(Logger logger) {
 		logger.info(fullKey(IP_ADDR_KEY) + " " + IP_ADDR.getHostAddress());
 		logger.info(fullKey(PORT_KEY) + " " + PORT);
-		logger.info(fullKey(PCIE_ADDR_KEY) + " " + PCIE_ADDR);
+		logger.info(fullKey(PCIE_ADDR_KEY) + " " + Arrays.toString(PCIE_ADDR));
 		logger.info(fullKey(NAMESPACE_KEY) + " " + NAMESPACE);
 		logger.info(fullKey(ALLOCATION_SIZE_KEY) + " " + ALLOCATION_SIZE);
 		logger.info(fullKey(HUGEDIR_KEY) + " " + HUGEDIR);
 		logger.info(fullKey(SOCKETMEM_KEY) + " " + Arrays.toString(SOCKETMEM));
+		logger.info(fullKey(QUEUE_DEPTH_KEY) + " " + QUEUE_DEPTH);
+		logger.info(fullKey(QUEUE_PAIRS_KEY) + " " + QUEUE_PAIRS);
+		logger.info(fullKey(TAIL_CACHE_SIZE_KEY) + " " + TAIL_CACHE_SIZE);
+		logger.info(fullKey(COALESCE_SIZE_KEY) + " " + COALESCE_SIZE);
+		logger.info(fullKey(COALESCE_TIMEOUT_KEY) + " " + COALESCE_TIMEOUT);
+		logger.info(fullKey(READ_AHEAD_KEY) + " " + READ_AHEAD);
+		logger.info(fullKey(READ_AHEAD_MEMORY_KEY) + " " + READ_AHEAD_MEMORY);
+		logger.info(fullKey(STAGING_MEMORY_KEY) + " " + STAGING_MEMORY);
+		logger.info(fullKey(CACHE_SIZE_KEY) + " " + CACHE_SIZE);
+		logger.info(fullKey(CACHE_LINE_SIZE_KEY) + " " + CACHE_LINE_SIZE);
+		logger.info(fullKey(WAIT_STRATEGY_KEY) + " " + WAIT_STRATEGY);
+		logger.info(fullKey(SHARED_QUEUE_PAIRS_KEY) + " " + SHARED_QUEUE_PAIRS);
+		logger.info(fullKey(FREE_WATERMARK_KEY) + " " + FREE_WATERMARK);
+		logger.info(fullKey(STATISTICS_KEY) + " " + STATISTICS);
+		logger.info(fullKey(STATISTICS_PORT_KEY) + " " + STATISTICS_PORT);
+		logger.info(fullKey(SIMULATED_TARGET_KEY) + " " + SIMULATED_TARGET);
+		logger.info(fullKey(SIMULATED_SIZE_KEY) + " " + SIMULATED_SIZE);
+		logger.info(fullKey(SIMULATED_SECTOR_SIZE_KEY) + " " + SIMULATED_SECTOR_SIZE);
+		logger.info(fullKey(SIMULATED_QUEUE_SIZE_KEY) + " " + SIMULATED_QUEUE_SIZE);
+		logger.info(fullKey(SIMULATED_LATENCY_KEY) + " " + SIMULATED_LATENCY);
+		logger.info(fullKey(SIMULATED_BANDWIDTH_KEY) + " " + SIMULATED_BANDWIDTH);
+		logger.info(fullKey(SIMULATED_NAMESPACES_KEY) + " " + SIMULATED_NAMESPACES);
+		logger.info(fullKey(TRANSFER_SIZE_KEY) + " " + TRANSFER_SIZE);
+		logger.info(fullKey(LATENCY_SHARE_KEY) + " " + LATENCY_SHARE);
+		logger.info(fullKey(LATENCY_WEIGHT_KEY) + " " + LATENCY_WEIGHT);
+		logger.info(fullKey(LATENCY_SIZE_KEY) + " " + LATENCY_SIZE);
+		logger.info(fullKey(TENANT_KEY) + " " + TENANT);
+		logger.info(fullKey(IOPS_LIMIT_KEY) + " " + IOPS_LIMIT);
+		logger.info(fullKey(BANDWIDTH_LIMIT_KEY) + " " + BANDWIDTH_LIMIT);
+		logger.info(fullKey(QOS_BURST_KEY) + " " + QOS_BURST);
+		logger.info(fullKey(CONNECTION_RATE_KEY) + " " + CONNECTION_RATE);
+		logger.info(fullKey(LOCAL_ACCESS_KEY) + " " + LOCAL_ACCESS);
 	}
 }
@@ -22,47 +22,107 @@
 
 package com.ibm.crail.datanode.nvmf;
 
+import com.ibm.crail.datanode.nvmf.client.NvmfTokenBucket;
 import com.ibm.crail.utils.CrailUtils;
 import com.ibm.disni.nvmef.NvmeEndpoint;
 import com.ibm.disni.nvmef.NvmeServerEndpoint;
 import org.slf4j.Logger;
 
 import java.net.InetSocketAddress;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
-public class NvmfDataNodeServer implements Runnable {
+/*
+ * Accepts the connections to one exported controller. The I/O of accepted connections is
+ * served by the SPDK target without involving Java, the server therefore only sees connection
+ * setup; the target does not tell it when a client disconnects, so there are no statistics of
+ * active or closed connections, and no limit on them either. What the datanode can do to
+ * protect itself from clients is to accept new connections at no more than connectionrate
+ * per second.
+ */
+public class NvmfDataNodeServer implements Runnable, NvmfDataNodeServerMXBean {
 	private static final Logger LOG = CrailUtils.getLogger();
 
 	private final NvmeServerEndpoint serverEndpoint;
 	private final InetSocketAddress datanodeAddr;
-	private final Set<NvmeEndpoint> allEndpoints;
+	private final String controller;
+	private final long namespaceSize;
+	private final AtomicLong acceptedConnections;
+	private final AtomicLong acceptFailures;
+	private final AtomicLong throttledAccepts;
+	/* null if not limited */
+	private final NvmfTokenBucket acceptRate;
+	private volatile long lastAcceptTime;
 
-	public NvmfDataNodeServer(NvmeServerEndpoint serverEndpoint, InetSocketAddress datanodeAddr) {
+	public NvmfDataNodeServer(NvmeServerEndpoint serverEndpoint, InetSocketAddress datanodeAddr, String controller,
+							  long namespaceSize) {
 		this.serverEndpoint = serverEndpoint;
 		this.datanodeAddr = datanodeAddr;
-		this.allEndpoints = ConcurrentHashMap.newKeySet();
-	}
-
-	public void close(NvmeEndpoint ep) {
-		try {
-			allEndpoints.remove(ep);
-			LOG.info("removing endpoint, connCount " + allEndpoints.size());
-		} catch (Exception e){
-			LOG.info("error closing " + e.getMessage());
-		}
+		this.controller = controller;
+		this.namespaceSize = namespaceSize;
+		this.acceptedConnections = new AtomicLong(0);
+		this.acceptFailures = new AtomicLong(0);
+		this.throttledAccepts = new AtomicLong(0);
+		long connectionRate = NvmfDataNodeConstants.CONNECTION_RATE;
+		this.acceptRate = connectionRate > 0 ? new NvmfTokenBucket(connectionRate,
+				Math.max(connectionRate * NvmfDataNodeConstants.QOS_BURST / 1000, 1)) : null;
+		this.lastAcceptTime = 0;
 	}
 
 	public void run() {
 		try {
-			LOG.info("RdmaDataNodeServer started at " + datanodeAddr);
+			LOG.info("NvmfDataNodeServer started at " + datanodeAddr + " for controller " + controller);
 			while(true){
+				throttleAccept();
 				NvmeEndpoint clientEndpoint = serverEndpoint.accept();
-				allEndpoints.add(clientEndpoint);
-				LOG.info("accepting client connection, conncount " + allEndpoints.size());
+				if (clientEndpoint == null) {
+					acceptFailures.incrementAndGet();
+					continue;
+				}
+				lastAcceptTime = System.currentTimeMillis();
+				// the target serves the connection from now on, nothing to keep for it
+				long accepted = acceptedConnections.incrementAndGet();
+				LOG.info("accepting client connection, accepted " + accepted);
 			}
 		} catch(Exception e){
+			acceptFailures.incrementAndGet();
 			e.printStackTrace();
 		}
 	}
+
+	/* connections arriving meanwhile wait in the target until they are accepted */
+	private void throttleAccept() {
+		if (acceptRate == null) {
+			return;
+		}
+		long waitNanos = acceptRate.take(1);
+		if (waitNanos > 0) {
+			throttledAccepts.incrementAndGet();
+			LockSupport.parkNanos(this, waitNanos);
+		}
+	}
+
+	public String getController() {
+		return controller;
+	}
+
+	public long getNamespaceSize() {
+		return namespaceSize;
+	}
+
+	public long getAcceptedConnections() {
+		return acceptedConnections.get();
+	}
+
+	public long getAcceptFailures() {
+		return acceptFailures.get();
+	}
+
+	public long getThrottledAccepts() {
+		return throttledAccepts.get();
+	}
+
+	public long getLastAcceptTime() {
+		return lastAcceptTime;
+	}
 }
@@ -0,0 +1,38 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf;
+
+/* JMX view of one exported controller and the connections accepted for it */
+public interface NvmfDataNodeServerMXBean {
+
+	String getController();
+
+	long getNamespaceSize();
+
+	long getAcceptedConnections();
+
+	long getAcceptFailures();
+
+	/* accepts delayed by connectionrate */
+	long getThrottledAccepts();
+
+	/* milliseconds since the epoch, 0 if no connection was accepted yet */
+	long getLastAcceptTime();
+}
@@ -0,0 +1,140 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf;
+
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.utils.CrailUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Capacity and connection statistics of a datanode. Published as MXBeans and, if
+ * crail.datanode.nvmf.statisticsport is set, as JSON at http://<bindip>:<port>/statistics.
+ * Free blocks are as last reported by the namenode to the monitor loop of the datanode.
+ */
+public class NvmfDataNodeStatistics implements NvmfDataNodeStatisticsMXBean {
+	private static final Logger LOG = CrailUtils.getLogger();
+
+	private final InetSocketAddress address;
+	private final NvmfDataNodeServer[] servers;
+	private final long capacity;
+	private volatile long registeredBytes;
+	private volatile long freeBlocks;
+
+	NvmfDataNodeStatistics(InetSocketAddress address, NvmfDataNodeServer[] servers, long capacity) {
+		this.address = address;
+		this.servers = servers;
+		this.capacity = capacity;
+		this.registeredBytes = 0;
+		this.freeBlocks = 0;
+	}
+
+	void setRegisteredBytes(long registeredBytes) {
+		this.registeredBytes = registeredBytes;
+	}
+
+	void setFreeBlocks(long freeBlocks) {
+		this.freeBlocks = freeBlocks;
+	}
+
+	public String getAddress() {
+		return address.toString();
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public long getRegisteredBytes() {
+		return registeredBytes;
+	}
+
+	public long getFreeBlocks() {
+		return freeBlocks;
+	}
+
+	public long getAllocatedBlocks() {
+		return Math.max(registeredBytes / CrailConstants.BLOCK_SIZE - freeBlocks, 0);
+	}
+
+	public long getAcceptedConnections() {
+		long connections = 0;
+		for (NvmfDataNodeServer server : servers) {
+			connections += server.getAcceptedConnections();
+		}
+		return connections;
+	}
+
+	String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"address\":\"").append(address.getAddress().getHostAddress()).append(':')
+				.append(address.getPort()).append('"');
+		json.append(",\"capacity\":").append(capacity);
+		json.append(",\"registeredBytes\":").append(registeredBytes);
+		json.append(",\"blockSize\":").append(CrailConstants.BLOCK_SIZE);
+		json.append(",\"freeBlocks\":").append(freeBlocks);
+		json.append(",\"allocatedBlocks\":").append(getAllocatedBlocks());
+		json.append(",\"acceptedConnections\":").append(getAcceptedConnections());
+		json.append(",\"controllers\":[");
+		for (int i = 0; i < servers.length; i++) {
+			NvmfDataNodeServer server = servers[i];
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"controller\":\"").append(server.getController()).append('"');
+			json.append(",\"namespaceSize\":").append(server.getNamespaceSize());
+			json.append(",\"acceptedConnections\":").append(server.getAcceptedConnections());
+			json.append(",\"acceptFailures\":").append(server.getAcceptFailures());
+			json.append(",\"throttledAccepts\":").append(server.getThrottledAccepts());
+			json.append(",\"lastAcceptTime\":").append(server.getLastAcceptTime());
+			json.append('}');
+		}
+		json.append("]}");
+		return json.toString();
+	}
+
+	/* serves the statistics as JSON until the datanode exits */
+	HttpServer export(int port) throws IOException {
+		HttpServer httpServer = HttpServer.create(new InetSocketAddress(address.getAddress(), port), 0);
+		httpServer.createContext("/statistics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = toJson().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+		});
+		httpServer.start();
+		LOG.info("datanode statistics at http://" + address.getAddress().getHostAddress() + ":" + port + "/statistics");
+		return httpServer;
+	}
+}
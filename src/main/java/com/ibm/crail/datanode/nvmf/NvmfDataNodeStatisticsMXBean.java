@@ -0,0 +1,36 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf;
+
+/* JMX view of the capacity of a datanode and the connections to all of its controllers */
+public interface NvmfDataNodeStatisticsMXBean {
+
+	String getAddress();
+
+	long getCapacity();
+
+	long getRegisteredBytes();
+
+	long getFreeBlocks();
+
+	long getAllocatedBlocks();
+
+	long getAcceptedConnections();
+}
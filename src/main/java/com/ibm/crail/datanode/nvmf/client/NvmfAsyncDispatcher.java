@@ -0,0 +1,96 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.utils.CrailUtils;
+import org.slf4j.Logger;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Completes the futures of asynchronous operations of an endpoint on a thread of its own,
+ * so their dependent stages never run inside the completion processing of a queue pair.
+ * A stage that blocks only delays the callbacks queued behind it. The thread is started
+ * with the first callback.
+ */
+class NvmfAsyncDispatcher implements Runnable {
+	private static final Logger LOG = CrailUtils.getLogger();
+
+	private final String name;
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+	private Thread thread;
+	private volatile boolean running;
+	private volatile boolean idle;
+
+	NvmfAsyncDispatcher(String name) {
+		this.name = name;
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.running = true;
+	}
+
+	void execute(Runnable task) {
+		tasks.add(task);
+		Thread thread = start();
+		if (idle) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	private synchronized Thread start() {
+		if (thread == null && running) {
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return thread;
+	}
+
+	void close() throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			running = false;
+			thread = this.thread;
+		}
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			thread.join();
+		}
+	}
+
+	public void run() {
+		while (running) {
+			Runnable task = tasks.poll();
+			if (task != null) {
+				try {
+					task.run();
+				} catch (Throwable e) {
+					LOG.info("asynchronous completion failed " + e.getMessage());
+				}
+				continue;
+			}
+			idle = true;
+			if (tasks.isEmpty() && running) {
+				LockSupport.park(this);
+			}
+			idle = false;
+		}
+	}
+}
@@ -0,0 +1,318 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.Future;
+
+/*
+ * Off-heap read cache shared by all endpoints of a client. The cache is organized in lines
+ * of a fixed, sector aligned size keyed by datanode address and namespace address. Lines are
+ * evicted with CLOCK, new lines start without reference bit so a single scan cannot push out
+ * lines that are hit repeatedly. Reads covering many lines bypass the cache altogether.
+ *
+ * Writes issued through any endpoint of this client invalidate overlapping lines, writes of
+ * other clients are not seen. Lines are invalidated before a write is submitted and again
+ * once the write is seen to complete, which drops lines filled while it was in flight. As
+ * for any reader, data read while a write to the same range is still in flight is undefined.
+ *
+ * Missing lines are claimed under the lock of the cache and filled after releasing it, as
+ * submitting the fill may wait for the queue pair or the I/O limits. Readers of a line that
+ * is still being submitted wait for its fill.
+ */
+public class NvmfBlockCache implements NvmfBlockCacheMXBean {
+
+	static class Key {
+		private final InetSocketAddress address;
+		private final long line;
+
+		Key(InetSocketAddress address, long line) {
+			this.address = address;
+			this.line = line;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			return line == key.line && address.equals(key.address);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * address.hashCode() + (int) (line ^ (line >>> 32));
+		}
+	}
+
+	static class Line {
+		private final ByteBuffer buffer;
+		private Key key;
+		private boolean referenced;
+		private volatile Future<DataResult> fill;
+		private volatile boolean filling;
+		private volatile boolean failed;
+		private Line[] filler;
+		private int pins;
+
+		Line(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		ByteBuffer getBuffer() {
+			return buffer;
+		}
+
+		Future<DataResult> getFill() {
+			return fill;
+		}
+
+		/* the fill has not been submitted yet */
+		boolean isFilling() {
+			return filling;
+		}
+
+		/* submitting the fill failed, the line holds no data */
+		boolean isFailed() {
+			return failed;
+		}
+	}
+
+	private final int lineSize;
+	private final Line[] lines;
+	private final HashMap<Key, Line> index;
+	private final int maxLinesPerRead;
+	private int hand;
+	private long hits;
+	private long misses;
+	private long bypasses;
+	private long evictions;
+	private long invalidations;
+
+	public NvmfBlockCache(long capacity, int lineSize) {
+		this.lineSize = lineSize;
+		int lineCount = (int) (capacity / lineSize);
+		ByteBuffer memory = ByteBuffer.allocateDirect(lineCount * lineSize);
+		this.lines = new Line[lineCount];
+		for (int i = 0; i < lineCount; i++) {
+			lines[i] = new Line(NvmfDataNodeUtils.slice(memory, i * lineSize, lineSize));
+		}
+		this.index = new HashMap<Key, Line>(lineCount * 2);
+		this.maxLinesPerRead = Math.max(lineCount / 16, 1);
+		this.hand = 0;
+	}
+
+	public int getLineSize() {
+		return lineSize;
+	}
+
+	public long getCapacity() {
+		return (long) lines.length * lineSize;
+	}
+
+	/*
+	 * Returns a future serving the read from cache lines, missing lines are read from the
+	 * datanode first. Returns null if the read bypasses the cache.
+	 */
+	Future<DataResult> read(NvmfDataNodeEndpoint endpoint, ByteBuffer buffer, BlockInfo block, long remoteOffset)
+			throws IOException {
+		long address = block.getAddr() + remoteOffset;
+		long firstLine = address / lineSize;
+		Line[] readLines = claim(endpoint, buffer, block, remoteOffset);
+		if (readLines == null) {
+			return null;
+		}
+		for (int i = 0; i < readLines.length; i++) {
+			Line line = readLines[i];
+			if (line.filler != readLines) {
+				// hit, or claimed by a concurrent read that fills it
+				continue;
+			}
+			long lineOffset = (firstLine + i) * lineSize - block.getAddr();
+			try {
+				line.fill = endpoint.submitInternalRead(line.buffer.duplicate(), block, lineOffset);
+				line.filling = false;
+				line.filler = null;
+			} catch (IOException e) {
+				failed(readLines, i);
+				throw e;
+			}
+		}
+		return new NvmfDataCachedFuture(this, readLines, (int) (address - firstLine * lineSize), buffer);
+	}
+
+	/*
+	 * Pins the lines of a read. Missing lines are claimed and marked as filling, the caller
+	 * submits their fills. Returns null if the read bypasses the cache.
+	 */
+	private synchronized Line[] claim(NvmfDataNodeEndpoint endpoint, ByteBuffer buffer, BlockInfo block,
+									  long remoteOffset) {
+		long address = block.getAddr() + remoteOffset;
+		long firstLine = address / lineSize;
+		long lastLine = (address + buffer.remaining() - 1) / lineSize;
+		int lineCount = (int) (lastLine - firstLine + 1);
+		if (lineCount > maxLinesPerRead) {
+			bypasses++;
+			return null;
+		}
+
+		Line[] readLines = new Line[lineCount];
+		boolean hit = true;
+		for (int i = 0; i < lineCount; i++) {
+			Key key = new Key(endpoint.getAddress(), firstLine + i);
+			Line line = index.get(key);
+			if (line != null) {
+				line.referenced = true;
+			} else {
+				hit = false;
+				line = evict();
+				if (line == null) {
+					// everything pinned, give up on caching this read
+					release(readLines);
+					bypasses++;
+					return null;
+				}
+				line.failed = false;
+				line.filling = true;
+				line.filler = readLines;
+				line.key = key;
+				index.put(key, line);
+			}
+			line.pins++;
+			readLines[i] = line;
+		}
+		if (hit) {
+			hits++;
+		} else {
+			misses++;
+		}
+		return readLines;
+	}
+
+	/* the fill of readLines[failed] could not be submitted, neither can the ones claimed after it */
+	private synchronized void failed(Line[] readLines, int failed) {
+		for (int i = failed; i < readLines.length; i++) {
+			Line line = readLines[i];
+			if (line.filler == readLines) {
+				line.failed = true;
+			}
+		}
+		release(readLines);
+	}
+
+	/* unpins the lines of a read and drops the ones it claimed but did not fill */
+	private void release(Line[] readLines) {
+		for (Line line : readLines) {
+			if (line != null && line.filler == readLines) {
+				invalidate(line);
+				line.filler = null;
+				line.filling = false;
+			}
+		}
+		unpin(readLines);
+	}
+
+
+	/* drops lines of address overlapping [namespaceOffset, namespaceOffset + length) */
+	synchronized void invalidate(InetSocketAddress address, long namespaceOffset, long length) {
+		if (index.isEmpty()) {
+			return;
+		}
+		long firstLine = namespaceOffset / lineSize;
+		long lastLine = (namespaceOffset + length - 1) / lineSize;
+		for (long i = firstLine; i <= lastLine; i++) {
+			Line line = index.remove(new Key(address, i));
+			if (line != null) {
+				line.key = null;
+				line.referenced = false;
+				invalidations++;
+			}
+		}
+	}
+
+	/* a line whose fill failed must not be served to anybody else */
+	synchronized void invalidate(Line line) {
+		if (line.key != null) {
+			index.remove(line.key);
+			line.key = null;
+			line.referenced = false;
+		}
+	}
+
+	synchronized void unpin(Line[] readLines) {
+		for (Line line : readLines) {
+			if (line != null) {
+				line.pins--;
+			}
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getBypasses() {
+		return bypasses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	private Line evict() {
+		for (int i = 0; i < 2 * lines.length; i++) {
+			Line line = lines[hand];
+			hand = (hand + 1) % lines.length;
+			if (line.pins > 0 || line.filling || (line.fill != null && !NvmfDataNodeUtils.isCompleted(line.fill))) {
+				continue;
+			}
+			if (line.referenced) {
+				line.referenced = false;
+				continue;
+			}
+			if (line.key != null) {
+				index.remove(line.key);
+				line.key = null;
+				evictions++;
+			}
+			if (line.fill instanceof NvmfDataFuture) {
+				((NvmfDataFuture) line.fill).recycle();
+			}
+			line.fill = null;
+			return line;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+/* JMX view of the read cache of a client */
+public interface NvmfBlockCacheMXBean {
+
+	int getLineSize();
+
+	/* bytes */
+	long getCapacity();
+
+	/* reads served from cached lines only */
+	long getHits();
+
+	/* reads that had to fill at least one line */
+	long getMisses();
+
+	/* reads that went to the datanode without touching the cache */
+	long getBypasses();
+
+	long getEvictions();
+
+	/* lines dropped by writes of this client */
+	long getInvalidations();
+}
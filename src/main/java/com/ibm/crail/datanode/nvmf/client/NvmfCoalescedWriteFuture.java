@@ -0,0 +1,152 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Future of a single write gathered by NvmfWriteCoalescer. Waiting on it flushes the
+ * staged range if that did not happen yet, it completes once the combined write is done.
+ * A write whose data got split at a sector boundary waits for the write of both ranges.
+ * A failed flush or write completes it exceptionally, get() then rethrows the failure.
+ */
+public class NvmfCoalescedWriteFuture implements Future<DataResult>, DataResult {
+	private final NvmfWriteCoalescer coalescer;
+	private final long endOffset;
+	private final int len;
+	/* the range the data ends in, and the range it starts in if that is another one */
+	private volatile NvmfWriteCoalescer.Group group;
+	private volatile NvmfWriteCoalescer.Group headGroup;
+	private boolean done;
+	private Throwable exception;
+
+	NvmfCoalescedWriteFuture(NvmfWriteCoalescer coalescer, NvmfWriteCoalescer.Group group, long endOffset, int len) {
+		this.coalescer = coalescer;
+		this.group = group;
+		this.endOffset = endOffset;
+		this.len = len;
+	}
+
+	/* called by the coalescer when the end of the data moves to the next range */
+	void carry(NvmfWriteCoalescer.Group group, NvmfWriteCoalescer.Group headGroup) {
+		if (headGroup != null) {
+			this.headGroup = headGroup;
+		}
+		this.group = group;
+	}
+
+	NvmfWriteCoalescer.Group getGroup() {
+		return group;
+	}
+
+	long getEndOffset() {
+		return endOffset;
+	}
+
+	public int getLen() {
+		return len;
+	}
+
+	public boolean cancel(boolean b) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public boolean isDone() {
+		if (!done && exception == null && isWritten(headGroup) && isWritten(group)) {
+			try {
+				get(0, TimeUnit.NANOSECONDS);
+			} catch (Exception e) {
+				// recorded and reported by get()
+			}
+		}
+		return done || exception != null;
+	}
+
+	private static boolean isWritten(NvmfWriteCoalescer.Group group) {
+		if (group == null || group.getException() != null) {
+			return true;
+		}
+		Future<DataResult> writeFuture = group.getWriteFuture();
+		return writeFuture != null && writeFuture.isDone();
+	}
+
+	public DataResult get() throws InterruptedException, ExecutionException {
+		try {
+			return get(NvmfDataNodeConstants.TIME_OUT, NvmfDataNodeConstants.TIME_UNIT);
+		} catch (TimeoutException e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	public DataResult get(long timeout, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		if (!done) {
+			try {
+				coalescer.flush(this);
+			} catch (IOException e) {
+				exception = e;
+				throw new ExecutionException(e);
+			}
+			if (headGroup != null) {
+				await(headGroup, timeout, timeUnit);
+			}
+			await(group, timeout, timeUnit);
+			done = true;
+		}
+		return this;
+	}
+
+	private void await(NvmfWriteCoalescer.Group group, long timeout, TimeUnit timeUnit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		if (group.getException() != null) {
+			exception = group.getException();
+			throw new ExecutionException(exception);
+		}
+		try {
+			group.getWriteFuture().get(timeout, timeUnit);
+		} catch (ExecutionException e) {
+			exception = e.getCause() != null ? e.getCause() : e;
+			release(group);
+			throw e;
+		}
+		release(group);
+	}
+
+	private static void release(NvmfWriteCoalescer.Group group) throws ExecutionException {
+		try {
+			group.release();
+		} catch (IOException e) {
+			throw new ExecutionException(e);
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+/* status of one submitted command, done() turns true once its completion was processed */
+public interface NvmfCompletion {
+
+	boolean done();
+
+	boolean isSuccess();
+
+	/* status of a failed command for error messages */
+	String getStatus();
+
+	/* the future of the command was recycled, the completion may be reused for another command */
+	void release();
+}
@@ -0,0 +1,113 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.utils.CrailUtils;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Polls the queue pairs of an endpoint on behalf of parked waiters and wakes them up
+ * when completions arrive, and drives asynchronous operations of the endpoint.
+ * Sleeps while nobody is waiting, and backs off while polls come back empty.
+ */
+class NvmfCompletionReaper implements Runnable {
+	private static final Logger LOG = CrailUtils.getLogger();
+
+	private static final int SPINS = 64;
+	/* bounds the delay a completion can see before its waiters are woken up */
+	private static final long MAX_PARK_NS = 50000;
+
+	private final NvmfDataNodeEndpoint endpoint;
+	private final Thread thread;
+	/* queue pairs whose last poll failed, only logged when they start or stop failing */
+	private final Set<NvmfQueuePair> failing;
+	private volatile boolean running;
+
+	NvmfCompletionReaper(NvmfDataNodeEndpoint endpoint, String name) {
+		this.endpoint = endpoint;
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.failing = Collections.newSetFromMap(new IdentityHashMap<NvmfQueuePair, Boolean>());
+		this.running = true;
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	void signal() {
+		LockSupport.unpark(thread);
+	}
+
+	void close() throws InterruptedException {
+		running = false;
+		signal();
+		thread.join();
+	}
+
+	public void run() {
+		int idle = 0;
+		long parkNanos = 1;
+		while (running) {
+			boolean asyncOps = endpoint.hasAsyncOps();
+			boolean waiting = false;
+			int progress = 0;
+			// queue pairs of further namespaces may be connected while we run
+			for (NvmfQueuePair queuePair : endpoint.getQueuePairs()) {
+				if (!asyncOps && !queuePair.hasWaiters()) {
+					continue;
+				}
+				waiting = true;
+				try {
+					// waiters are woken up by poll
+					progress += queuePair.poll();
+					if (!failing.isEmpty() && failing.remove(queuePair)) {
+						LOG.info("completion reaper poll recovered");
+					}
+				} catch (IOException e) {
+					if (failing.add(queuePair)) {
+						LOG.info("completion reaper poll failed " + e.getMessage());
+					} else {
+						LOG.debug("completion reaper poll failed " + e.getMessage());
+					}
+					queuePair.wakeWaiters();
+				}
+			}
+			if (!waiting) {
+				idle = 0;
+				parkNanos = 1;
+				LockSupport.park(this);
+			} else if (progress > 0) {
+				idle = 0;
+				parkNanos = 1;
+			} else if (++idle > SPINS) {
+				// commands in flight take a while, back off until new waiters signal us
+				LockSupport.parkNanos(this, parkNanos);
+				parkNanos = Math.min(parkNanos << 1, MAX_PARK_NS);
+			}
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/*
+ * Aggregate future of a batch, done when all entries are done. The length is
+ * the sum of all entries, per entry results are available through getResults().
+ * Batches of the endpoint are pooled and reused once released.
+ */
+public class NvmfDataBatchFuture implements Future<DataResult>, DataResult {
+	private static final AtomicIntegerFieldUpdater<NvmfDataBatchFuture> POOLED =
+			AtomicIntegerFieldUpdater.newUpdater(NvmfDataBatchFuture.class, "pooled");
+
+	/* the endpoint pooling the batch, null for batches built by the user */
+	private final NvmfDataNodeEndpoint endpoint;
+	private final List<Future<DataResult>> results;
+	private int len;
+	private boolean done;
+	private volatile int pooled;
+
+	public NvmfDataBatchFuture(List<Future<DataResult>> results) {
+		this.endpoint = null;
+		this.results = results;
+		int len = 0;
+		for (int i = 0; i < results.size(); i++) {
+			len += ((DataResult) results.get(i)).getLen();
+		}
+		this.len = len;
+	}
+
+	/* empty batch for the pool of the endpoint */
+	NvmfDataBatchFuture(NvmfDataNodeEndpoint endpoint) {
+		this.endpoint = endpoint;
+		this.results = new ArrayList<Future<DataResult>>();
+	}
+
+	void add(Future<DataResult> result) {
+		results.add(result);
+		len += ((DataResult) result).getLen();
+	}
+
+	/* reuse of a recycled batch */
+	void reset() {
+		pooled = 0;
+	}
+
+	/*
+	 * Releases the results through the given endpoint, and hands the batch back to its pool.
+	 * Only the first release counts.
+	 */
+	void recycle(NvmfDataNodeEndpoint releaser) {
+		if (POOLED.compareAndSet(this, 0, 1)) {
+			for (int i = 0; i < results.size(); i++) {
+				releaser.release(results.get(i));
+			}
+			if (endpoint != null) {
+				results.clear();
+				len = 0;
+				done = false;
+				endpoint.recycle(this);
+			}
+		}
+	}
+
+	public List<Future<DataResult>> getResults() {
+		checkReleased();
+		return results;
+	}
+
+	public int getLen() {
+		return len;
+	}
+
+	public boolean cancel(boolean b) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public boolean isDone() {
+		checkReleased();
+		if (!done) {
+			for (int i = 0; i < results.size(); i++) {
+				if (!results.get(i).isDone()) {
+					return false;
+				}
+			}
+			done = true;
+		}
+		return done;
+	}
+
+	public DataResult get() throws InterruptedException, ExecutionException {
+		try {
+			return get(NvmfDataNodeConstants.TIME_OUT, NvmfDataNodeConstants.TIME_UNIT);
+		} catch (TimeoutException e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	public DataResult get(long timeout, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+		checkReleased();
+		if (!done) {
+			long end = System.nanoTime() + TimeUnit.NANOSECONDS.convert(timeout, timeUnit);
+			for (int i = 0; i < results.size(); i++) {
+				long remaining = Math.max(end - System.nanoTime(), 0);
+				results.get(i).get(remaining, TimeUnit.NANOSECONDS);
+			}
+			done = true;
+		}
+		return this;
+	}
+
+	private void checkReleased() {
+		if (pooled != 0) {
+			throw new IllegalStateException("future used after it was released");
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Read served from pinned lines of the block cache. Waits for lines still being filled,
+ * copies the data and unpins the lines. A line whose fill is still being submitted by
+ * another reader is waited for as well.
+ */
+public class NvmfDataCachedFuture implements Future<DataResult>, DataResult {
+	private final NvmfBlockCache cache;
+	private final NvmfBlockCache.Line[] lines;
+	private final int lineOffset;
+	private final ByteBuffer buffer;
+	private final int len;
+	private boolean done;
+	private Exception exception;
+
+	NvmfDataCachedFuture(NvmfBlockCache cache, NvmfBlockCache.Line[] lines, int lineOffset, ByteBuffer buffer) {
+		this.cache = cache;
+		this.lines = lines;
+		this.lineOffset = lineOffset;
+		this.buffer = buffer;
+		this.len = buffer.remaining();
+	}
+
+	public int getLen() {
+		return len;
+	}
+
+	public boolean cancel(boolean b) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public boolean isDone() {
+		if (!done && exception == null) {
+			for (NvmfBlockCache.Line line : lines) {
+				if (line.isFilling() || (!line.isFailed() && !line.getFill().isDone())) {
+					return false;
+				}
+			}
+			try {
+				get(0, TimeUnit.NANOSECONDS);
+			} catch (Exception e) {
+				// reported by get()
+			}
+		}
+		return done;
+	}
+
+	public DataResult get() throws InterruptedException, ExecutionException {
+		try {
+			return get(NvmfDataNodeConstants.TIME_OUT, NvmfDataNodeConstants.TIME_UNIT);
+		} catch (TimeoutException e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	public DataResult get(long timeout, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		if (!done) {
+			long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+			for (NvmfBlockCache.Line line : lines) {
+				while (line.isFilling()) {
+					if (System.nanoTime() - deadline >= 0) {
+						throw new TimeoutException("cache line fill not submitted in time");
+					}
+					Thread.yield();
+				}
+				try {
+					if (line.isFailed()) {
+						throw new ExecutionException(new IOException("filling cache line failed"));
+					}
+					line.getFill().get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+				} catch (ExecutionException e) {
+					exception = e;
+					cache.invalidate(line);
+					cache.unpin(lines);
+					throw e;
+				}
+			}
+			ByteBuffer dst = buffer.duplicate();
+			int offset = lineOffset;
+			for (NvmfBlockCache.Line line : lines) {
+				int length = Math.min(dst.remaining(), cache.getLineSize() - offset);
+				dst.put(NvmfDataNodeUtils.slice(line.getBuffer(), offset, length));
+				offset = 0;
+			}
+			cache.unpin(lines);
+			done = true;
+		}
+		return this;
+	}
+}
@@ -2,37 +2,232 @@ package com.ibm.crail.datanode.nvmf.client;
 
 import com.ibm.crail.datanode.DataResult;
 import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
-import com.ibm.disni.nvmef.spdk.IOCompletion;
-import com.ibm.disni.nvmef.spdk.NvmeGenericCommandStatusCode;
-import com.ibm.disni.nvmef.spdk.NvmeStatusCodeType;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * Created by jpf on 14.02.17.
  */
 public class NvmfDataFuture implements Future<DataResult>, DataResult {
+	private static final AtomicIntegerFieldUpdater<NvmfDataFuture> POOLED =
+			AtomicIntegerFieldUpdater.newUpdater(NvmfDataFuture.class, "pooled");
+	private static final AtomicLongFieldUpdater<NvmfDataFuture> SUBMIT_TIME =
+			AtomicLongFieldUpdater.newUpdater(NvmfDataFuture.class, "submitTime");
 
-	private final NvmfDataNodeEndpoint endpoint;
-	private final IOCompletion completion;
-	private final int len;
+	private final NvmfQueuePair queuePair;
+	private volatile NvmfCompletion completion;
+	private volatile IOException submitException;
+	private int len;
 	private Exception exception;
 	private boolean done;
+	/* 1 once handed back to the pool, only one release wins */
+	private volatile int pooled;
+	/* 0 if not measured or already recorded */
+	private volatile long submitTime;
+	/* next chunk of a command split by the queue pair, the head future covers all of them */
+	private NvmfDataFuture next;
+	/* command waiting in the submission ring of a shared queue pair */
+	private NvmfDataNodeEndpoint.Operation op;
+	private ByteBuffer buffer;
+	private ByteBuffer[] buffers;
+	private long lba;
+	/* asynchronous API: handed to the dispatcher once the command completed */
+	private Runnable listener;
+	/* write whose range is dropped from the block cache again once it is seen to complete */
+	private NvmfBlockCache cache;
+	private InetSocketAddress cacheAddress;
+	private long cacheOffset;
+	private long cacheLength;
 
-	public NvmfDataFuture(NvmfDataNodeEndpoint endpoint, IOCompletion completion, int len) {
-		this.endpoint = endpoint;
+	public NvmfDataFuture(NvmfQueuePair queuePair, NvmfCompletion completion, int len) {
+		this.queuePair = queuePair;
 		this.completion = completion;
 		this.len = len;
 	}
 
+	/* reuse of a recycled future for a new command on the same queue pair */
+	void reset(NvmfCompletion completion, int len) {
+		this.completion = completion;
+		this.submitException = null;
+		this.len = len;
+		this.exception = null;
+		this.done = false;
+		this.pooled = 0;
+		this.submitTime = 0;
+		this.next = null;
+		this.listener = null;
+		this.cache = null;
+	}
+
+	/*
+	 * Hands the future back to the pool of its queue pair once the command completed.
+	 * The future must not be used afterwards.
+	 */
+	void recycle() {
+		if (isCompleted() && POOLED.compareAndSet(this, 0, 1)) {
+			// completed before the queue pair got to record it
+			recordCompletion(System.nanoTime());
+			invalidateCache();
+			NvmfCompletion completion = this.completion;
+			this.completion = null;
+			// a command still in flight on a failed queue pair keeps its completion
+			if (completion != null && completion.done()) {
+				completion.release();
+			}
+			buffer = null;
+			buffers = null;
+			NvmfDataFuture chunk = next;
+			next = null;
+			queuePair.recycle(this);
+			if (chunk != null) {
+				chunk.recycle();
+			}
+		}
+	}
+
+	/* namespaceOffset is the address of the written range on the datanode, as used by the cache */
+	void setCacheRange(NvmfBlockCache cache, InetSocketAddress address, long namespaceOffset, long length) {
+		this.cache = cache;
+		this.cacheAddress = address;
+		this.cacheOffset = namespaceOffset;
+		this.cacheLength = length;
+	}
+
+	/*
+	 * Lines filled while the write was in flight may hold the old data. Called by the first
+	 * get(), isDone() or recycle() to see the completion, before the writer learns about it.
+	 */
+	private void invalidateCache() {
+		NvmfBlockCache cache = this.cache;
+		if (cache != null) {
+			this.cache = null;
+			cache.invalidate(cacheAddress, cacheOffset, cacheLength);
+		}
+	}
+
+	synchronized void setListener(Runnable listener) {
+		this.listener = listener;
+	}
+
+	/* the listener, to whoever sees the completion first */
+	synchronized Runnable takeListener() {
+		Runnable listener = this.listener;
+		this.listener = null;
+		return listener;
+	}
+
+	NvmfQueuePair getQueuePair() {
+		return queuePair;
+	}
+
+	void setNext(NvmfDataFuture next) {
+		this.next = next;
+	}
+
+	NvmfDataFuture getNext() {
+		return next;
+	}
+
+	void setCommand(NvmfDataNodeEndpoint.Operation op, ByteBuffer buffer, ByteBuffer[] buffers, long lba) {
+		this.op = op;
+		this.buffer = buffer;
+		this.buffers = buffers;
+		this.lba = lba;
+	}
+
+	NvmfDataNodeEndpoint.Operation getOp() {
+		return op;
+	}
+
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	ByteBuffer[] getBuffers() {
+		return buffers;
+	}
+
+	long getLba() {
+		return lba;
+	}
+
+	/* handed over by the poller of a shared queue pair */
+	void submitted(NvmfCompletion completion) {
+		this.buffer = null;
+		this.buffers = null;
+		this.completion = completion;
+	}
+
+	void failed(IOException e) {
+		this.buffer = null;
+		this.buffers = null;
+		this.submitException = e;
+	}
+
+	void setSubmitTime(long submitTime) {
+		this.submitTime = submitTime;
+	}
+
+	/* records submission to completion of this command once, whoever gets there first */
+	void recordCompletion(long now) {
+		long submitTime = this.submitTime;
+		if (submitTime != 0 && SUBMIT_TIME.compareAndSet(this, submitTime, 0)) {
+			queuePair.getStatistics().submitToComplete(now - submitTime);
+		}
+	}
+
+	/*
+	 * Whether the queue pair is done with timing this command: it completed and is recorded
+	 * now, it was recorded already, or it failed to submit and is not recorded at all.
+	 */
+	boolean recordIfCompleted(long now) {
+		if (submitTime == 0) {
+			return true;
+		}
+		if (submitException != null) {
+			SUBMIT_TIME.set(this, 0);
+			return true;
+		}
+		NvmfCompletion completion = this.completion;
+		if (completion != null && completion.done()) {
+			recordCompletion(now);
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * The command and all of its chunks completed or could not be submitted, or the queue
+	 * pair failed and they never will.
+	 */
+	boolean isCompleted() {
+		NvmfCompletion completion = this.completion;
+		if ((completion == null || !completion.done()) && submitException == null &&
+				queuePair.getFailure() == null) {
+			return false;
+		}
+		return next == null || next.isCompleted();
+	}
+
 	public int getLen() {
 		return len;
 	}
 
+	/* a released future may already carry another command */
+	private void checkReleased() {
+		if (pooled != 0) {
+			throw new IllegalStateException("future used after it was released");
+		}
+	}
+
 	public boolean cancel(boolean b) {
 		return false;
 	}
@@ -42,10 +237,14 @@ public class NvmfDataFuture implements Future<DataResult>, DataResult {
 	}
 
 	public boolean isDone() {
+		checkReleased();
 		if (!done) {
 			try {
-				endpoint.poll();
-				done = completion.done();
+				queuePair.poll();
+				done = isCompleted();
+				if (done) {
+					invalidateCache();
+				}
 			} catch (IOException e) {
 				exception = e;
 			}
@@ -62,30 +261,56 @@ public class NvmfDataFuture implements Future<DataResult>, DataResult {
 	}
 
 	public DataResult get(long timeout, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+		checkReleased();
 		if (exception != null) {
 			throw new ExecutionException(exception);
 		}
-		if (!completion.done()) {
-			long start = System.nanoTime();
-			long end = start + TimeUnit.NANOSECONDS.convert(timeout, timeUnit);
+		if (submitException != null) {
+			throw new ExecutionException(submitException);
+		}
+		NvmfStatistics statistics = queuePair.getStatistics();
+		long start = statistics != null ? System.nanoTime() : 0;
+		if (!isCompleted()) {
+			long end = System.nanoTime() + TimeUnit.NANOSECONDS.convert(timeout, timeUnit);
+			NvmfWaitStrategy waitStrategy = queuePair.getWaitStrategy();
+			int iteration = 0;
 			boolean waitTimeOut;
-			do {
-				try {
-					endpoint.poll();
-				} catch (IOException e) {
-					throw new ExecutionException(e);
+			try {
+				do {
+					try {
+						queuePair.poll();
+					} catch (IOException e) {
+						throw new ExecutionException(e);
+					}
+					// we don't want to trigger timeout on first iteration
+					waitTimeOut = System.nanoTime() > end;
+					if (!waitTimeOut && !isCompleted()) {
+						waitStrategy.idle(queuePair, this, ++iteration);
+					}
+				} while (!isCompleted() && !waitTimeOut);
+			} finally {
+				if (iteration > 0) {
+					waitStrategy.done(queuePair);
 				}
-				// we don't want to trigger timeout on first iteration
-				waitTimeOut = System.nanoTime() > end;
-			} while (!completion.done() && !waitTimeOut);
-			if (!completion.done() && waitTimeOut) {
+			}
+			if (!isCompleted() && waitTimeOut) {
 				throw new TimeoutException("get wait time out!");
 			}
 			done = true;
-			if (completion.getStatusCodeType() != NvmeStatusCodeType.GENERIC &&
-					completion.getStatusCode() != NvmeGenericCommandStatusCode.SUCCESS.getNumVal()) {
-				throw new ExecutionException("Error: " + completion.getStatusCodeType().name() + " - " +
-						completion.getStatusCode()) {
+		}
+		invalidateCache();
+		if (statistics != null) {
+			statistics.waitTime(System.nanoTime() - start);
+		}
+		for (NvmfDataFuture chunk = this; chunk != null; chunk = chunk.next) {
+			if (chunk.submitException != null) {
+				throw new ExecutionException(chunk.submitException);
+			}
+			if (chunk.completion == null || !chunk.completion.done()) {
+				throw new ExecutionException(queuePair.getFailure());
+			}
+			if (!chunk.completion.isSuccess()) {
+				throw new ExecutionException("Error: " + chunk.completion.getStatus()) {
 				};
 			}
 		}
@@ -28,48 +28,276 @@ import com.ibm.crail.datanode.DataResult;
 import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
 import com.ibm.crail.namenode.protocol.BlockInfo;
 import com.ibm.crail.utils.CrailUtils;
-import com.ibm.crail.utils.DirectBufferCache;
-import com.ibm.disni.nvmef.NvmeEndpoint;
-import com.ibm.disni.nvmef.NvmeEndpointGroup;
-import com.ibm.disni.nvmef.spdk.IOCompletion;
 import org.slf4j.Logger;
 
+import javax.management.ObjectName;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NvmfDataNodeEndpoint implements DataNodeEndpoint {
 	private static final Logger LOG = CrailUtils.getLogger();
+	private static final AtomicInteger endpointIds = new AtomicInteger(0);
 
 	private final InetSocketAddress inetSocketAddress;
-	private final NvmeEndpoint endpoint;
+	private final NvmfDevice.Factory deviceFactory;
+	/* reaches the namespaces of a datanode on this host without the fabric, null if not */
+	private final NvmfDevice.Factory localFactory;
+	private final NvmfWaitStrategy waitStrategy;
+	private final Runnable completionListener;
+	/* queue pairs per namespace of the datanode, and all of them */
+	private volatile NvmfQueuePair[][] devices;
+	private volatile NvmfQueuePair[] queuePairs;
+	/* all namespaces connected so far go through localFactory */
+	private volatile boolean local;
+	private final AtomicInteger nextQueuePair;
+	/* queue pair index of the thread, boxed once per thread */
+	private final ThreadLocal<int[]> threadQueuePair;
 	private final int sectorSize;
-	private final DirectBufferCache cache;
-	private final Semaphore commandQueueAvailable;
+	/* recycled futures of unaligned operations and batches, further ones are left to the garbage collector */
+	private final NvmfRing<NvmfDataUnalignedReadFuture> unalignedReads;
+	private final NvmfRing<NvmfDataStagedWriteFuture> stagedWrites;
+	private final NvmfRing<NvmfDataUnalignedRMWFuture> readModifyWrites;
+	private final NvmfRing<NvmfDataBatchFuture> batches;
+	private final NvmfStagingPool stagingPool;
+	private final NvmfTailSectorCache tailSectorCache;
+	private final NvmfWriteCoalescer writeCoalescer;
+	private final NvmfReadAhead readAhead;
+	private final NvmfBlockCache blockCache;
+	private final NvmfQos qos;
+	private final NvmfCompletionReaper reaper;
+	private final NvmfStatistics statistics;
+	private final ObjectName statisticsName;
+	private final NvmfAsyncDispatcher dispatcher;
+	/* asynchronous operations not completed yet */
+	private final AtomicInteger pendingAsyncOps;
+	/* those that are not a single command, checked by the dispatcher after completions */
+	private final ConcurrentLinkedQueue<AsyncOp> compositeAsyncOps;
+	private final AtomicBoolean recheckScheduled;
+	private final Runnable recheck;
 
-	public NvmfDataNodeEndpoint(NvmeEndpointGroup group, InetSocketAddress inetSocketAddress) throws IOException {
+	/* an operation submitted through the asynchronous API, run by the dispatcher */
+	private class AsyncOp implements Runnable {
+		private final Future<DataResult> future;
+		private final CompletableFuture<DataResult> result;
+
+		AsyncOp(Future<DataResult> future, CompletableFuture<DataResult> result) {
+			this.future = future;
+			this.result = result;
+		}
+
+		public void run() {
+			complete();
+		}
+
+		void complete() {
+			pendingAsyncOps.decrementAndGet();
+			try {
+				result.complete(future.get());
+			} catch (ExecutionException e) {
+				result.completeExceptionally(e.getCause() != null ? e.getCause() : e);
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			}
+		}
+	}
+
+	public NvmfDataNodeEndpoint(NvmfDevice.Factory deviceFactory, InetSocketAddress inetSocketAddress,
+								NvmfBlockCache blockCache, NvmfStagingPool stagingPool, NvmfQos qos)
+			throws IOException {
+		this(deviceFactory, null, inetSocketAddress, blockCache, stagingPool, qos);
+	}
+
+	/* localFactory is only used if the datanode listens on an address of this host */
+	public NvmfDataNodeEndpoint(NvmfDevice.Factory deviceFactory, NvmfDevice.Factory localFactory,
+								InetSocketAddress inetSocketAddress, NvmfBlockCache blockCache,
+								NvmfStagingPool stagingPool, NvmfQos qos) throws IOException {
 		this.inetSocketAddress = inetSocketAddress;
-		endpoint = group.createEndpoint();
+		this.blockCache = blockCache;
+		this.qos = qos;
+		this.deviceFactory = deviceFactory;
+		this.localFactory = localFactory != null && NvmfDataNodeUtils.isLocalAddress(inetSocketAddress) ?
+				localFactory : null;
+		this.waitStrategy = NvmfWaitStrategy.getInstance(NvmfDataNodeConstants.WAIT_STRATEGY);
+		dispatcher = new NvmfAsyncDispatcher("nvmf-async-" + inetSocketAddress);
+		pendingAsyncOps = new AtomicInteger(0);
+		compositeAsyncOps = new ConcurrentLinkedQueue<AsyncOp>();
+		recheckScheduled = new AtomicBoolean(false);
+		recheck = new Runnable() {
+			public void run() {
+				recheckAsyncOps();
+			}
+		};
+		completionListener = new Runnable() {
+			public void run() {
+				scheduleRecheck();
+			}
+		};
+		// pollers of shared queue pairs wake up waiters themselves
+		if (waitStrategy.needsReaper() && !NvmfDataNodeConstants.SHARED_QUEUE_PAIRS) {
+			reaper = new NvmfCompletionReaper(this, "nvmf-reaper-" + inetSocketAddress);
+		} else {
+			reaper = null;
+		}
+		if (NvmfDataNodeConstants.STATISTICS) {
+			statistics = new NvmfStatistics(this);
+			statisticsName = NvmfDataNodeUtils.registerMBean(statistics, "Endpoint",
+					inetSocketAddress.getHostString() + ":" + inetSocketAddress.getPort() + "-" + endpointIds.getAndIncrement());
+		} else {
+			statistics = null;
+			statisticsName = null;
+		}
+		devices = new NvmfQueuePair[0][];
+		queuePairs = new NvmfQueuePair[0];
+		local = this.localFactory != null;
+		// further namespaces are connected when the first block striped across them shows up
+		connectDevices(1);
+		if (reaper != null) {
+			reaper.start();
+		}
+		nextQueuePair = new AtomicInteger(0);
+		threadQueuePair = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue() {
+				return new int[] { Math.abs(nextQueuePair.getAndIncrement() % NvmfDataNodeConstants.QUEUE_PAIRS) };
+			}
+		};
+		sectorSize = queuePairs[0].getSectorSize();
+		int pooledFutures = queuePairs[0].getQueueDepth() * NvmfDataNodeConstants.QUEUE_PAIRS;
+		unalignedReads = new NvmfRing<NvmfDataUnalignedReadFuture>(pooledFutures);
+		stagedWrites = new NvmfRing<NvmfDataStagedWriteFuture>(pooledFutures);
+		readModifyWrites = new NvmfRing<NvmfDataUnalignedRMWFuture>(pooledFutures);
+		batches = new NvmfRing<NvmfDataBatchFuture>(pooledFutures);
+		this.stagingPool = stagingPool;
+		tailSectorCache = new NvmfTailSectorCache(sectorSize, NvmfDataNodeConstants.TAIL_CACHE_SIZE);
+		if (NvmfDataNodeConstants.COALESCE_SIZE > 0) {
+			writeCoalescer = new NvmfWriteCoalescer(this, NvmfDataNodeConstants.COALESCE_SIZE,
+					TimeUnit.MICROSECONDS.toNanos(NvmfDataNodeConstants.COALESCE_TIMEOUT),
+					"nvmf-coalescer-" + inetSocketAddress);
+		} else {
+			writeCoalescer = null;
+		}
+		if (NvmfDataNodeConstants.READ_AHEAD > 0) {
+			readAhead = new NvmfReadAhead(this, sectorSize, NvmfDataNodeConstants.READ_AHEAD,
+					NvmfDataNodeConstants.READ_AHEAD_MEMORY);
+		} else {
+			readAhead = null;
+		}
+	}
+
+	/* namespace i of the datanode is exported as subsystem cnode(i+1) */
+	private URI url(int device) throws IOException {
 		try {
-			URI url = new URI("nvmef://" + inetSocketAddress.getHostString() + ":" + inetSocketAddress.getPort() +
-					"/0/" + NvmfDataNodeConstants.NAMESPACE + "?subsystem=nqn.2016-06.io.spdk:cnode1");
-			LOG.info("Connecting to " + url.toString());
-			endpoint.connect(url);
+			return new URI("nvmef://" + inetSocketAddress.getHostString() + ":" + inetSocketAddress.getPort() +
+					"/0/" + NvmfDataNodeConstants.NAMESPACE + "?subsystem=nqn.2016-06.io.spdk:cnode" + (device + 1));
 		} catch (URISyntaxException e) {
-			//FIXME
-			e.printStackTrace();
+			throw new IOException(e);
 		}
-		sectorSize = endpoint.getSectorSize();
-		cache = new DirectBufferCache();
-		commandQueueAvailable = new Semaphore(endpoint.getIOQueueSize());
+	}
+
+	private synchronized NvmfQueuePair[][] connectDevices(int width) throws IOException {
+		NvmfQueuePair[][] connected = devices;
+		if (width <= connected.length) {
+			return connected;
+		}
+		NvmfQueuePair[][] newDevices = new NvmfQueuePair[width][];
+		System.arraycopy(connected, 0, newDevices, 0, connected.length);
+		ArrayList<NvmfQueuePair> all = new ArrayList<NvmfQueuePair>(Arrays.asList(queuePairs));
+		for (int device = connected.length; device < width; device++) {
+			NvmfQueuePair[] devicePairs = null;
+			if (local) {
+				try {
+					devicePairs = connect(localFactory, url(device), waitStrategy);
+				} catch (IOException e) {
+					// e.g. the controller is claimed by the datanode process
+					LOG.info("local access to namespace " + device + " of datanode " + inetSocketAddress +
+							" failed, falling back to the fabric: " + e.getMessage());
+					local = false;
+				}
+			}
+			if (devicePairs == null) {
+				devicePairs = connect(deviceFactory, url(device), waitStrategy);
+			}
+			if (device > 0 && devicePairs[0].getSectorSize() != newDevices[0][0].getSectorSize()) {
+				for (NvmfQueuePair queuePair : devicePairs) {
+					queuePair.close();
+				}
+				throw new IOException("namespaces of datanode " + inetSocketAddress + " differ in sector size");
+			}
+			for (NvmfQueuePair queuePair : devicePairs) {
+				queuePair.setCompletionListener(completionListener);
+				queuePair.setReaper(reaper);
+				queuePair.setDispatcher(dispatcher);
+				queuePair.setStatistics(statistics);
+				all.add(queuePair);
+			}
+			newDevices[device] = devicePairs;
+		}
+		queuePairs = all.toArray(new NvmfQueuePair[all.size()]);
+		devices = newDevices;
+		return newDevices;
+	}
+
+	private static NvmfQueuePair[] connect(NvmfDevice.Factory deviceFactory, URI url, NvmfWaitStrategy waitStrategy)
+			throws IOException {
+		LOG.info("Connecting to " + url.toString() + ", queue pairs " + NvmfDataNodeConstants.QUEUE_PAIRS);
+		NvmfQueuePair[] queuePairs = new NvmfQueuePair[NvmfDataNodeConstants.QUEUE_PAIRS];
+		try {
+			for (int i = 0; i < queuePairs.length; i++) {
+				queuePairs[i] = new NvmfQueuePair(deviceFactory.connect(url), url.getHost() + ":" + url.getPort(),
+						waitStrategy, NvmfDataNodeConstants.SHARED_QUEUE_PAIRS);
+			}
+		} catch (IOException e) {
+			for (NvmfQueuePair queuePair : queuePairs) {
+				if (queuePair != null) {
+					queuePair.close();
+				}
+			}
+			throw e;
+		}
+		return queuePairs;
+	}
+
+	/*
+	 * Every thread is pinned to one queue pair per namespace, threads are assigned round robin.
+	 * As long as there are no more threads than queue pairs each thread owns its qpair.
+	 */
+	NvmfQueuePair queuePair(BlockInfo remoteMr) throws IOException {
+		int device = NvmfDataNodeUtils.stripeDevice(remoteMr);
+		NvmfQueuePair[][] connected = devices;
+		if (device >= connected.length) {
+			connected = connectDevices(NvmfDataNodeUtils.stripeWidth(remoteMr));
+		}
+		return connected[device][threadQueuePair.get()[0]];
+	}
+
+	NvmfQueuePair[] getQueuePairs() {
+		return queuePairs;
+	}
+
+	public InetSocketAddress getAddress() {
+		return inetSocketAddress;
+	}
+
+	public int getQueueDepth() {
+		return queuePairs[0].getQueueDepth();
+	}
+
+	public int getQueuePairCount() {
+		return devices[0].length;
 	}
 
 	public int getSectorSize() {
@@ -81,8 +309,69 @@ public class NvmfDataNodeEndpoint implements DataNodeEndpoint {
 		READ;
 	}
 
+	/*
+	 * Latency ops may use the whole in-flight window of a queue pair, bulk ops leave
+	 * latencyshare of it free. Ops of up to latencysize bytes, e.g. directory entries, are
+	 * latency ops unless the caller passes a priority.
+	 */
+	public enum Priority {
+		LATENCY,
+		BULK;
+	}
+
+	Priority classify(long length) {
+		return length <= NvmfDataNodeConstants.LATENCY_SIZE ? Priority.LATENCY : Priority.BULK;
+	}
+
 	public Future<DataResult> Op(Operation op, ByteBuffer buffer, BlockInfo remoteMr, long remoteOffset)
 			throws IOException, InterruptedException {
+		return Op(op, buffer, remoteMr, remoteOffset, classify(buffer.remaining()));
+	}
+
+	public Future<DataResult> Op(Operation op, ByteBuffer buffer, BlockInfo remoteMr, long remoteOffset,
+								 Priority priority) throws IOException, InterruptedException {
+		checkOp(buffer, remoteMr, remoteOffset);
+		throttle(1, buffer.remaining());
+		return submit(op, buffer, remoteMr, remoteOffset, priority);
+	}
+
+	/* an operation that went through the I/O limits already */
+	private Future<DataResult> submit(Operation op, ByteBuffer buffer, BlockInfo remoteMr, long remoteOffset,
+									  Priority priority) throws IOException {
+		if (writeCoalescer != null) {
+			// keep order with writes still sitting in the coalescer
+			writeCoalescer.flush(remoteMr);
+		}
+		if (op == Operation.WRITE) {
+			invalidateCaches(remoteMr, remoteOffset, buffer.remaining());
+		}
+		return Op(op, buffer, remoteMr, remoteOffset, queuePair(remoteMr), false, priority);
+	}
+
+	/*
+	 * Write bypassing the coalescer, used for writes staged by the client itself. Their data
+	 * went through the I/O limits with the operations it came from.
+	 */
+	Future<DataResult> submitWrite(ByteBuffer buffer, BlockInfo remoteMr, long remoteOffset) throws IOException {
+		checkOp(buffer, remoteMr, remoteOffset);
+		invalidateCaches(remoteMr, remoteOffset, buffer.remaining());
+		return Op(Operation.WRITE, buffer, remoteMr, remoteOffset, queuePair(remoteMr), false,
+				classify(buffer.remaining()));
+	}
+
+	/*
+	 * Read issued by read-ahead or the block cache. Writes still sitting in the coalescer
+	 * invalidate the range when they are flushed, no need to flush them here. Waits for the
+	 * I/O limits, must not be called holding a lock.
+	 */
+	Future<DataResult> submitInternalRead(ByteBuffer buffer, BlockInfo remoteMr, long remoteOffset) throws IOException {
+		checkOp(buffer, remoteMr, remoteOffset);
+		throttle(1, buffer.remaining());
+		return Op(Operation.READ, buffer, remoteMr, remoteOffset, queuePair(remoteMr), false,
+				classify(buffer.remaining()));
+	}
+
+	private void checkOp(ByteBuffer buffer, BlockInfo remoteMr, long remoteOffset) throws IOException {
 		int length = buffer.remaining();
 		if (length > CrailConstants.BLOCK_SIZE){
 			throw new IOException("write size too large " + length);
@@ -97,10 +386,60 @@ public class NvmfDataNodeEndpoint implements DataNodeEndpoint {
 			throw new IOException("remote offset too small " + remoteOffset);
 		}
 
-		if (remoteMr.getAddr() + remoteOffset + length > endpoint.getNamespaceSize()){
-			long tmpAddr = remoteMr.getAddr() + remoteOffset + length;
+		checkRange(remoteMr, remoteOffset, length);
+	}
+
+	private void checkRange(BlockInfo remoteMr, long remoteOffset, long length) throws IOException {
+		if (NvmfDataNodeUtils.deviceAddress(remoteMr, remoteOffset) + length > queuePair(remoteMr).getNamespaceSize()){
+			long tmpAddr = NvmfDataNodeUtils.deviceAddress(remoteMr, remoteOffset) + length;
 			throw new IOException("remote fileOffset + remoteOffset + len too large " + tmpAddr);
 		}
+	}
+
+	/*
+	 * Waits until the I/O limits of the client admit the operations. Has to happen before
+	 * taking any lock, waiting may take long.
+	 */
+	private void throttle(int count, long length) {
+		if (qos != null) {
+			qos.throttle(count, length);
+		}
+	}
+
+	/*
+	 * Drops read-ahead and cached data overlapping a write. Both take their own locks, so this
+	 * has to happen before the write is submitted and never while holding a queue pair.
+	 * Crail only appends, a write at the start of a block begins a new file on it: the block
+	 * may have been freed and reassigned since we cached its tail sector.
+	 */
+	private void invalidateCaches(BlockInfo remoteMr, long remoteOffset, long length) {
+		if (remoteOffset == 0) {
+			tailSectorCache.invalidate(remoteMr);
+		}
+		if (readAhead != null) {
+			readAhead.invalidate(remoteMr, remoteOffset, length);
+		}
+		if (blockCache != null) {
+			blockCache.invalidate(inetSocketAddress, remoteMr.getAddr() + remoteOffset, length);
+		}
+	}
+
+	/* the block cache drops the range of the write again once it is seen to complete */
+	private void invalidateOnCompletion(NvmfDataFuture future, BlockInfo remoteMr, long remoteOffset, long length) {
+		if (blockCache != null) {
+			future.setCacheRange(blockCache, inetSocketAddress, remoteMr.getAddr() + remoteOffset, length);
+		}
+	}
+
+	/*
+	 * Every op issues exactly one command up front. If reserved is set the caller already
+	 * holds a slot in the in-flight window of the queue pair for it and hands it over, the
+	 * queue pair gives it back if the command fails. Callers throttle, and invalidate the
+	 * caches for writes.
+	 */
+	private Future<DataResult> Op(Operation op, ByteBuffer buffer, BlockInfo remoteMr, long remoteOffset,
+								  NvmfQueuePair queuePair, boolean reserved, Priority priority) throws IOException {
+		int length = buffer.remaining();
 
 //		LOG.info("op = " + op.name() +
 //				", position = " + buffer.position() +
@@ -109,92 +448,611 @@ public class NvmfDataNodeEndpoint implements DataNodeEndpoint {
 //				", remoteAddr = " + remoteMr.getAddr() +
 //				", length = " + length);
 
-		while (commandQueueAvailable.tryAcquire()) {
-			poll();
-		}
-
 		boolean aligned = NvmfDataNodeUtils.namespaceSectorOffset(sectorSize, remoteOffset) == 0
 				&& NvmfDataNodeUtils.namespaceSectorOffset(sectorSize, length) == 0;
 		long lba = NvmfDataNodeUtils.linearBlockAddress(remoteMr, remoteOffset, sectorSize);
+		if (statistics != null) {
+			statistics.op(op, length, aligned);
+		}
 		Future<DataResult> future = null;
 		if (aligned) {
 //			LOG.debug("aligned");
-			IOCompletion completion = null;
+			if (op == Operation.WRITE) {
+				tailSectorCache.invalidate(remoteMr, remoteOffset, length);
+			}
+			future = queuePair.submit(op, buffer, lba, reserved, length, priority);
+			if (op == Operation.WRITE) {
+				invalidateOnCompletion((NvmfDataFuture) future, remoteMr, remoteOffset, length);
+			}
+		} else {
 			switch(op) {
-				case READ:
-					completion = endpoint.read(buffer, lba);
+				case READ: {
+					future = unalignedRead(buffer, remoteMr, remoteOffset, queuePair, reserved, priority);
 					break;
-				case WRITE:
-					completion = endpoint.write(buffer, lba);
+				}
+				case WRITE: {
+					long alignedLength = NvmfDataNodeUtils.alignLength(sectorSize, remoteOffset, length);
+					ByteBuffer stagingBuffer = getBuffer((int)alignedLength);
+					stagingBuffer.limit((int)alignedLength);
+					stage(buffer, stagingBuffer,
+							(int) NvmfDataNodeUtils.namespaceSectorOffset(sectorSize, remoteOffset));
+					future = stagedWrite(stagingBuffer, length, remoteMr, remoteOffset, lba, queuePair, reserved,
+							priority);
 					break;
+				}
 			}
-			future = new NvmfDataFuture(this, completion, length);
+		}
+
+		return future;
+	}
+
+	/*
+	 * Writes the sector aligned image in the staging buffer, which holds the data of the
+	 * operation at its offset into the first sector already. The head of that sector is
+	 * taken from the tail sector cache or read back first. The returned future owns the
+	 * staging buffer, it is handed back on failure to submit as well.
+	 */
+	private Future<DataResult> stagedWrite(ByteBuffer stagingBuffer, int length, BlockInfo remoteMr,
+										   long remoteOffset, long lba, NvmfQueuePair queuePair, boolean reserved,
+										   Priority priority) throws IOException {
+		ByteBuffer headBuffer = null;
+		try {
+			if (NvmfDataNodeUtils.namespaceSectorOffset(sectorSize, remoteOffset) == 0
+					|| tailSectorCache.fill(remoteMr, remoteOffset, stagingBuffer)) {
+				// Aligned offset, or we wrote the head of the sector before, no need to read it back
+				NvmfDataFuture writeFuture = queuePair.submit(Operation.WRITE, stagingBuffer, lba, reserved, length,
+						priority);
+				invalidateOnCompletion(writeFuture, remoteMr, remoteOffset, length);
+				NvmfDataStagedWriteFuture future = stagedWrites.poll();
+				if (future == null) {
+					future = new NvmfDataStagedWriteFuture(this);
+				}
+				future.init(writeFuture, length, remoteMr, remoteOffset, stagingBuffer);
+				return future;
+			}
+			if (statistics != null) {
+				statistics.readModifyWrite();
+			}
+			// RMW but append only file system allows only reading last sector
+			// and dir entries are sector aligned
+			headBuffer = getBuffer(sectorSize);
+			headBuffer.limit(sectorSize);
+			NvmfDataFuture readFuture = queuePair.submit(Operation.READ, headBuffer, lba, reserved, sectorSize,
+					priority);
+			NvmfDataUnalignedRMWFuture future = readModifyWrites.poll();
+			if (future == null) {
+				future = new NvmfDataUnalignedRMWFuture(this);
+			}
+			future.init(readFuture, length, remoteMr, remoteOffset, stagingBuffer, headBuffer);
+			return future;
+		} catch (IOException e) {
+			if (headBuffer != null) {
+				putBuffer(headBuffer);
+			}
+			putBuffer(stagingBuffer);
+			throw e;
+		}
+	}
+
+	/* copies the user data to the given offset of the staging buffer, which is left at position 0 */
+	private static void stage(ByteBuffer buffer, ByteBuffer stagingBuffer, int offset) {
+		if (buffer.isDirect()) {
+			NvmfDataNodeUtils.copyMemory(NvmfDataNodeUtils.getAddress(buffer) + buffer.position(),
+					NvmfDataNodeUtils.getAddress(stagingBuffer) + offset, buffer.remaining());
 		} else {
-			long alignedLength = NvmfDataNodeUtils.alignLength(sectorSize, remoteOffset, length);
+			stagingBuffer.position(offset);
+			stagingBuffer.put(buffer.duplicate());
+			stagingBuffer.position(0);
+		}
+	}
 
-			ByteBuffer stagingBuffer = cache.getBuffer();
-			stagingBuffer.clear();
-			stagingBuffer.limit((int)alignedLength);
+	/*
+	 * Only the partial head and tail sectors are read into a staging buffer, the aligned
+	 * interior goes directly into the user buffer. Reads without a full interior sector
+	 * span at most two sectors and are staged as a whole.
+	 */
+	private Future<DataResult> unalignedRead(ByteBuffer buffer, BlockInfo remoteMr, long remoteOffset,
+											 NvmfQueuePair queuePair, boolean reserved, Priority priority)
+			throws IOException {
+		int length = buffer.remaining();
+		long headOffset = NvmfDataNodeUtils.alignOffset(sectorSize, remoteOffset);
+		long interiorOffset = headOffset == remoteOffset ? remoteOffset : headOffset + sectorSize;
+		long endOffset = remoteOffset + length;
+		long tailOffset = NvmfDataNodeUtils.alignOffset(sectorSize, endOffset);
+
+		NvmfDataUnalignedReadFuture future = unalignedReads.poll();
+		if (future == null) {
+			future = new NvmfDataUnalignedReadFuture(this);
+		}
+		if (tailOffset <= interiorOffset) {
+			int stagedLength = (int)NvmfDataNodeUtils.alignLength(sectorSize, remoteOffset, length);
+			ByteBuffer stagingBuffer = getBuffer(stagedLength);
+			stagingBuffer.limit(stagedLength);
+			NvmfDataFuture stagedFuture;
 			try {
-				switch(op) {
-					case READ: {
-						IOCompletion completion = endpoint.read(stagingBuffer, lba);
-						future = new NvmfDataUnalignedReadFuture(this, completion, buffer, remoteMr, remoteOffset, stagingBuffer);
-						break;
-					}
-					case WRITE: {
-						if (NvmfDataNodeUtils.namespaceSectorOffset(sectorSize, remoteOffset) == 0) {
-							// Do not read if the offset is aligned to sector size
-							int sizeToWrite = length;
-							stagingBuffer.put(buffer);
-							stagingBuffer.position(0);
-							IOCompletion completion = endpoint.write(stagingBuffer, lba);
-							future = new NvmfDataFuture(this, completion, sizeToWrite);
-						} else {
-							// RMW but append only file system allows only reading last sector
-							// and dir entries are sector aligned
-							stagingBuffer.limit(sectorSize);
-							IOCompletion completion = endpoint.read(stagingBuffer, lba);
-							future = new NvmfDataUnalignedRMWFuture(this, completion, buffer, remoteMr, remoteOffset, stagingBuffer);
-						}
-						break;
-					}
-				}
-			} catch (NoSuchFieldException e) {
-				throw new IOException(e);
-			} catch (IllegalAccessException e) {
-				throw new IOException(e);
+				stagedFuture = queuePair.submit(Operation.READ, stagingBuffer,
+						NvmfDataNodeUtils.linearBlockAddress(remoteMr, headOffset, sectorSize), reserved, length,
+						priority);
+			} catch (IOException e) {
+				putBuffer(stagingBuffer);
+				unalignedReads.offer(future);
+				throw e;
 			}
+			future.init(stagedFuture, buffer, remoteMr, remoteOffset, stagingBuffer);
+			future.init(length, null, null, 0, null);
+			return future;
 		}
 
+		// head and tail sectors are staged separately, so both fit the buffers of the pool for one sector
+		ByteBuffer headBuffer = null;
+		ByteBuffer tailBuffer = null;
+		NvmfDataFuture headFuture = null;
+		NvmfDataFuture interiorFuture = null;
+		NvmfDataFuture tailFuture = null;
+		int headLength = (int)(interiorOffset - remoteOffset);
+		int interiorLength = (int)(tailOffset - interiorOffset);
+		int tailLength = (int)(endOffset - tailOffset);
+		try {
+			if (headLength > 0) {
+				headBuffer = getBuffer(sectorSize);
+				headBuffer.limit(sectorSize);
+				headFuture = queuePair.submit(Operation.READ, headBuffer,
+						NvmfDataNodeUtils.linearBlockAddress(remoteMr, headOffset, sectorSize), reserved, headLength,
+						priority);
+				reserved = false;
+			}
+
+			ByteBuffer interiorBuffer = future.interior(buffer, buffer.position() + headLength, interiorLength);
+			interiorFuture = queuePair.submit(Operation.READ, interiorBuffer,
+					NvmfDataNodeUtils.linearBlockAddress(remoteMr, interiorOffset, sectorSize), reserved,
+					interiorLength, priority);
+
+			if (tailLength > 0) {
+				tailBuffer = getBuffer(sectorSize);
+				tailBuffer.limit(sectorSize);
+				tailFuture = queuePair.submit(Operation.READ, tailBuffer,
+						NvmfDataNodeUtils.linearBlockAddress(remoteMr, tailOffset, sectorSize), false, tailLength,
+						priority);
+			}
+		} catch (IOException e) {
+			// the staging buffers go back once nothing reads into them anymore
+			if (headFuture != null) {
+				NvmfDataNodeUtils.awaitQuietly(headFuture);
+			}
+			if (interiorFuture != null) {
+				NvmfDataNodeUtils.awaitQuietly(interiorFuture);
+			}
+			if (headBuffer != null) {
+				putBuffer(headBuffer);
+			}
+			if (tailBuffer != null) {
+				putBuffer(tailBuffer);
+			}
+			unalignedReads.offer(future);
+			throw e;
+		}
+		future.init(headFuture, buffer, remoteMr, remoteOffset, headBuffer);
+		future.init(headLength, interiorFuture, tailFuture, tailLength, tailBuffer);
 		return future;
 	}
 
+	/* called by futures of unaligned operations once released */
+	void recycle(NvmfDataUnalignedFuture future) {
+		if (future instanceof NvmfDataUnalignedReadFuture) {
+			unalignedReads.offer((NvmfDataUnalignedReadFuture) future);
+		} else if (future instanceof NvmfDataStagedWriteFuture) {
+			stagedWrites.offer((NvmfDataStagedWriteFuture) future);
+		} else if (future instanceof NvmfDataUnalignedRMWFuture) {
+			readModifyWrites.offer((NvmfDataUnalignedRMWFuture) future);
+		}
+	}
+
 	public Future<DataResult> write(ByteBuffer buffer, ByteBuffer region, BlockInfo blockInfo, long remoteOffset)
 			throws IOException, InterruptedException {
-		return Op(Operation.WRITE, buffer, blockInfo, remoteOffset);
+		return write(buffer, region, blockInfo, remoteOffset, classify(buffer.remaining()));
+	}
+
+	public Future<DataResult> write(ByteBuffer buffer, ByteBuffer region, BlockInfo blockInfo, long remoteOffset,
+									Priority priority) throws IOException, InterruptedException {
+		if (writeCoalescer == null) {
+			return Op(Operation.WRITE, buffer, blockInfo, remoteOffset, priority);
+		}
+		checkOp(buffer, blockInfo, remoteOffset);
+		throttle(1, buffer.remaining());
+		Future<DataResult> future = writeCoalescer.write(buffer, blockInfo, remoteOffset);
+		if (future == null) {
+			future = submit(Operation.WRITE, buffer, blockInfo, remoteOffset, priority);
+		}
+		return future;
 	}
 
 	public Future<DataResult> read(ByteBuffer buffer, ByteBuffer region, BlockInfo blockInfo, long remoteOffset)
 			throws IOException, InterruptedException {
-		return Op(Operation.READ, buffer, blockInfo, remoteOffset);
+		return read(buffer, region, blockInfo, remoteOffset, classify(buffer.remaining()));
+	}
+
+	public Future<DataResult> read(ByteBuffer buffer, ByteBuffer region, BlockInfo blockInfo, long remoteOffset,
+								   Priority priority) throws IOException, InterruptedException {
+		if (blockCache == null && readAhead == null) {
+			return Op(Operation.READ, buffer, blockInfo, remoteOffset, priority);
+		}
+		checkOp(buffer, blockInfo, remoteOffset);
+		if (writeCoalescer != null) {
+			writeCoalescer.flush(blockInfo);
+		}
+		Future<DataResult> future = null;
+		if (blockCache != null) {
+			future = blockCache.read(this, buffer, blockInfo, remoteOffset);
+		}
+		if (future == null && readAhead != null) {
+			future = readAhead.read(buffer, blockInfo, remoteOffset);
+			if (future == null) {
+				throttle(1, buffer.remaining());
+				future = Op(Operation.READ, buffer, blockInfo, remoteOffset, queuePair(blockInfo), false, priority);
+				readAhead.trigger(blockInfo);
+			}
+		}
+		if (future == null) {
+			throttle(1, buffer.remaining());
+			future = Op(Operation.READ, buffer, blockInfo, remoteOffset, queuePair(blockInfo), false, priority);
+		}
+		return future;
 	}
 
-	void poll() throws IOException {
-		//TODO: 16
-		int numberCompletions = endpoint.processCompletions(16);
-		commandQueueAvailable.release(numberCompletions);
+	/*
+	 * Scatter/gather: the buffers are transferred to or from one contiguous range starting at
+	 * remoteOffset. If the range and every buffer are whole sectors the buffers go to the device
+	 * as they are, in one command if the device supports SGLs and one command per buffer
+	 * otherwise. Anything else is gathered into, or scattered from, a staging buffer that takes
+	 * the regular path. Buffer positions are not changed.
+	 */
+	public Future<DataResult> write(ByteBuffer[] buffers, BlockInfo blockInfo, long remoteOffset)
+			throws IOException, InterruptedException {
+		return vectorOp(Operation.WRITE, buffers, blockInfo, remoteOffset);
 	}
 
-	void putBuffer(ByteBuffer buffer) throws IOException {
-		cache.putBuffer(buffer);
+	public Future<DataResult> read(ByteBuffer[] buffers, BlockInfo blockInfo, long remoteOffset)
+			throws IOException, InterruptedException {
+		return vectorOp(Operation.READ, buffers, blockInfo, remoteOffset);
+	}
+
+	private Future<DataResult> vectorOp(Operation op, ByteBuffer[] buffers, BlockInfo remoteMr, long remoteOffset)
+			throws IOException, InterruptedException {
+		if (buffers.length == 1) {
+			return op == Operation.WRITE ? write(buffers[0], null, remoteMr, remoteOffset) :
+					read(buffers[0], null, remoteMr, remoteOffset);
+		}
+		long length = 0;
+		boolean aligned = NvmfDataNodeUtils.namespaceSectorOffset(sectorSize, remoteOffset) == 0;
+		for (ByteBuffer buffer : buffers) {
+			length += buffer.remaining();
+			aligned &= NvmfDataNodeUtils.namespaceSectorOffset(sectorSize, buffer.remaining()) == 0;
+		}
+		if (length <= 0 || length > CrailConstants.BLOCK_SIZE) {
+			throw new IOException("scatter/gather size out of range, len " + length);
+		}
+		if (remoteOffset < 0){
+			throw new IOException("remote offset too small " + remoteOffset);
+		}
+		Priority priority = classify(length);
+
+		if (!aligned) {
+			if (op == Operation.WRITE) {
+				return gatherWrite(buffers, (int) length, remoteMr, remoteOffset, priority);
+			}
+			ByteBuffer stagingBuffer = getBuffer((int) length);
+			stagingBuffer.limit((int) length);
+			Future<DataResult> future;
+			try {
+				future = read(stagingBuffer, null, remoteMr, remoteOffset, priority);
+			} catch (IOException e) {
+				putBuffer(stagingBuffer);
+				throw e;
+			}
+			return new NvmfDataVectorFuture(this, future, buffers, stagingBuffer, (int) length);
+		}
+
+		checkRange(remoteMr, remoteOffset, length);
+		if (writeCoalescer != null) {
+			writeCoalescer.flush(remoteMr);
+		}
+		if (op == Operation.WRITE) {
+			invalidateCaches(remoteMr, remoteOffset, length);
+			tailSectorCache.invalidate(remoteMr, remoteOffset, length);
+		}
+		throttle(1, length);
+		if (statistics != null) {
+			statistics.op(op, (int) length, true);
+		}
+		long lba = NvmfDataNodeUtils.linearBlockAddress(remoteMr, remoteOffset, sectorSize);
+		NvmfDataFuture future = queuePair(remoteMr).submit(op, buffers, lba, (int) length, priority);
+		if (op == Operation.WRITE) {
+			invalidateOnCompletion(future, remoteMr, remoteOffset, length);
+		}
+		return future;
+	}
+
+	/*
+	 * Asynchronous API: the returned future is completed once the operation finished, on the
+	 * dispatcher thread of this endpoint, never inside the completion processing itself.
+	 * Dependent stages that block hold up the completion of later operations, hand them to
+	 * an executor of your own with the ...Async stages of CompletableFuture. Completions are
+	 * processed by whichever thread polls the queue pairs: the completion reaper with the park
+	 * wait strategy, the pollers of shared queue pairs, otherwise call progress() from an
+	 * event loop. Asynchronous writes are never held back by the write coalescer.
+	 */
+	public CompletableFuture<DataResult> writeAsync(ByteBuffer buffer, BlockInfo blockInfo, long remoteOffset)
+			throws IOException, InterruptedException {
+		return async(Op(Operation.WRITE, buffer, blockInfo, remoteOffset));
+	}
+
+	public CompletableFuture<DataResult> readAsync(ByteBuffer buffer, BlockInfo blockInfo, long remoteOffset)
+			throws IOException, InterruptedException {
+		return async(read(buffer, null, blockInfo, remoteOffset));
+	}
+
+	/* polls all queue pairs of this endpoint, which completes finished asynchronous operations */
+	public void progress() throws IOException {
+		for (NvmfQueuePair queuePair : queuePairs) {
+			queuePair.poll();
+		}
+		// operations waiting for a fill by another endpoint see no completion of ours
+		scheduleRecheck();
+	}
+
+	boolean hasAsyncOps() {
+		return pendingAsyncOps.get() > 0;
+	}
+
+	private CompletableFuture<DataResult> async(Future<DataResult> future) {
+		CompletableFuture<DataResult> result = new CompletableFuture<DataResult>();
+		AsyncOp asyncOp = new AsyncOp(future, result);
+		pendingAsyncOps.incrementAndGet();
+		if (future.isDone()) {
+			asyncOp.complete();
+			return result;
+		}
+		if (future instanceof NvmfDataFuture) {
+			NvmfDataFuture dataFuture = (NvmfDataFuture) future;
+			dataFuture.getQueuePair().listen(dataFuture, asyncOp);
+		} else {
+			compositeAsyncOps.add(asyncOp);
+			// it might have completed by a concurrent poll before it was queued
+			scheduleRecheck();
+		}
+		if (reaper != null) {
+			reaper.signal();
+		}
+		return result;
+	}
+
+	/* one pending recheck at a time, later completions are covered by it */
+	private void scheduleRecheck() {
+		if (!compositeAsyncOps.isEmpty() && recheckScheduled.compareAndSet(false, true)) {
+			dispatcher.execute(recheck);
+		}
+	}
+
+	/*
+	 * Completes finished composite operations, runs on the dispatcher. Their futures may
+	 * poll, and unaligned writes submit their second command from isDone().
+	 */
+	private void recheckAsyncOps() {
+		recheckScheduled.set(false);
+		Iterator<AsyncOp> iterator = compositeAsyncOps.iterator();
+		while (iterator.hasNext()) {
+			AsyncOp asyncOp = iterator.next();
+			if (asyncOp.future.isDone()) {
+				iterator.remove();
+				asyncOp.complete();
+			}
+		}
+	}
+
+	public NvmfDataBatchFuture writeBatch(List<NvmfBatchEntry> entries) throws IOException, InterruptedException {
+		return batchOp(Operation.WRITE, entries, classify(entries));
+	}
+
+	public NvmfDataBatchFuture writeBatch(List<NvmfBatchEntry> entries, Priority priority)
+			throws IOException, InterruptedException {
+		return batchOp(Operation.WRITE, entries, priority);
+	}
+
+	public NvmfDataBatchFuture readBatch(List<NvmfBatchEntry> entries) throws IOException, InterruptedException {
+		return batchOp(Operation.READ, entries, classify(entries));
+	}
+
+	public NvmfDataBatchFuture readBatch(List<NvmfBatchEntry> entries, Priority priority)
+			throws IOException, InterruptedException {
+		return batchOp(Operation.READ, entries, priority);
+	}
+
+	/* a batch is a latency batch if all of its entries are */
+	private Priority classify(List<NvmfBatchEntry> entries) {
+		for (int i = 0; i < entries.size(); i++) {
+			NvmfBatchEntry entry = entries.get(i);
+			if (classify(entry.getBuffer().remaining()) == Priority.BULK) {
+				return Priority.BULK;
+			}
+		}
+		return Priority.LATENCY;
+	}
+
+	/*
+	 * Submits all entries back-to-back on the queue pairs of the calling thread. Slots in the
+	 * in-flight window are reserved for as many entries as are free at once instead of one
+	 * admission check per command, the rest follows in further waves as slots free up.
+	 * If a submission fails, the commands already in flight are waited for before rethrowing.
+	 */
+	private NvmfDataBatchFuture batchOp(Operation op, List<NvmfBatchEntry> entries, Priority priority)
+			throws IOException {
+		for (int i = 0; i < entries.size(); i++) {
+			NvmfBatchEntry entry = entries.get(i);
+			checkOp(entry.getBuffer(), entry.getBlockInfo(), entry.getRemoteOffset());
+			if (writeCoalescer != null) {
+				writeCoalescer.flush(entry.getBlockInfo());
+			}
+			if (op == Operation.WRITE) {
+				invalidateCaches(entry.getBlockInfo(), entry.getRemoteOffset(), entry.getBuffer().remaining());
+			}
+		}
+		NvmfDataBatchFuture futures = batches.poll();
+		if (futures == null) {
+			futures = new NvmfDataBatchFuture(this);
+		}
+		futures.reset();
+		int i = 0;
+		try {
+			while (i < entries.size()) {
+				// a run covers consecutive entries on the same namespace
+				NvmfQueuePair queuePair = queuePair(entries.get(i).getBlockInfo());
+				int end = i + 1;
+				while (end < entries.size() && queuePair(entries.get(end).getBlockInfo()) == queuePair) {
+					end++;
+				}
+				if (qos != null) {
+					long length = 0;
+					for (int j = i; j < end; j++) {
+						length += entries.get(j).getBuffer().remaining();
+					}
+					qos.throttle(end - i, length);
+				}
+				while (i < end) {
+					int reservedSlots = queuePair.acquireSlots(1, Math.min(end - i, queuePair.getWindow(priority)),
+							priority);
+					try {
+						synchronized (queuePair) {
+							while (reservedSlots > 0) {
+								NvmfBatchEntry entry = entries.get(i++);
+								/* handed over to the command, also if it fails */
+								reservedSlots--;
+								futures.add(Op(op, entry.getBuffer(), entry.getBlockInfo(), entry.getRemoteOffset(),
+										queuePair, true, priority));
+							}
+						}
+					} finally {
+						/* on failure give back the slots not handed to a command */
+						if (reservedSlots > 0) {
+							queuePair.releaseSlots(reservedSlots);
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			List<Future<DataResult>> submitted = futures.getResults();
+			for (int j = 0; j < submitted.size(); j++) {
+				NvmfDataNodeUtils.awaitQuietly(submitted.get(j));
+			}
+			release(futures);
+			throw e;
+		}
+		return futures;
+	}
+
+	/*
+	 * Gathers the buffers straight into the sector aligned image of the range, which then
+	 * takes the same path as an unaligned write of a single buffer.
+	 */
+	private Future<DataResult> gatherWrite(ByteBuffer[] buffers, int length, BlockInfo remoteMr, long remoteOffset,
+										   Priority priority) throws IOException {
+		checkRange(remoteMr, remoteOffset, length);
+		throttle(1, length);
+		if (writeCoalescer != null) {
+			writeCoalescer.flush(remoteMr);
+		}
+		invalidateCaches(remoteMr, remoteOffset, length);
+		if (statistics != null) {
+			statistics.op(Operation.WRITE, length, false);
+		}
+		int alignedLength = (int) NvmfDataNodeUtils.alignLength(sectorSize, remoteOffset, length);
+		ByteBuffer stagingBuffer = getBuffer(alignedLength);
+		stagingBuffer.limit(alignedLength);
+		int offset = (int) NvmfDataNodeUtils.namespaceSectorOffset(sectorSize, remoteOffset);
+		for (int i = 0; i < buffers.length; i++) {
+			stage(buffers[i], stagingBuffer, offset);
+			offset += buffers[i].remaining();
+		}
+		return stagedWrite(stagingBuffer, length, remoteMr, remoteOffset,
+				NvmfDataNodeUtils.linearBlockAddress(remoteMr, remoteOffset, sectorSize), queuePair(remoteMr), false,
+				priority);
+	}
+
+	/*
+	 * Hands a completed future back for reuse by later operations of this endpoint, it must
+	 * not be used afterwards. Futures still in flight are left to the garbage collector.
+	 */
+	public void release(Future<DataResult> future) {
+		if (future instanceof NvmfDataFuture) {
+			((NvmfDataFuture) future).recycle();
+		} else if (future instanceof NvmfDataUnalignedFuture) {
+			((NvmfDataUnalignedFuture) future).recycle();
+		} else if (future instanceof NvmfDataVectorFuture) {
+			// hands back the staging buffer if the read finished, never waits for it
+			future.isDone();
+		} else if (future instanceof NvmfDataBatchFuture) {
+			((NvmfDataBatchFuture) future).recycle(this);
+		}
+	}
+
+	void recycle(NvmfDataBatchFuture batch) {
+		batches.offer(batch);
+	}
+
+	/* called once a write of the sector aligned image completed successfully */
+	void updateTailSector(BlockInfo remoteMr, long endOffset, ByteBuffer image, long imageOffset) {
+		tailSectorCache.update(remoteMr, endOffset, image, imageOffset);
+	}
+
+	/*
+	 * Drops what we know about the last sector of a block, the next unaligned append
+	 * to it reads the sector back first.
+	 */
+	public void invalidateTailSector(BlockInfo remoteMr) {
+		tailSectorCache.invalidate(remoteMr);
+	}
+
+	/* cleared staging buffer with a capacity of at least size bytes */
+	ByteBuffer getBuffer(int size) {
+		return stagingPool.get(size);
+	}
+
+	void putBuffer(ByteBuffer buffer) {
+		stagingPool.put(buffer);
 	}
 
 	public void close() throws IOException, InterruptedException {
-		endpoint.close();
+		if (writeCoalescer != null) {
+			writeCoalescer.close();
+		}
+		tailSectorCache.clear();
+		if (readAhead != null) {
+			readAhead.clear();
+		}
+		if (reaper != null) {
+			reaper.close();
+		}
+		for (NvmfQueuePair queuePair : queuePairs) {
+			queuePair.close();
+		}
+		dispatcher.close();
+		NvmfDataNodeUtils.unregisterMBean(statisticsName);
+	}
+
+	/* null unless crail.datanode.nvmf.statistics is enabled */
+	public NvmfStatistics getStatistics() {
+		return statistics;
+	}
+
+	long getReadAheadHits() {
+		return readAhead != null ? readAhead.getHits() : 0;
+	}
+
+	long getReadAheadMisses() {
+		return readAhead != null ? readAhead.getMisses() : 0;
 	}
 
+	/* true if every namespace connected so far is accessed without going through the fabric */
 	public boolean isLocal() {
-		return false;
+		return local;
 	}
 }
@@ -1,17 +1,71 @@
 package com.ibm.crail.datanode.nvmf.client;
 
+import com.ibm.crail.conf.CrailConstants;
 import com.ibm.crail.namenode.protocol.BlockInfo;
+import com.ibm.crail.utils.CrailUtils;
+import org.slf4j.Logger;
+import sun.misc.Unsafe;
 import sun.nio.ch.DirectBuffer;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.URI;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
 
 /**
  * Created by jpf on 14.02.17.
  */
 public class NvmfDataNodeUtils {
+	private static final Logger LOG = CrailUtils.getLogger();
+
+	static final String MBEAN_DOMAIN = "com.ibm.crail.datanode.nvmf";
+
+	/* looked up once, copies on the unaligned paths must not pay for reflection */
+	private static final Unsafe UNSAFE;
+
+	static {
+		try {
+			Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			UNSAFE = (Unsafe) theUnsafe.get(null);
+		} catch (NoSuchFieldException e) {
+			throw new ExceptionInInitializerError(e);
+		} catch (IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 
 	public static long linearBlockAddress(BlockInfo remoteMr, long remoteOffset, int sectorSize) {
-		return (remoteMr.getAddr() + remoteOffset) / (long)sectorSize;
+		return deviceAddress(remoteMr, remoteOffset) / (long)sectorSize;
+	}
+
+	/*
+	 * A datanode exporting several namespaces stripes its blocks across them, block i
+	 * lives on namespace i % width. There is no memory key for an NVMf block, so the
+	 * datanode registers its blocks with the stripe width as key and the namenode passes it
+	 * through unchanged: getLkey() of an NVMf block is the stripe width, 0 for datanodes with
+	 * a single namespace. Anything that creates NVMf BlockInfos must keep to this.
+	 */
+	public static int stripeWidth(BlockInfo remoteMr) {
+		return Math.max(remoteMr.getLkey(), 1);
+	}
+
+	public static int stripeDevice(BlockInfo remoteMr) {
+		return (int) ((remoteMr.getAddr() / CrailConstants.BLOCK_SIZE) % stripeWidth(remoteMr));
+	}
+
+	/* address within the namespace holding the block */
+	public static long deviceAddress(BlockInfo remoteMr, long remoteOffset) {
+		long block = remoteMr.getAddr() / CrailConstants.BLOCK_SIZE;
+		return (block / stripeWidth(remoteMr)) * CrailConstants.BLOCK_SIZE +
+				remoteMr.getAddr() % CrailConstants.BLOCK_SIZE + remoteOffset;
 	}
 
 	public static long namespaceSectorOffset(int sectorSize, long fileOffset) {
@@ -30,7 +84,93 @@ public class NvmfDataNodeUtils {
 		return fileOffset - namespaceSectorOffset(sectorSize, fileOffset);
 	}
 
+	public static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.clear();
+		slice.position(position);
+		slice.limit(position + length);
+		return slice.slice();
+	}
+
+	/*
+	 * Whether a future of an internal read completed, without polling for it. Safe to call
+	 * while holding locks that the completion path might need.
+	 */
+	static boolean isCompleted(Future<?> future) {
+		if (future instanceof NvmfDataFuture) {
+			return ((NvmfDataFuture) future).isCompleted();
+		}
+		return future.isDone();
+	}
+
+	/*
+	 * Waits for a command that was put in flight before a later submission failed, so that
+	 * no I/O is left behind on buffers the caller gets back. Its outcome is of no interest.
+	 */
+	static void awaitQuietly(Future<?> future) {
+		try {
+			future.get();
+		} catch (Exception e) {
+			// the failure of the later submission is what the caller reports
+		}
+	}
+
+	/* the datanode listens on an address of this host */
+	public static boolean isLocalAddress(InetSocketAddress address) throws IOException {
+		InetAddress inetAddress = address.getAddress();
+		if (inetAddress == null) {
+			return false;
+		}
+		return inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ||
+				NetworkInterface.getByInetAddress(inetAddress) != null;
+	}
+
+	/* index of the namespace a connect url refers to, subsystem cnode(i+1) is namespace i */
+	public static int namespaceIndex(URI url) throws IOException {
+		String query = url.getQuery();
+		int subsystem = query == null ? -1 : query.indexOf("cnode");
+		if (subsystem < 0) {
+			return 0;
+		}
+		int end = subsystem + "cnode".length();
+		while (end < query.length() && Character.isDigit(query.charAt(end))) {
+			end++;
+		}
+		try {
+			return Integer.parseInt(query.substring(subsystem + "cnode".length(), end)) - 1;
+		} catch (NumberFormatException e) {
+			throw new IOException("invalid subsystem in " + url);
+		}
+	}
+
 	public static long getAddress(ByteBuffer buffer) {
 		return ((DirectBuffer)buffer).address();
 	}
+
+	/* monitoring must not keep anybody from doing I/O, failures are only logged */
+	public static ObjectName registerMBean(Object mbean, String type, String name) {
+		try {
+			ObjectName objectName = new ObjectName(MBEAN_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+			return objectName;
+		} catch (JMException e) {
+			LOG.info("could not register " + type + " MBean " + name + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	public static void unregisterMBean(ObjectName objectName) {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			LOG.info("could not unregister MBean " + objectName + ": " + e.getMessage());
+		}
+	}
+
+	public static void copyMemory(long srcAddress, long dstAddress, long length) {
+		UNSAFE.copyMemory(srcAddress, dstAddress, length);
+	}
 }
@@ -0,0 +1,102 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Read served from a prefetched range, the data is copied once the prefetch completed.
+ */
+public class NvmfDataPrefetchedFuture implements Future<DataResult>, DataResult {
+	private final NvmfReadAhead readAhead;
+	private final NvmfReadAhead.Prefetch prefetch;
+	private final ByteBuffer buffer;
+	private final long remoteOffset;
+	private final int len;
+	private boolean done;
+	private Exception exception;
+
+	NvmfDataPrefetchedFuture(NvmfReadAhead readAhead, NvmfReadAhead.Prefetch prefetch, ByteBuffer buffer,
+							 long remoteOffset) {
+		this.readAhead = readAhead;
+		this.prefetch = prefetch;
+		this.buffer = buffer;
+		this.remoteOffset = remoteOffset;
+		this.len = buffer.remaining();
+	}
+
+	public int getLen() {
+		return len;
+	}
+
+	public boolean cancel(boolean b) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public boolean isDone() {
+		if (!done && exception == null && prefetch.getFuture().isDone()) {
+			try {
+				get(0, TimeUnit.NANOSECONDS);
+			} catch (Exception e) {
+				// reported by get()
+			}
+		}
+		return done;
+	}
+
+	public DataResult get() throws InterruptedException, ExecutionException {
+		try {
+			return get(NvmfDataNodeConstants.TIME_OUT, NvmfDataNodeConstants.TIME_UNIT);
+		} catch (TimeoutException e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	public DataResult get(long timeout, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		if (!done) {
+			try {
+				prefetch.getFuture().get(timeout, timeUnit);
+			} catch (ExecutionException e) {
+				exception = e;
+				readAhead.release(prefetch);
+				throw e;
+			}
+			ByteBuffer src = NvmfDataNodeUtils.slice(prefetch.getBuffer(), (int) (remoteOffset - prefetch.getOffset()), len);
+			buffer.duplicate().put(src);
+			readAhead.release(prefetch);
+			done = true;
+		}
+		return this;
+	}
+}
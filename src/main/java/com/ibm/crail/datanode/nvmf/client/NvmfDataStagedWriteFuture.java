@@ -0,0 +1,65 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Unaligned write that did not need to read back its head sector. Once the write completed
+ * its last sector goes to the tail sector cache and the staging buffer is handed back.
+ */
+public class NvmfDataStagedWriteFuture extends NvmfDataUnalignedFuture {
+
+	public NvmfDataStagedWriteFuture(NvmfDataNodeEndpoint endpoint, NvmfDataFuture writeFuture, ByteBuffer buffer,
+									 BlockInfo remoteMr, long remoteOffset, ByteBuffer stagingBuffer) {
+		super(endpoint, writeFuture, buffer, remoteMr, remoteOffset, stagingBuffer);
+	}
+
+	NvmfDataStagedWriteFuture(NvmfDataNodeEndpoint endpoint) {
+		super(endpoint);
+	}
+
+	public DataResult get(long l, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+		checkReleased();
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		if (!done) {
+			try {
+				initFuture.get(l, timeUnit);
+			} catch (ExecutionException e) {
+				endpoint.invalidateTailSector(remoteMr);
+				throw e;
+			}
+			endpoint.updateTailSector(remoteMr, remoteOffset + len, stagingBuffer,
+					NvmfDataNodeUtils.alignOffset(endpoint.getSectorSize(), remoteOffset));
+			recycle(initFuture);
+			endpoint.putBuffer(stagingBuffer);
+			done = true;
+		}
+		return this;
+	}
+}
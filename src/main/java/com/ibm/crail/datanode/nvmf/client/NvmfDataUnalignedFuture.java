@@ -25,45 +25,95 @@ package com.ibm.crail.datanode.nvmf.client;
 import com.ibm.crail.datanode.DataResult;
 import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
 import com.ibm.crail.namenode.protocol.BlockInfo;
-import com.ibm.disni.nvmef.spdk.IOCompletion;
-import sun.misc.Unsafe;
 
-import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
+/*
+ * Futures of unaligned operations are handed back to their endpoint with release() once they
+ * completed successfully, and reused for later operations like the futures of commands.
+ */
 public abstract class NvmfDataUnalignedFuture implements Future<DataResult>, DataResult  {
-	protected final NvmfDataFuture initFuture;
+	private static final AtomicIntegerFieldUpdater<NvmfDataUnalignedFuture> POOLED =
+			AtomicIntegerFieldUpdater.newUpdater(NvmfDataUnalignedFuture.class, "pooled");
+
 	protected final NvmfDataNodeEndpoint endpoint;
-	protected final ByteBuffer buffer;
-	protected final long localOffset;
-	protected final BlockInfo remoteMr;
-	protected final long remoteOffset;
-	protected final int len;
-	protected final ByteBuffer stagingBuffer;
+	protected NvmfDataFuture initFuture;
+	protected ByteBuffer buffer;
+	protected long localOffset;
+	protected BlockInfo remoteMr;
+	protected long remoteOffset;
+	protected int len;
+	protected ByteBuffer stagingBuffer;
 	protected boolean done;
 	protected Exception exception;
-	protected Unsafe unsafe;
+	/* 1 once handed back to the pool, only one release wins */
+	private volatile int pooled;
+
+	public NvmfDataUnalignedFuture(NvmfDataNodeEndpoint endpoint, NvmfDataFuture initFuture, ByteBuffer buffer,
+								   BlockInfo remoteMr, long remoteOffset, ByteBuffer stagingBuffer) {
+		this.endpoint = endpoint;
+		init(initFuture, buffer, remoteMr, remoteOffset, stagingBuffer);
+	}
 
-	public NvmfDataUnalignedFuture(NvmfDataNodeEndpoint endpoint, IOCompletion completion, ByteBuffer buffer,
-								   BlockInfo remoteMr, long remoteOffset, ByteBuffer stagingBuffer)
-			throws NoSuchFieldException, IllegalAccessException {
-		this.initFuture = new NvmfDataFuture(endpoint, completion, buffer.remaining());
+	/* pooled by the endpoint, initialized by the operation using it */
+	protected NvmfDataUnalignedFuture(NvmfDataNodeEndpoint endpoint) {
 		this.endpoint = endpoint;
+		this.pooled = 1;
+	}
+
+	/* (re)initializes the future for a new operation */
+	final void init(NvmfDataFuture initFuture, ByteBuffer buffer, BlockInfo remoteMr, long remoteOffset,
+					ByteBuffer stagingBuffer) {
+		init(initFuture, buffer.remaining(), remoteMr, remoteOffset, stagingBuffer);
 		this.buffer = buffer;
 		this.localOffset = buffer.position();
+	}
+
+	/* for writes whose data was copied to the staging buffer already */
+	final void init(NvmfDataFuture initFuture, int len, BlockInfo remoteMr, long remoteOffset,
+					ByteBuffer stagingBuffer) {
+		this.initFuture = initFuture;
+		this.buffer = null;
+		this.localOffset = 0;
 		this.remoteMr = remoteMr;
 		this.remoteOffset = remoteOffset;
-		this.len = buffer.remaining();
+		this.len = len;
 		this.stagingBuffer = stagingBuffer;
-		this.unsafe = getUnsafe();
-		done = false;
+		this.done = false;
+		this.exception = null;
+		this.pooled = 0;
+		reset();
+	}
+
+	/* clears the state of the subclass left from the previous operation */
+	protected void reset() {
+	}
+
+	/* hands the future back to its endpoint if it completed successfully */
+	void recycle() {
+		if (done && POOLED.compareAndSet(this, 0, 1)) {
+			initFuture = null;
+			buffer = null;
+			remoteMr = null;
+			stagingBuffer = null;
+			endpoint.recycle(this);
+		}
+	}
+
+	/* a released future may already belong to another operation */
+	protected void checkReleased() {
+		if (pooled != 0) {
+			throw new IllegalStateException("future used after it was released");
+		}
 	}
 
 	public boolean isDone() {
+		checkReleased();
 		if (!done) {
 			try {
 				get(0, TimeUnit.NANOSECONDS);
@@ -98,10 +148,10 @@ public abstract class NvmfDataUnalignedFuture implements Future<DataResult>, Dat
 		}
 	}
 
-	private Unsafe getUnsafe() throws NoSuchFieldException, IllegalAccessException {
-		Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
-		theUnsafe.setAccessible(true);
-		Unsafe unsafe = (Unsafe) theUnsafe.get(null);
-		return unsafe;
+	/* the parts of an unaligned operation are not visible to the user, recycle them when done */
+	protected static void recycle(NvmfDataFuture future) {
+		if (future != null) {
+			future.recycle();
+		}
 	}
 }
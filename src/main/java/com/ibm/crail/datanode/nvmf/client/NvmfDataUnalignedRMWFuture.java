@@ -24,7 +24,6 @@ package com.ibm.crail.datanode.nvmf.client;
 
 import com.ibm.crail.datanode.DataResult;
 import com.ibm.crail.namenode.protocol.BlockInfo;
-import com.ibm.disni.nvmef.spdk.IOCompletion;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -33,47 +32,83 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+/*
+ * Unaligned write whose head sector has to be read back first. The staging buffer either
+ * holds the data already and the head sector is read into a buffer of its own, of which only
+ * the bytes before the data are copied, or the head sector is read into the staging buffer
+ * and the data of the user buffer is copied behind it.
+ */
 public class NvmfDataUnalignedRMWFuture extends NvmfDataUnalignedFuture {
 
 	private boolean initDone;
 	private Future<DataResult> writeFuture;
+	/* null if the head sector is read into the staging buffer */
+	private ByteBuffer headBuffer;
 
-	public NvmfDataUnalignedRMWFuture(NvmfDataNodeEndpoint endpoint, IOCompletion completion, ByteBuffer buffer,
-									  BlockInfo remoteMr, long remoteOffset, ByteBuffer stagingBuffer)
-			throws NoSuchFieldException, IllegalAccessException {
-		super(endpoint, completion, buffer, remoteMr, remoteOffset, stagingBuffer);
+	public NvmfDataUnalignedRMWFuture(NvmfDataNodeEndpoint endpoint, NvmfDataFuture readFuture, ByteBuffer buffer,
+									  BlockInfo remoteMr, long remoteOffset, ByteBuffer stagingBuffer) {
+		super(endpoint, readFuture, buffer, remoteMr, remoteOffset, stagingBuffer);
+	}
+
+	NvmfDataUnalignedRMWFuture(NvmfDataNodeEndpoint endpoint) {
+		super(endpoint);
+	}
+
+	void init(NvmfDataFuture readFuture, int len, BlockInfo remoteMr, long remoteOffset, ByteBuffer stagingBuffer,
+			  ByteBuffer headBuffer) {
+		init(readFuture, len, remoteMr, remoteOffset, stagingBuffer);
+		this.headBuffer = headBuffer;
+	}
+
+	protected void reset() {
 		initDone = false;
+		writeFuture = null;
+		headBuffer = null;
 	}
 
 	public DataResult get(long l, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+		checkReleased();
 		if (exception != null) {
 			throw new ExecutionException(exception);
 		}
 		if (!done) {
 			if (!initDone) {
 				initFuture.get(l, timeUnit);
-				long srcAddr = NvmfDataNodeUtils.getAddress(buffer) + localOffset;
-				long dstAddr = NvmfDataNodeUtils.getAddress(stagingBuffer) + NvmfDataNodeUtils.namespaceSectorOffset(
-						endpoint.getSectorSize(), remoteOffset);
-				unsafe.copyMemory(srcAddr, dstAddr, len);
+				int sectorOffset = (int) NvmfDataNodeUtils.namespaceSectorOffset(endpoint.getSectorSize(),
+						remoteOffset);
+				if (headBuffer != null) {
+					NvmfDataNodeUtils.copyMemory(NvmfDataNodeUtils.getAddress(headBuffer),
+							NvmfDataNodeUtils.getAddress(stagingBuffer), sectorOffset);
+					endpoint.putBuffer(headBuffer);
+					headBuffer = null;
+				} else {
+					NvmfDataNodeUtils.copyMemory(NvmfDataNodeUtils.getAddress(buffer) + localOffset,
+							NvmfDataNodeUtils.getAddress(stagingBuffer) + sectorOffset, len);
+				}
+				recycle(initFuture);
 
 				stagingBuffer.clear();
 				int alignedLen = (int) NvmfDataNodeUtils.alignLength(endpoint.getSectorSize(), remoteOffset, len);
 				stagingBuffer.limit(alignedLen);
+				long alignedOffset = NvmfDataNodeUtils.alignOffset(endpoint.getSectorSize(), remoteOffset);
 				try {
-					writeFuture = endpoint.write(stagingBuffer, null, remoteMr,
-							NvmfDataNodeUtils.alignOffset(endpoint.getSectorSize(), remoteOffset));
+					writeFuture = endpoint.submitWrite(stagingBuffer, remoteMr, alignedOffset);
 				} catch (IOException e) {
 					throw new ExecutionException(e);
 				}
 				initDone =true;
 			}
-			writeFuture.get(l, timeUnit);
 			try {
-				endpoint.putBuffer(stagingBuffer);
-			} catch (IOException e) {
-				throw new ExecutionException(e);
+				writeFuture.get(l, timeUnit);
+			} catch (ExecutionException e) {
+				endpoint.invalidateTailSector(remoteMr);
+				throw e;
 			}
+			endpoint.updateTailSector(remoteMr, remoteOffset + len, stagingBuffer,
+					NvmfDataNodeUtils.alignOffset(endpoint.getSectorSize(), remoteOffset));
+			endpoint.release(writeFuture);
+			writeFuture = null;
+			endpoint.putBuffer(stagingBuffer);
 			done = true;
 		}
 		return this;
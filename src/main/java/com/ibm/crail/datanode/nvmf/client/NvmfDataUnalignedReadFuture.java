@@ -24,39 +24,117 @@ package com.ibm.crail.datanode.nvmf.client;
 
 import com.ibm.crail.datanode.DataResult;
 import com.ibm.crail.namenode.protocol.BlockInfo;
-import com.ibm.disni.nvmef.spdk.IOCompletion;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+/*
+ * The init future reads the staged head sector (or the whole range if it spans no full
+ * sector), the interior future reads directly into the user buffer and the tail future
+ * reads the staged tail sector. Only the head and tail bytes are copied.
+ */
 public class NvmfDataUnalignedReadFuture extends NvmfDataUnalignedFuture {
 
-	public NvmfDataUnalignedReadFuture(NvmfDataNodeEndpoint endpoint, IOCompletion completion, ByteBuffer buffer,
-									   BlockInfo remoteMr, long remoteOffset, ByteBuffer stagingBuffer)
-			throws NoSuchFieldException, IllegalAccessException {
-		super(endpoint, completion, buffer, remoteMr, remoteOffset, stagingBuffer);
+	private int headLength;
+	private NvmfDataFuture interiorFuture;
+	private NvmfDataFuture tailFuture;
+	private int tailLength;
+	private ByteBuffer tailBuffer;
+	/* view of the interior of the last user buffer, kept while the future is pooled */
+	private ByteBuffer interior;
+
+	public NvmfDataUnalignedReadFuture(NvmfDataNodeEndpoint endpoint, NvmfDataFuture headFuture, int headLength,
+									   NvmfDataFuture interiorFuture, NvmfDataFuture tailFuture, int tailLength,
+									   ByteBuffer buffer, BlockInfo remoteMr, long remoteOffset, ByteBuffer stagingBuffer,
+									   ByteBuffer tailBuffer) {
+		super(endpoint, headFuture, buffer, remoteMr, remoteOffset, stagingBuffer);
+		init(headLength, interiorFuture, tailFuture, tailLength, tailBuffer);
+	}
+
+	NvmfDataUnalignedReadFuture(NvmfDataNodeEndpoint endpoint) {
+		super(endpoint);
+	}
+
+	void init(int headLength, NvmfDataFuture interiorFuture, NvmfDataFuture tailFuture, int tailLength,
+			  ByteBuffer tailBuffer) {
+		this.headLength = headLength;
+		this.interiorFuture = interiorFuture;
+		this.tailFuture = tailFuture;
+		this.tailLength = tailLength;
+		this.tailBuffer = tailBuffer;
+	}
+
+	/* reuses the view of the previous read if it covers the same memory */
+	ByteBuffer interior(ByteBuffer buffer, int position, int length) {
+		if (interior == null || interior.capacity() != length ||
+				NvmfDataNodeUtils.getAddress(interior) != NvmfDataNodeUtils.getAddress(buffer) + position) {
+			interior = NvmfDataNodeUtils.slice(buffer, position, length);
+		} else {
+			interior.clear();
+		}
+		return interior;
 	}
 
 	public DataResult get(long l, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+		checkReleased();
 		if (exception != null) {
 			throw new ExecutionException(exception);
 		}
 		if (!done) {
-			initFuture.get(l, timeUnit);
-			long srcAddr = NvmfDataNodeUtils.getAddress(stagingBuffer) +
-					NvmfDataNodeUtils.namespaceSectorOffset(endpoint.getSectorSize(), remoteOffset);
-			long dstAddr = NvmfDataNodeUtils.getAddress(buffer) + localOffset;
-			unsafe.copyMemory(srcAddr, dstAddr, len);
-			done = true;
 			try {
-				endpoint.putBuffer(stagingBuffer);
-			} catch (IOException e) {
-				throw new ExecutionException(e);
+				if (initFuture != null) {
+					initFuture.get(l, timeUnit);
+				}
+				if (interiorFuture != null) {
+					interiorFuture.get(l, timeUnit);
+				}
+				if (tailFuture != null) {
+					tailFuture.get(l, timeUnit);
+				}
+			} catch (ExecutionException e) {
+				// the other parts may still read into the staging buffers, they go back once they are done
+				for (NvmfDataFuture part : new NvmfDataFuture[]{initFuture, interiorFuture, tailFuture}) {
+					if (part != null) {
+						NvmfDataNodeUtils.awaitQuietly(part);
+					}
+				}
+				release();
+				exception = e;
+				throw e;
+			}
+			long dstAddr = NvmfDataNodeUtils.getAddress(buffer) + localOffset;
+			if (headLength > 0) {
+				long srcAddr = NvmfDataNodeUtils.getAddress(stagingBuffer) +
+						NvmfDataNodeUtils.namespaceSectorOffset(endpoint.getSectorSize(), remoteOffset);
+				NvmfDataNodeUtils.copyMemory(srcAddr, dstAddr, headLength);
+			}
+			if (tailLength > 0) {
+				NvmfDataNodeUtils.copyMemory(NvmfDataNodeUtils.getAddress(tailBuffer), dstAddr + len - tailLength,
+						tailLength);
 			}
+			release();
+			done = true;
 		}
 		return this;
 	}
+
+	/* hands the parts and staging buffers back, whether the read succeeded or failed */
+	private void release() {
+		recycle(initFuture);
+		recycle(interiorFuture);
+		recycle(tailFuture);
+		initFuture = null;
+		interiorFuture = null;
+		tailFuture = null;
+		if (stagingBuffer != null) {
+			endpoint.putBuffer(stagingBuffer);
+			stagingBuffer = null;
+		}
+		if (tailBuffer != null) {
+			endpoint.putBuffer(tailBuffer);
+			tailBuffer = null;
+		}
+	}
 }
@@ -0,0 +1,122 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Scatter read that went through a staging buffer. The data is scattered into the user
+ * buffers once the staged read completed, the staging buffer is handed back then. Unaligned
+ * gather writes are staged by the endpoint and complete with a regular staged write future.
+ */
+public class NvmfDataVectorFuture implements Future<DataResult>, DataResult {
+	private final NvmfDataNodeEndpoint endpoint;
+	private final Future<DataResult> stagedFuture;
+	/* null if the data stays in the staging buffer */
+	private final ByteBuffer[] buffers;
+	private final ByteBuffer stagingBuffer;
+	private final int len;
+	private boolean done;
+	private Exception exception;
+
+	public NvmfDataVectorFuture(NvmfDataNodeEndpoint endpoint, Future<DataResult> stagedFuture, ByteBuffer[] buffers,
+								ByteBuffer stagingBuffer, int len) {
+		this.endpoint = endpoint;
+		this.stagedFuture = stagedFuture;
+		this.buffers = buffers;
+		this.stagingBuffer = stagingBuffer;
+		this.len = len;
+		this.done = false;
+	}
+
+	public int getLen() {
+		return len;
+	}
+
+	public boolean cancel(boolean b) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public boolean isDone() {
+		if (!done) {
+			try {
+				get(0, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				exception = e;
+			} catch (ExecutionException e) {
+				exception = e;
+			} catch (TimeoutException e) {
+				// i.e. operation is not finished
+			}
+		}
+		return done;
+	}
+
+	public DataResult get() throws InterruptedException, ExecutionException {
+		try {
+			return get(NvmfDataNodeConstants.TIME_OUT, NvmfDataNodeConstants.TIME_UNIT);
+		} catch (TimeoutException e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	public DataResult get(long timeout, TimeUnit timeUnit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		if (!done) {
+			try {
+				stagedFuture.get(timeout, timeUnit);
+			} catch (ExecutionException e) {
+				exception = e;
+				complete();
+				throw e;
+			}
+			if (buffers != null) {
+				int offset = 0;
+				for (ByteBuffer buffer : buffers) {
+					int length = buffer.remaining();
+					buffer.duplicate().put(NvmfDataNodeUtils.slice(stagingBuffer, offset, length));
+					offset += length;
+				}
+			}
+			complete();
+		}
+		return this;
+	}
+
+	private void complete() {
+		endpoint.release(stagedFuture);
+		endpoint.putBuffer(stagingBuffer);
+		done = true;
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+/*
+ * One I/O queue pair to a namespace, the part of DiSNI's NvmeEndpoint the client uses.
+ * Implementations need not be thread safe, NvmfQueuePair serializes all calls.
+ * Commands complete asynchronously, their completions are reaped by processCompletions.
+ */
+public interface NvmfDevice {
+
+	/* connects one queue pair per call, url is nvmef://host:port/0/namespace?subsystem=... */
+	interface Factory {
+		NvmfDevice connect(URI url) throws IOException;
+	}
+
+	int getSectorSize();
+
+	int getIOQueueSize();
+
+	long getNamespaceSize();
+
+	/* largest transfer of a single command in bytes, 0 if not limited */
+	int getMaxTransferSize();
+
+	NvmfCompletion read(ByteBuffer buffer, long lba) throws IOException;
+
+	NvmfCompletion write(ByteBuffer buffer, long lba) throws IOException;
+
+	/* true if a command can transfer to and from several buffers (SGL) */
+	boolean supportsScatterGather();
+
+	/* one command over all buffers, only if supportsScatterGather() */
+	NvmfCompletion read(ByteBuffer[] buffers, long lba) throws IOException;
+
+	NvmfCompletion write(ByteBuffer[] buffers, long lba) throws IOException;
+
+	/* processes up to max completions and returns how many were processed */
+	int processCompletions(int max) throws IOException;
+
+	void close() throws IOException;
+}
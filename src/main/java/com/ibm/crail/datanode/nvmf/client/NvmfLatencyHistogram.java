@@ -0,0 +1,159 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Lock-free latency histogram with log-linear buckets in the spirit of HdrHistogram:
+ * every power of two is split into 8 linear sub-buckets, i.e. values are recorded with
+ * a relative error below 12.5%. Covers up to 2^40 ns, larger values land in the last bucket.
+ */
+public class NvmfLatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;
+
+	private final AtomicLongArray counts;
+	private final LongAdder sum;
+
+	public NvmfLatencyHistogram() {
+		this.counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+		this.sum = new LongAdder();
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(Math.min(index(nanos), counts.length() - 1));
+		sum.add(nanos);
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	static long lowerBound(int index) {
+		int bucket = index / SUB_BUCKETS;
+		int subBucket = index % SUB_BUCKETS;
+		if (bucket == 0) {
+			return subBucket;
+		}
+		return (long) (SUB_BUCKETS + subBucket) << (bucket - 1);
+	}
+
+	public Snapshot snapshot() {
+		long[] copy = new long[counts.length()];
+		long count = 0;
+		int last = 0;
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = counts.get(i);
+			count += copy[i];
+			if (copy[i] > 0) {
+				last = i;
+			}
+		}
+		long max = count == 0 ? 0 : lowerBound(last + 1) - 1;
+		return new Snapshot(count, count == 0 ? 0 : sum.sum() / count,
+				percentile(copy, count, 0.5), percentile(copy, count, 0.9),
+				percentile(copy, count, 0.99), percentile(copy, count, 0.999), max);
+	}
+
+	/* upper bound of the bucket holding the given percentile */
+	private static long percentile(long[] counts, long count, double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile * count);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return lowerBound(i + 1) - 1;
+			}
+		}
+		return lowerBound(counts.length) - 1;
+	}
+
+	/* point in time view of a histogram, all values in nanoseconds */
+	public static class Snapshot {
+		private final long count;
+		private final long mean;
+		private final long p50;
+		private final long p90;
+		private final long p99;
+		private final long p999;
+		private final long max;
+
+		@ConstructorProperties({"count", "mean", "p50", "p90", "p99", "p999", "max"})
+		public Snapshot(long count, long mean, long p50, long p90, long p99, long p999, long max) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.p999 = p999;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMean() {
+			return mean;
+		}
+
+		public long getP50() {
+			return p50;
+		}
+
+		public long getP90() {
+			return p90;
+		}
+
+		public long getP99() {
+			return p99;
+		}
+
+		public long getP999() {
+			return p999;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "count " + count + ", mean " + mean + ", p50 " + p50 + ", p90 " + p90 + ", p99 " + p99 +
+					", p99.9 " + p999 + ", max " + max;
+		}
+	}
+}
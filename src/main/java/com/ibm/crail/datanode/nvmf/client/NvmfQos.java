@@ -0,0 +1,124 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * IOPS and bandwidth limits of a client, shared by all of its endpoints. Every operation that
+ * goes to a device takes a token and its bytes from the token buckets before it is submitted,
+ * and the submitting thread waits while a bucket is in debt. Reads served by the
+ * block cache or read-ahead do not touch the device and are not limited. Prefetches and
+ * cache fills are, writes gathered by the coalescer count when the application issues them.
+ * The endpoint throttles before taking any lock of its caches or the coalescer.
+ */
+public class NvmfQos implements NvmfQosMXBean {
+	private final String tenant;
+	/* null if not limited */
+	private final NvmfTokenBucket operations;
+	private final NvmfTokenBucket bytes;
+	private final LongAdder operationCount;
+	private final LongAdder byteCount;
+	private final LongAdder throttledOperations;
+	private final LongAdder throttledNanos;
+
+	/* iops in operations per second, bandwidth in bytes per second, 0 = unlimited */
+	public NvmfQos(String tenant, long iops, long bandwidth, long burstMs) {
+		this.tenant = tenant;
+		this.operations = iops > 0 ? new NvmfTokenBucket(iops, burst(iops, burstMs)) : null;
+		this.bytes = bandwidth > 0 ? new NvmfTokenBucket(bandwidth, burst(bandwidth, burstMs)) : null;
+		this.operationCount = new LongAdder();
+		this.byteCount = new LongAdder();
+		this.throttledOperations = new LongAdder();
+		this.throttledNanos = new LongAdder();
+	}
+
+	private static long burst(long rate, long burstMs) {
+		return Math.max(rate * burstMs / 1000, 1);
+	}
+
+	/* waits until the limits admit the given number of operations and bytes */
+	void throttle(int count, long length) {
+		operationCount.add(count);
+		byteCount.add(length);
+		long waitNanos = 0;
+		if (operations != null) {
+			waitNanos = operations.take(count);
+		}
+		if (bytes != null) {
+			waitNanos = Math.max(waitNanos, bytes.take(length));
+		}
+		if (waitNanos > 0) {
+			throttledOperations.add(count);
+			throttledNanos.add(waitNanos);
+			long deadline = System.nanoTime() + waitNanos;
+			while (waitNanos > 0) {
+				LockSupport.parkNanos(this, waitNanos);
+				waitNanos = deadline - System.nanoTime();
+			}
+		}
+	}
+
+	public String getTenant() {
+		return tenant;
+	}
+
+	public long getIopsLimit() {
+		return operations != null ? operations.getRate() : 0;
+	}
+
+	public long getBandwidthLimit() {
+		return bytes != null ? bytes.getRate() : 0;
+	}
+
+	public long getIopsBurst() {
+		return operations != null ? operations.getBurst() : 0;
+	}
+
+	public long getBandwidthBurst() {
+		return bytes != null ? bytes.getBurst() : 0;
+	}
+
+	public long getAvailableOperations() {
+		return operations != null ? operations.getAvailable() : 0;
+	}
+
+	public long getAvailableBytes() {
+		return bytes != null ? bytes.getAvailable() : 0;
+	}
+
+	public long getOperations() {
+		return operationCount.sum();
+	}
+
+	public long getBytes() {
+		return byteCount.sum();
+	}
+
+	public long getThrottledOperations() {
+		return throttledOperations.sum();
+	}
+
+	public long getThrottledTime() {
+		return TimeUnit.NANOSECONDS.toMicros(throttledNanos.sum());
+	}
+}
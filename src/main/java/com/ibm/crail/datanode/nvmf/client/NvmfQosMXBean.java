@@ -0,0 +1,50 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+/* JMX view of the I/O limits of a client and how often they held it back */
+public interface NvmfQosMXBean {
+
+	String getTenant();
+
+	/* operations per second, 0 = unlimited */
+	long getIopsLimit();
+
+	/* bytes per second, 0 = unlimited */
+	long getBandwidthLimit();
+
+	long getIopsBurst();
+
+	long getBandwidthBurst();
+
+	/* unused burst allowance, negative while operations wait for the limit */
+	long getAvailableOperations();
+
+	long getAvailableBytes();
+
+	long getOperations();
+
+	long getBytes();
+
+	long getThrottledOperations();
+
+	/* total time operations were held back, in microseconds */
+	long getThrottledTime();
+}
@@ -0,0 +1,621 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeEndpoint.Operation;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeEndpoint.Priority;
+import com.ibm.crail.utils.CrailUtils;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * One NVMf I/O queue pair to a datanode together with its in-flight window.
+ * SPDK queue pairs must not be used concurrently, submission and completion
+ * processing are therefore serialized on the queue pair. With thread affinity
+ * in NvmfDataNodeEndpoint this lock is uncontended.
+ *
+ * A shared queue pair is instead owned by a poller thread. Application threads put
+ * their commands into a lock-free submission ring, the poller submits them and reaps
+ * completions, waiting threads only watch their completion.
+ *
+ * Commands are either latency or bulk commands. Bulk commands leave a share of the
+ * in-flight window to latency commands, and a shared queue pair keeps a submission ring
+ * per class that the poller drains weighted round robin.
+ */
+public class NvmfQueuePair {
+	private static final Logger LOG = CrailUtils.getLogger();
+
+	/* back-off while the in-flight window is full and no completions arrive */
+	private static final int ADMISSION_SPINS = 64;
+	private static final long ADMISSION_MAX_PARK_NS = 64 * 1024;
+	/* polls of the poller thread without progress before it yields */
+	private static final int POLLER_SPINS = 256;
+
+	private final NvmfDevice device;
+	private final int queueDepth;
+	/* commands larger than this are split, 0 = no limit */
+	private final int maxTransferSize;
+	/* free slots of the in-flight window */
+	private final AtomicInteger available;
+	/* slots bulk commands cannot take */
+	private final int latencySlots;
+	private final NvmfWaitStrategy waitStrategy;
+	private final Set<Thread> waiters;
+	private NvmfCompletionReaper reaper;
+	private Runnable completionListener;
+	private NvmfAsyncDispatcher dispatcher;
+	/* futures of asynchronous operations in flight, at most one per command */
+	private final ConcurrentLinkedQueue<NvmfDataFuture> listened;
+	private NvmfStatistics statistics;
+	/* recycled futures, never more than commands can be in flight */
+	private final NvmfRing<NvmfDataFuture> futurePool;
+	/*
+	 * Commands whose submission to completion is measured, checked right after completions
+	 * are processed. Completed commands may linger until then while new ones come in, which
+	 * the ring leaves room for; commands that find it full are recorded when recycled.
+	 */
+	private final NvmfRing<NvmfDataFuture> timedFutures;
+	/* shared mode only */
+	private final NvmfRing<NvmfDataFuture> latencySubmissions;
+	private final NvmfRing<NvmfDataFuture> bulkSubmissions;
+	private final Thread poller;
+	private volatile boolean pollerIdle;
+	private volatile boolean running;
+	/* set once the poller failed, commands in flight then never complete */
+	private volatile IOException failure;
+
+	public NvmfQueuePair(NvmfDevice device, String name, NvmfWaitStrategy waitStrategy, boolean shared) {
+		this.device = device;
+		int ioQueueSize = device.getIOQueueSize();
+		if (NvmfDataNodeConstants.QUEUE_DEPTH > 0) {
+			queueDepth = Math.min(NvmfDataNodeConstants.QUEUE_DEPTH, ioQueueSize);
+		} else {
+			queueDepth = ioQueueSize;
+		}
+		maxTransferSize = maxTransferSize(device);
+		available = new AtomicInteger(queueDepth);
+		latencySlots = latencySlots(queueDepth);
+		futurePool = new NvmfRing<NvmfDataFuture>(queueDepth);
+		timedFutures = new NvmfRing<NvmfDataFuture>(2 * queueDepth);
+		this.waitStrategy = waitStrategy;
+		this.waiters = ConcurrentHashMap.newKeySet();
+		this.listened = new ConcurrentLinkedQueue<NvmfDataFuture>();
+		if (shared) {
+			// every queued command holds a slot of the window, the rings never overflow
+			latencySubmissions = new NvmfRing<NvmfDataFuture>(queueDepth);
+			bulkSubmissions = new NvmfRing<NvmfDataFuture>(queueDepth);
+			running = true;
+			poller = new Thread(new Runnable() {
+				public void run() {
+					runPoller();
+				}
+			}, "nvmf-poller-" + name);
+			poller.setDaemon(true);
+			poller.start();
+		} else {
+			latencySubmissions = null;
+			bulkSubmissions = null;
+			poller = null;
+		}
+	}
+
+	/* the limit of the controller, lowered to transfersize if configured, in whole sectors */
+	private static int maxTransferSize(NvmfDevice device) {
+		int maxTransferSize = device.getMaxTransferSize();
+		if (NvmfDataNodeConstants.TRANSFER_SIZE > 0 &&
+				(maxTransferSize <= 0 || NvmfDataNodeConstants.TRANSFER_SIZE < maxTransferSize)) {
+			maxTransferSize = NvmfDataNodeConstants.TRANSFER_SIZE;
+		}
+		if (maxTransferSize <= 0) {
+			return 0;
+		}
+		int sectorSize = device.getSectorSize();
+		return Math.max(maxTransferSize / sectorSize, 1) * sectorSize;
+	}
+
+	/* latencyshare percent of the window, at least one slot if enabled, bulk keeps one slot */
+	private static int latencySlots(int queueDepth) {
+		if (NvmfDataNodeConstants.LATENCY_SHARE == 0 || queueDepth < 2) {
+			return 0;
+		}
+		int slots = Math.max(queueDepth * NvmfDataNodeConstants.LATENCY_SHARE / 100, 1);
+		return Math.min(slots, queueDepth - 1);
+	}
+
+	void setReaper(NvmfCompletionReaper reaper) {
+		this.reaper = reaper;
+	}
+
+	void setDispatcher(NvmfAsyncDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	/* run after every poll that processed completions, outside of the queue pair lock */
+	void setCompletionListener(Runnable completionListener) {
+		this.completionListener = completionListener;
+	}
+
+	void setStatistics(NvmfStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	NvmfStatistics getStatistics() {
+		return statistics;
+	}
+
+	NvmfWaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public int getSectorSize() {
+		return device.getSectorSize();
+	}
+
+	public long getNamespaceSize() {
+		return device.getNamespaceSize();
+	}
+
+	public int getMaxTransferSize() {
+		return maxTransferSize;
+	}
+
+	/* slots of the in-flight window commands of this class can use */
+	public int getWindow(Priority priority) {
+		return priority == Priority.BULK ? queueDepth - latencySlots : queueDepth;
+	}
+
+	public int getInFlight() {
+		return queueDepth - available.get();
+	}
+
+	public boolean isShared() {
+		return poller != null;
+	}
+
+	/*
+	 * Admission control: every command needs a slot in the in-flight window. Completions are
+	 * only reaped when the window is full, and if none are available we back off instead of
+	 * hammering the completion queue. A slot reserved up front is handed over with the call,
+	 * if the command cannot be submitted the slot is given back here, so callers account for
+	 * it exactly once. If a later chunk or buffer of a split command fails, the parts already
+	 * in flight are waited for before rethrowing.
+	 */
+	NvmfDataFuture submit(Operation op, ByteBuffer buffer, long lba, boolean reserved, int len, Priority priority)
+			throws IOException {
+		if (maxTransferSize > 0 && buffer.remaining() > maxTransferSize) {
+			return submitChunks(op, buffer, lba, reserved, len, priority);
+		}
+		return submitOne(op, buffer, null, lba, reserved, len, priority);
+	}
+
+	/*
+	 * Transfers to or from several buffers of whole sectors. With scatter/gather support of
+	 * the device this is one command, otherwise every buffer gets its own command and they
+	 * are chained like the chunks of a split command.
+	 */
+	NvmfDataFuture submit(Operation op, ByteBuffer[] buffers, long lba, int len, Priority priority)
+			throws IOException {
+		int length = 0;
+		for (ByteBuffer buffer : buffers) {
+			length += buffer.remaining();
+		}
+		if (device.supportsScatterGather() && (maxTransferSize == 0 || length <= maxTransferSize)) {
+			return submitOne(op, null, buffers, lba, false, len, priority);
+		}
+		int sectorSize = device.getSectorSize();
+		NvmfDataFuture head = null;
+		NvmfDataFuture tail = null;
+		for (ByteBuffer buffer : buffers) {
+			if (!buffer.hasRemaining()) {
+				continue;
+			}
+			NvmfDataFuture future;
+			try {
+				future = submit(op, buffer, lba, false, head == null ? len : buffer.remaining(), priority);
+			} catch (IOException e) {
+				if (head != null) {
+					NvmfDataNodeUtils.awaitQuietly(head);
+				}
+				throw e;
+			}
+			lba += buffer.remaining() / sectorSize;
+			if (head == null) {
+				head = future;
+			} else {
+				tail.setNext(future);
+			}
+			tail = future;
+			while (tail.getNext() != null) {
+				tail = tail.getNext();
+			}
+		}
+		return head;
+	}
+
+	/*
+	 * Commands beyond the maximum transfer size are split into chunks that are all put in
+	 * flight, subject to the window like any other command. Only the first chunk can use
+	 * a reserved slot. The returned future is the first chunk, it completes with the last.
+	 */
+	private NvmfDataFuture submitChunks(Operation op, ByteBuffer buffer, long lba, boolean reserved, int len,
+										Priority priority) throws IOException {
+		int length = buffer.remaining();
+		int sectorSize = device.getSectorSize();
+		NvmfDataFuture head = null;
+		NvmfDataFuture tail = null;
+		for (int offset = 0; offset < length; offset += maxTransferSize) {
+			int chunkLength = Math.min(maxTransferSize, length - offset);
+			ByteBuffer chunk = NvmfDataNodeUtils.slice(buffer, buffer.position() + offset, chunkLength);
+			NvmfDataFuture future;
+			try {
+				future = submitOne(op, chunk, null, lba + offset / sectorSize, reserved && head == null,
+						head == null ? len : chunkLength, priority);
+			} catch (IOException e) {
+				if (head != null) {
+					NvmfDataNodeUtils.awaitQuietly(head);
+				}
+				throw e;
+			}
+			if (head == null) {
+				head = future;
+			} else {
+				tail.setNext(future);
+			}
+			tail = future;
+		}
+		return head;
+	}
+
+	private NvmfDataFuture submitOne(Operation op, ByteBuffer buffer, ByteBuffer[] buffers, long lba, boolean reserved,
+									 int len, Priority priority) throws IOException {
+		if (!reserved) {
+			acquireSlots(1, priority);
+		}
+		if (poller != null) {
+			if (failure != null) {
+				releaseSlots(1);
+				throw new IOException("queue pair failed", failure);
+			}
+			// the timer runs from queueing, the poller submits in the order of the rings
+			NvmfDataFuture future = newFuture(null, len, statistics != null ? System.nanoTime() : 0);
+			future.setCommand(op, buffer, buffers, lba);
+			NvmfRing<NvmfDataFuture> submissions = priority == Priority.LATENCY ? latencySubmissions : bulkSubmissions;
+			while (!submissions.offer(future)) {
+				Thread.yield();
+			}
+			if (failure != null) {
+				// the poller is gone, nobody else drains the rings
+				failQueued();
+			} else if (pollerIdle) {
+				LockSupport.unpark(poller);
+			}
+			return future;
+		}
+		long submitTime = statistics != null ? System.nanoTime() : 0;
+		try {
+			// the future is registered before anybody can process the completion of the command
+			synchronized (this) {
+				return newFuture(submitCommand(op, buffer, buffers, lba), len, submitTime);
+			}
+		} catch (IOException e) {
+			releaseSlots(1);
+			throw e;
+		}
+	}
+
+	private NvmfCompletion submitCommand(Operation op, ByteBuffer buffer, ByteBuffer[] buffers, long lba)
+			throws IOException {
+		switch (op) {
+			case READ:
+				return buffers != null ? device.read(buffers, lba) : device.read(buffer, lba);
+			case WRITE:
+				return buffers != null ? device.write(buffers, lba) : device.write(buffer, lba);
+			default:
+				throw new IOException("unknown operation " + op);
+		}
+	}
+
+	/* submitTime is 0 if the command is not timed */
+	NvmfDataFuture newFuture(NvmfCompletion completion, int len, long submitTime) {
+		NvmfDataFuture future = futurePool.poll();
+		if (future == null) {
+			future = new NvmfDataFuture(this, completion, len);
+		} else {
+			future.reset(completion, len);
+		}
+		if (submitTime != 0) {
+			future.setSubmitTime(submitTime);
+			timedFutures.offer(future);
+		}
+		return future;
+	}
+
+	void recycle(NvmfDataFuture future) {
+		futurePool.offer(future);
+	}
+
+	void acquireSlots(int slots, Priority priority) throws IOException {
+		acquireSlots(slots, slots, priority);
+	}
+
+	/*
+	 * Waits until at least min slots are free and takes up to max of them. Batches take what
+	 * is free instead of waiting for a whole wave, so they do not starve behind single ops.
+	 */
+	int acquireSlots(int min, int max, Priority priority) throws IOException {
+		int reserve = priority == Priority.BULK ? latencySlots : 0;
+		int idle = 0;
+		long parkNanos = 1;
+		int slots;
+		while ((slots = tryAcquireSlots(min, max, reserve)) == 0) {
+			if (failure != null) {
+				throw new IOException("queue pair failed", failure);
+			}
+			if (poll() > 0) {
+				idle = 0;
+				parkNanos = 1;
+			} else if (++idle > ADMISSION_SPINS) {
+				LockSupport.parkNanos(parkNanos);
+				parkNanos = Math.min(parkNanos << 1, ADMISSION_MAX_PARK_NS);
+			}
+		}
+		return slots;
+	}
+
+	/* takes between min and max slots as long as at least reserve slots stay free, 0 if it cannot */
+	private int tryAcquireSlots(int min, int max, int reserve) {
+		while (true) {
+			int free = available.get();
+			int slots = Math.min(max, free - reserve);
+			if (slots < min) {
+				return 0;
+			}
+			if (available.compareAndSet(free, free - slots)) {
+				return slots;
+			}
+		}
+	}
+
+	void releaseSlots(int slots) {
+		available.addAndGet(slots);
+	}
+
+	/* processes completions, a no-op for threads other than the poller of a shared queue pair */
+	int poll() throws IOException {
+		if (poller != null && Thread.currentThread() != poller) {
+			return 0;
+		}
+		int numberCompletions;
+		if (poller != null) {
+			// the poller owns the queue pair, the monitor is only taken by batch submitters
+			numberCompletions = device.processCompletions(queueDepth);
+		} else {
+			synchronized (this) {
+				numberCompletions = device.processCompletions(queueDepth);
+			}
+		}
+		if (numberCompletions > 0) {
+			completed(numberCompletions);
+		}
+		return numberCompletions;
+	}
+
+	private void completed(int commands) {
+		releaseSlots(commands);
+		if (statistics != null) {
+			statistics.completions(commands);
+			recordCompletions();
+		}
+		if (!waiters.isEmpty()) {
+			wakeWaiters();
+		}
+		if (!listened.isEmpty()) {
+			dispatchListeners();
+		}
+		if (completionListener != null) {
+			completionListener.run();
+		}
+	}
+
+	/* submission to completion of the timed commands that completed */
+	private void recordCompletions() {
+		long now = System.nanoTime();
+		for (int i = timedFutures.size(); i > 0; i--) {
+			NvmfDataFuture future = timedFutures.poll();
+			if (future == null) {
+				break;
+			}
+			if (!future.recordIfCompleted(now)) {
+				timedFutures.offer(future);
+			}
+		}
+	}
+
+	private void runPoller() {
+		int idle = 0;
+		while (running) {
+			int progress = drainSubmissions();
+			try {
+				progress += poll();
+			} catch (IOException e) {
+				LOG.info("poller of queue pair failed to process completions, failing its commands " +
+						e.getMessage());
+				failure = e;
+				failQueued();
+				// the commands in flight are settled by the failure now
+				completed(0);
+				return;
+			}
+			if (progress > 0) {
+				idle = 0;
+			} else if (available.get() < queueDepth) {
+				// commands in flight or about to be queued
+				if (++idle > POLLER_SPINS) {
+					Thread.yield();
+				}
+			} else {
+				pollerIdle = true;
+				if (latencySubmissions.isEmpty() && bulkSubmissions.isEmpty() && running) {
+					LockSupport.park(this);
+				}
+				pollerIdle = false;
+			}
+		}
+	}
+
+	/*
+	 * Weighted round robin: up to latencyweight latency commands per bulk command while
+	 * both classes are waiting.
+	 */
+	private int drainSubmissions() {
+		int submitted = 0;
+		while (true) {
+			int round = 0;
+			NvmfDataFuture future;
+			while (round < NvmfDataNodeConstants.LATENCY_WEIGHT && (future = latencySubmissions.poll()) != null) {
+				submitQueued(future);
+				round++;
+			}
+			if ((future = bulkSubmissions.poll()) != null) {
+				submitQueued(future);
+				round++;
+			}
+			if (round == 0) {
+				return submitted;
+			}
+			submitted += round;
+		}
+	}
+
+	/* fails the commands still waiting in the submission rings, they owned their slots */
+	private void failQueued() {
+		int failed = 0;
+		NvmfDataFuture future;
+		while ((future = latencySubmissions.poll()) != null || (future = bulkSubmissions.poll()) != null) {
+			future.failed(failure);
+			failed++;
+		}
+		if (failed > 0) {
+			completed(failed);
+		}
+	}
+
+	IOException getFailure() {
+		return failure;
+	}
+
+	private void submitQueued(NvmfDataFuture future) {
+		try {
+			future.submitted(submitCommand(future.getOp(), future.getBuffer(), future.getBuffers(), future.getLba()));
+		} catch (IOException e) {
+			// the command owned its slot
+			future.failed(e);
+			completed(1);
+		}
+	}
+
+	/*
+	 * Parks the calling thread until completions are processed on this queue pair, by the
+	 * reaper, the poller or any other thread polling it. The thread stays registered as a
+	 * waiter until unpark, so the reaper keeps polling for it between its parks.
+	 */
+	void park(NvmfDataFuture future, long nanos) {
+		if (waiters.add(Thread.currentThread()) && reaper != null) {
+			reaper.signal();
+		}
+		if (!future.isCompleted()) {
+			LockSupport.parkNanos(this, nanos);
+		}
+	}
+
+	/* called once the wait of the calling thread is over */
+	void unpark() {
+		waiters.remove(Thread.currentThread());
+	}
+
+	/*
+	 * Hands the listener to the dispatcher once the command of the future completed. Only the
+	 * futures listened for on this queue pair are checked when completions arrive.
+	 */
+	void listen(NvmfDataFuture future, Runnable listener) {
+		future.setListener(listener);
+		listened.add(future);
+		// completions processed before the future was listed
+		if (future.isCompleted()) {
+			listener = future.takeListener();
+			if (listener != null) {
+				listened.remove(future);
+				dispatcher.execute(listener);
+			}
+		}
+	}
+
+	private void dispatchListeners() {
+		Iterator<NvmfDataFuture> iterator = listened.iterator();
+		while (iterator.hasNext()) {
+			NvmfDataFuture future = iterator.next();
+			if (future.isCompleted()) {
+				iterator.remove();
+				Runnable listener = future.takeListener();
+				if (listener != null) {
+					dispatcher.execute(listener);
+				}
+			}
+		}
+	}
+
+	boolean hasWaiters() {
+		return !waiters.isEmpty();
+	}
+
+	void wakeWaiters() {
+		for (Thread waiter : waiters) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	public void close() throws IOException {
+		if (poller != null) {
+			running = false;
+			LockSupport.unpark(poller);
+			try {
+				poller.join();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+		synchronized (this) {
+			device.close();
+		}
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/*
+ * Sequential read-ahead per block. Once two reads of a block follow each other, the range
+ * behind the last read is prefetched into a staging buffer. Reads that fall into a prefetched
+ * range are served by copying from it. When a read moves past the middle of the current
+ * range, the next one is prefetched. The window doubles with every consumed range up to
+ * the configured maximum and is reset on random access. The staging memory held by
+ * prefetches is capped. Streams are keyed by the address of their block, so every BlockInfo
+ * describing the block finds them, a write through any of them included.
+ *
+ * Prefetches are set up under the lock of the read-ahead but submitted after releasing it,
+ * submission may wait for slots in the queue pair or for the I/O limits. Reads only use a
+ * prefetch once it has been submitted.
+ */
+class NvmfReadAhead {
+
+	private static final int MAX_STREAMS = 64;
+
+	static class Prefetch {
+		private final BlockInfo block;
+		private final ByteBuffer buffer;
+		private final long offset;
+		private final int length;
+		private volatile Future<DataResult> future;
+		private boolean failed;
+		private int refs;
+
+		Prefetch(BlockInfo block, ByteBuffer buffer, long offset, int length) {
+			this.block = block;
+			this.buffer = buffer;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		boolean contains(long remoteOffset, int len) {
+			return remoteOffset >= offset && remoteOffset + len <= offset + length;
+		}
+
+		boolean overlaps(long remoteOffset, long len) {
+			return remoteOffset < offset + length && remoteOffset + len > offset;
+		}
+
+		long end() {
+			return offset + length;
+		}
+
+		ByteBuffer getBuffer() {
+			return buffer;
+		}
+
+		long getOffset() {
+			return offset;
+		}
+
+		Future<DataResult> getFuture() {
+			return future;
+		}
+	}
+
+	private static class Stream {
+		private long nextOffset;
+		private int window;
+		private boolean pending;
+		private Prefetch current;
+		private Prefetch next;
+	}
+
+	private final NvmfDataNodeEndpoint endpoint;
+	private final int sectorSize;
+	private final int maxWindow;
+	private final long maxMemory;
+	private final LinkedHashMap<Long, Stream> streams;
+	private final ArrayList<Prefetch> retired;
+	private final ArrayList<Prefetch> unsubmitted;
+	private long memory;
+	private long hits;
+	private long misses;
+
+	NvmfReadAhead(NvmfDataNodeEndpoint endpoint, int sectorSize, int maxWindow, long maxMemory) {
+		this.endpoint = endpoint;
+		this.sectorSize = sectorSize;
+		this.maxWindow = maxWindow;
+		this.maxMemory = maxMemory;
+		this.retired = new ArrayList<Prefetch>();
+		this.unsubmitted = new ArrayList<Prefetch>();
+		this.streams = new LinkedHashMap<Long, Stream>(MAX_STREAMS, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Stream> eldest) {
+				if (size() > MAX_STREAMS) {
+					retire(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/*
+	 * Returns a future serving the read from a prefetched range, or null if the read has to
+	 * go to the device. In that case trigger() must be called once the read is submitted.
+	 */
+	Future<DataResult> read(ByteBuffer buffer, BlockInfo block, long remoteOffset) {
+		Future<DataResult> future = lookup(buffer, block, remoteOffset);
+		submit();
+		return future;
+	}
+
+	void trigger(BlockInfo block) {
+		synchronized (this) {
+			Stream stream = streams.get(block.getAddr());
+			if (stream != null && stream.pending) {
+				stream.pending = false;
+				stream.current = prefetch(block, stream.nextOffset, stream.window);
+			}
+		}
+		submit();
+	}
+
+	private synchronized Future<DataResult> lookup(ByteBuffer buffer, BlockInfo block, long remoteOffset) {
+		reap();
+		int len = buffer.remaining();
+		Stream stream = streams.get(block.getAddr());
+		if (stream == null) {
+			stream = new Stream();
+			stream.nextOffset = remoteOffset + len;
+			stream.window = initialWindow(len);
+			streams.put(block.getAddr(), stream);
+			return null;
+		}
+		boolean sequential = remoteOffset == stream.nextOffset;
+		stream.nextOffset = remoteOffset + len;
+
+		if (stream.current != null && !stream.current.contains(remoteOffset, len) &&
+				stream.next != null && stream.next.contains(remoteOffset, len)) {
+			retire(stream.current);
+			stream.current = stream.next;
+			stream.next = null;
+			stream.window = Math.min(stream.window << 1, maxWindow);
+		}
+		Prefetch prefetch = stream.current;
+		if (prefetch != null && prefetch.contains(remoteOffset, len)) {
+			if (prefetch.future == null) {
+				// still being submitted by another thread, read from the device this time
+				return null;
+			}
+			hits++;
+			if (stream.next == null && remoteOffset + len >= prefetch.offset + prefetch.length / 2) {
+				stream.next = prefetch(block, prefetch.end(), stream.window);
+			}
+			prefetch.refs++;
+			return new NvmfDataPrefetchedFuture(this, prefetch, buffer, remoteOffset);
+		}
+
+		misses++;
+		retire(stream);
+		if (sequential) {
+			stream.pending = true;
+		} else {
+			stream.window = initialWindow(len);
+		}
+		return null;
+	}
+
+	/* drops prefetched data of block overlapping a write */
+	synchronized void invalidate(BlockInfo block, long remoteOffset, long len) {
+		if (streams.isEmpty()) {
+			return;
+		}
+		Stream stream = streams.get(block.getAddr());
+		if (stream == null) {
+			return;
+		}
+		if (stream.current != null && stream.current.overlaps(remoteOffset, len)) {
+			retire(stream.current);
+			stream.current = null;
+		}
+		if (stream.next != null && stream.next.overlaps(remoteOffset, len)) {
+			retire(stream.next);
+			stream.next = null;
+		}
+	}
+
+	synchronized void release(Prefetch prefetch) {
+		prefetch.refs--;
+	}
+
+	/* retires all prefetches and hands their buffers back once they are no longer in flight */
+	void clear() {
+		ArrayList<Prefetch> prefetches;
+		synchronized (this) {
+			for (Stream stream : streams.values()) {
+				retire(stream);
+			}
+			streams.clear();
+			unsubmitted.clear();
+			prefetches = new ArrayList<Prefetch>(retired);
+			retired.clear();
+		}
+		for (Prefetch prefetch : prefetches) {
+			if (prefetch.failed) {
+				continue;
+			}
+			if (prefetch.future != null) {
+				try {
+					prefetch.future.get();
+				} catch (Exception e) {
+					// the buffer is not in use anymore either way
+				}
+				endpoint.release(prefetch.future);
+			}
+			endpoint.putBuffer(prefetch.buffer);
+			synchronized (this) {
+				memory -= prefetch.buffer.capacity();
+			}
+		}
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	private int initialWindow(int len) {
+		long window = Math.min(4L * len, (long) maxWindow);
+		return (int) NvmfDataNodeUtils.alignLength(sectorSize, 0, window);
+	}
+
+	/* sets up a prefetch, it is submitted by submit() once the lock is released */
+	private Prefetch prefetch(BlockInfo block, long remoteOffset, int window) {
+		long start = NvmfDataNodeUtils.alignOffset(sectorSize, remoteOffset);
+		long end = Math.min(start + window, CrailConstants.BLOCK_SIZE);
+		if (end <= start || memory + (end - start) > maxMemory) {
+			return null;
+		}
+		ByteBuffer buffer = endpoint.getBuffer((int) (end - start));
+		Prefetch prefetch = new Prefetch(block, buffer, start, (int) (end - start));
+		memory += buffer.capacity();
+		unsubmitted.add(prefetch);
+		return prefetch;
+	}
+
+	/* submits the prefetches set up so far, must not be called with the lock held */
+	private void submit() {
+		while (true) {
+			Prefetch prefetch;
+			synchronized (this) {
+				if (unsubmitted.isEmpty()) {
+					return;
+				}
+				prefetch = unsubmitted.remove(unsubmitted.size() - 1);
+			}
+			try {
+				prefetch.future = endpoint.submitInternalRead(NvmfDataNodeUtils.slice(prefetch.buffer, 0, prefetch.length),
+						prefetch.block, prefetch.offset);
+			} catch (IOException e) {
+				// e.g. beyond the end of the namespace, simply do not prefetch
+				failed(prefetch);
+			}
+		}
+	}
+
+	private synchronized void failed(Prefetch prefetch) {
+		prefetch.failed = true;
+		if (!retired.remove(prefetch)) {
+			Stream stream = streams.get(prefetch.block.getAddr());
+			if (stream != null && stream.current == prefetch) {
+				stream.current = null;
+			}
+			if (stream != null && stream.next == prefetch) {
+				stream.next = null;
+			}
+		}
+		endpoint.putBuffer(prefetch.buffer);
+		memory -= prefetch.buffer.capacity();
+	}
+
+	private void retire(Stream stream) {
+		retire(stream.current);
+		retire(stream.next);
+		stream.current = null;
+		stream.next = null;
+	}
+
+	private void retire(Prefetch prefetch) {
+		if (prefetch != null) {
+			retired.add(prefetch);
+		}
+	}
+
+	/*
+	 * Hands back buffers of retired prefetches that are neither in flight nor being copied
+	 * from. Only looks at completions, polling is left to the readers.
+	 */
+	private void reap() {
+		Iterator<Prefetch> iterator = retired.iterator();
+		while (iterator.hasNext()) {
+			Prefetch prefetch = iterator.next();
+			if (prefetch.refs == 0 && prefetch.future != null &&
+					NvmfDataNodeUtils.isCompleted(prefetch.future)) {
+				iterator.remove();
+				endpoint.release(prefetch.future);
+				endpoint.putBuffer(prefetch.buffer);
+				memory -= prefetch.buffer.capacity();
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Bounded lock-free multi-producer multi-consumer ring without allocation on offer or poll.
+ * Every slot carries a sequence number telling producers and consumers whose turn it is,
+ * a slot is free for the producer claiming position p if its sequence is p and holds an
+ * element for the consumer claiming position p if its sequence is p + 1.
+ */
+class NvmfRing<T> {
+
+	private final Object[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong head;
+	private final AtomicLong tail;
+
+	NvmfRing(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.slots = new Object[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.mask = size - 1;
+		this.head = new AtomicLong(0);
+		this.tail = new AtomicLong(0);
+	}
+
+	/* returns false if the ring is full */
+	boolean offer(T element) {
+		while (true) {
+			long position = tail.get();
+			int index = (int) (position & mask);
+			long sequence = sequences.get(index);
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots[index] = element;
+					sequences.set(index, position + 1);
+					return true;
+				}
+			} else if (sequence < position) {
+				return false;
+			}
+		}
+	}
+
+	/* returns null if the ring is empty */
+	@SuppressWarnings("unchecked")
+	T poll() {
+		while (true) {
+			long position = head.get();
+			int index = (int) (position & mask);
+			long sequence = sequences.get(index);
+			if (sequence == position + 1) {
+				if (head.compareAndSet(position, position + 1)) {
+					T element = (T) slots[index];
+					slots[index] = null;
+					sequences.set(index, position + mask + 1);
+					return element;
+				}
+			} else if (sequence < position + 1) {
+				return null;
+			}
+		}
+	}
+
+	/* elements claimed by producers may not be visible to poll yet */
+	int size() {
+		return (int) Math.max(tail.get() - head.get(), 0);
+	}
+
+	/* elements claimed by producers may not be visible to poll yet */
+	boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+}
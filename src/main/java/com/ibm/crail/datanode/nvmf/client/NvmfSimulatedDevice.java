@@ -0,0 +1,329 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.utils.CrailUtils;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Simulated namespace for running without SPDK and NVMe hardware. The namespace is a
+ * memory-mapped file shared by all connections of a process (and with other processes
+ * mapping the same file, e.g. a simulated datanode and its clients on one host). Every
+ * connection has a controller thread that executes its commands in order, after a fixed
+ * latency and at a limited bandwidth, and the completions show up in processCompletions
+ * like they would for a real queue pair.
+ */
+public class NvmfSimulatedDevice implements NvmfDevice {
+	private static final Logger LOG = CrailUtils.getLogger();
+
+	/* commands shorter than this are waited for by spinning instead of parking */
+	private static final long SPIN_NS = 50000;
+
+	/* maps subsystem cnode1 to path and cnodeN to path.N */
+	public static class Factory implements NvmfDevice.Factory {
+		private final String path;
+		private final long size;
+		private final int sectorSize;
+		private final int queueSize;
+		private final long latencyNs;
+		private final long bandwidth;
+		private final ConcurrentHashMap<String, Namespace> namespaces;
+
+		/* latency in microseconds, bandwidth in MB/s, 0 for no limit */
+		public Factory(String path, long size, int sectorSize, int queueSize, long latency, long bandwidth) {
+			this.path = path;
+			this.size = size;
+			this.sectorSize = sectorSize;
+			this.queueSize = queueSize;
+			this.latencyNs = TimeUnit.MICROSECONDS.toNanos(latency);
+			this.bandwidth = bandwidth * 1024 * 1024;
+			this.namespaces = new ConcurrentHashMap<String, Namespace>();
+		}
+
+		public NvmfDevice connect(URI url) throws IOException {
+			String file = namespaceFile(url);
+			Namespace namespace = namespaces.get(file);
+			if (namespace == null) {
+				synchronized (this) {
+					namespace = namespaces.get(file);
+					if (namespace == null) {
+						namespace = new Namespace(file, size);
+						namespaces.put(file, namespace);
+					}
+				}
+			}
+			return new NvmfSimulatedDevice(namespace, url.getHost() + ":" + url.getPort(), sectorSize, queueSize,
+					latencyNs, bandwidth);
+		}
+
+		private String namespaceFile(URI url) throws IOException {
+			int device = NvmfDataNodeUtils.namespaceIndex(url);
+			return device == 0 ? path : path + "." + (device + 1);
+		}
+	}
+
+	/* the file is mapped in segments, a single mapping is limited to 2GB */
+	static class Namespace {
+		private static final int SEGMENT_SIZE = 1 << 30;
+
+		private final MappedByteBuffer[] segments;
+		private final long size;
+
+		Namespace(String file, long size) throws IOException {
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				if (randomAccessFile.length() < size) {
+					randomAccessFile.setLength(size);
+				}
+				this.size = randomAccessFile.length();
+				FileChannel channel = randomAccessFile.getChannel();
+				segments = new MappedByteBuffer[(int) ((this.size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+				for (int i = 0; i < segments.length; i++) {
+					long position = (long) i * SEGMENT_SIZE;
+					segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position,
+							Math.min(SEGMENT_SIZE, this.size - position));
+				}
+			} finally {
+				randomAccessFile.close();
+			}
+			LOG.info("simulated namespace " + file + ", size " + this.size);
+		}
+
+		long getSize() {
+			return size;
+		}
+
+		void copy(ByteBuffer buffer, long offset, boolean write) {
+			ByteBuffer data = buffer.duplicate();
+			while (data.hasRemaining()) {
+				ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)].duplicate();
+				int position = (int) (offset % SEGMENT_SIZE);
+				int length = Math.min(data.remaining(), segment.capacity() - position);
+				segment.position(position).limit(position + length);
+				if (write) {
+					ByteBuffer source = data.duplicate();
+					source.limit(source.position() + length);
+					segment.put(source);
+				} else {
+					ByteBuffer destination = data.duplicate();
+					destination.put(segment);
+				}
+				data.position(data.position() + length);
+				offset += length;
+			}
+		}
+	}
+
+	private static class Command implements NvmfCompletion {
+		private final boolean write;
+		private final ByteBuffer[] buffers;
+		private final int length;
+		private final long offset;
+		private final long submitTime;
+		private volatile boolean done;
+
+		Command(boolean write, ByteBuffer[] buffers, int length, long offset) {
+			this.write = write;
+			this.buffers = buffers;
+			this.length = length;
+			this.offset = offset;
+			this.submitTime = System.nanoTime();
+		}
+
+		void execute(Namespace namespace) {
+			long position = offset;
+			for (ByteBuffer buffer : buffers) {
+				namespace.copy(buffer, position, write);
+				position += buffer.remaining();
+			}
+		}
+
+		public boolean done() {
+			return done;
+		}
+
+		public boolean isSuccess() {
+			return true;
+		}
+
+		public String getStatus() {
+			return "SUCCESS";
+		}
+
+		public void release() {
+		}
+	}
+
+	private final Namespace namespace;
+	private final int sectorSize;
+	private final int queueSize;
+	private final long latencyNs;
+	private final long bandwidth;
+	private final LinkedBlockingQueue<Command> submitted;
+	private final ConcurrentLinkedQueue<Command> executed;
+	private final Thread controller;
+	private volatile boolean running;
+	private int outstanding;
+	/* controller thread only */
+	private long busyUntil;
+
+	NvmfSimulatedDevice(Namespace namespace, String name, int sectorSize, int queueSize, long latencyNs,
+						long bandwidth) {
+		this.namespace = namespace;
+		this.sectorSize = sectorSize;
+		this.queueSize = queueSize;
+		this.latencyNs = latencyNs;
+		this.bandwidth = bandwidth;
+		this.submitted = new LinkedBlockingQueue<Command>();
+		this.executed = new ConcurrentLinkedQueue<Command>();
+		this.running = true;
+		this.controller = new Thread(new Runnable() {
+			public void run() {
+				runController();
+			}
+		}, "nvmf-simulated-" + name);
+		controller.setDaemon(true);
+		controller.start();
+	}
+
+	public int getSectorSize() {
+		return sectorSize;
+	}
+
+	public int getIOQueueSize() {
+		return queueSize;
+	}
+
+	public long getNamespaceSize() {
+		return namespace.getSize();
+	}
+
+	public int getMaxTransferSize() {
+		return 0;
+	}
+
+	public NvmfCompletion read(ByteBuffer buffer, long lba) throws IOException {
+		return submit(false, new ByteBuffer[]{buffer}, lba);
+	}
+
+	public NvmfCompletion write(ByteBuffer buffer, long lba) throws IOException {
+		return submit(true, new ByteBuffer[]{buffer}, lba);
+	}
+
+	public boolean supportsScatterGather() {
+		return true;
+	}
+
+	public NvmfCompletion read(ByteBuffer[] buffers, long lba) throws IOException {
+		return submit(false, buffers, lba);
+	}
+
+	public NvmfCompletion write(ByteBuffer[] buffers, long lba) throws IOException {
+		return submit(true, buffers, lba);
+	}
+
+	private NvmfCompletion submit(boolean write, ByteBuffer[] buffers, long lba) throws IOException {
+		if (!running) {
+			throw new IOException("device closed");
+		}
+		ByteBuffer[] duplicates = new ByteBuffer[buffers.length];
+		int length = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			duplicates[i] = buffers[i].duplicate();
+			length += duplicates[i].remaining();
+		}
+		long offset = lba * sectorSize;
+		if (length % sectorSize != 0) {
+			throw new IOException("transfer length " + length + " not a multiple of the sector size");
+		}
+		if (lba < 0 || offset + length > namespace.getSize()) {
+			throw new IOException("lba " + lba + " out of range");
+		}
+		if (outstanding >= queueSize) {
+			throw new IOException("submission queue full");
+		}
+		outstanding++;
+		Command command = new Command(write, duplicates, length, offset);
+		submitted.add(command);
+		return command;
+	}
+
+	public int processCompletions(int max) throws IOException {
+		int completions = 0;
+		Command command;
+		while (completions < max && (command = executed.poll()) != null) {
+			command.done = true;
+			completions++;
+		}
+		outstanding -= completions;
+		return completions;
+	}
+
+	private void runController() {
+		while (running) {
+			Command command;
+			try {
+				command = submitted.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			long due = command.submitTime + latencyNs;
+			if (bandwidth > 0) {
+				long transferNs = command.length * 1000000000L / bandwidth;
+				busyUntil = Math.max(busyUntil, command.submitTime) + transferNs;
+				due = Math.max(due, busyUntil);
+			}
+			waitUntil(due);
+			command.execute(namespace);
+			executed.add(command);
+		}
+	}
+
+	private static void waitUntil(long due) {
+		long remaining;
+		while ((remaining = due - System.nanoTime()) > 0) {
+			if (remaining > SPIN_NS) {
+				LockSupport.parkNanos(remaining - SPIN_NS);
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		running = false;
+		controller.interrupt();
+		try {
+			controller.join();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.disni.nvmef.NvmeEndpoint;
+import com.ibm.disni.nvmef.NvmeEndpointGroup;
+import com.ibm.disni.nvmef.spdk.IOCompletion;
+import com.ibm.disni.nvmef.spdk.NvmeGenericCommandStatusCode;
+import com.ibm.disni.nvmef.spdk.NvmeStatusCodeType;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+
+/* queue pair to a real namespace, over the fabric or over PCIe, through DiSNI and SPDK */
+public class NvmfSpdkDevice implements NvmfDevice {
+
+	public static class Factory implements NvmfDevice.Factory {
+		private final NvmeEndpointGroup group;
+
+		public Factory(NvmeEndpointGroup group) {
+			this.group = group;
+		}
+
+		public NvmfDevice connect(URI url) throws IOException {
+			NvmeEndpoint endpoint = group.createEndpoint();
+			endpoint.connect(url);
+			return new NvmfSpdkDevice(endpoint);
+		}
+	}
+
+	/*
+	 * Attaches the controllers of a datanode on this host over PCIe, namespace i at
+	 * pcieAddresses[i]. SPDK attaches a controller to a single process, so this fails while
+	 * the datanode process holds it.
+	 */
+	public static class PcieFactory implements NvmfDevice.Factory {
+		private final NvmeEndpointGroup group;
+		private final String[] pcieAddresses;
+
+		public PcieFactory(NvmeEndpointGroup group, String[] pcieAddresses) {
+			this.group = group;
+			this.pcieAddresses = pcieAddresses;
+		}
+
+		public NvmfDevice connect(URI url) throws IOException {
+			int device = NvmfDataNodeUtils.namespaceIndex(url);
+			if (device < 0 || device >= pcieAddresses.length) {
+				throw new IOException("no PCIe address for namespace " + device);
+			}
+			NvmeEndpoint endpoint = group.createEndpoint();
+			try {
+				endpoint.connect(new URI(url.toString() + "&pci=" + pcieAddresses[device]));
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+			return new NvmfSpdkDevice(endpoint);
+		}
+	}
+
+	/* wraps the completion DiSNI returns for a command, recycled together with its future */
+	private static class Completion implements NvmfCompletion {
+		private final NvmfRing<Completion> pool;
+		private IOCompletion completion;
+
+		Completion(NvmfRing<Completion> pool) {
+			this.pool = pool;
+		}
+
+		public boolean done() {
+			return completion.done();
+		}
+
+		public boolean isSuccess() {
+			return completion.getStatusCodeType() == NvmeStatusCodeType.GENERIC ||
+					completion.getStatusCode() == NvmeGenericCommandStatusCode.SUCCESS.getNumVal();
+		}
+
+		public String getStatus() {
+			return completion.getStatusCodeType().name() + " - " + completion.getStatusCode();
+		}
+
+		public void release() {
+			completion = null;
+			pool.offer(this);
+		}
+	}
+
+	private final NvmeEndpoint endpoint;
+	/* completions of recycled futures, further ones are left to the garbage collector */
+	private final NvmfRing<Completion> completionPool;
+
+	NvmfSpdkDevice(NvmeEndpoint endpoint) {
+		this.endpoint = endpoint;
+		this.completionPool = new NvmfRing<Completion>(endpoint.getIOQueueSize());
+	}
+
+	private NvmfCompletion completion(IOCompletion ioCompletion) {
+		Completion completion = completionPool.poll();
+		if (completion == null) {
+			completion = new Completion(completionPool);
+		}
+		completion.completion = ioCompletion;
+		return completion;
+	}
+
+	public int getSectorSize() {
+		return endpoint.getSectorSize();
+	}
+
+	public int getIOQueueSize() {
+		return endpoint.getIOQueueSize();
+	}
+
+	public long getNamespaceSize() {
+		return endpoint.getNamespaceSize();
+	}
+
+	public int getMaxTransferSize() {
+		return endpoint.getMaxTransferSize();
+	}
+
+	public NvmfCompletion read(ByteBuffer buffer, long lba) throws IOException {
+		return completion(endpoint.read(buffer, lba));
+	}
+
+	public NvmfCompletion write(ByteBuffer buffer, long lba) throws IOException {
+		return completion(endpoint.write(buffer, lba));
+	}
+
+	/* DiSNI takes a single buffer per command */
+	public boolean supportsScatterGather() {
+		return false;
+	}
+
+	public NvmfCompletion read(ByteBuffer[] buffers, long lba) throws IOException {
+		throw new IOException("scatter/gather not supported");
+	}
+
+	public NvmfCompletion write(ByteBuffer[] buffers, long lba) throws IOException {
+		throw new IOException("scatter/gather not supported");
+	}
+
+	public int processCompletions(int max) throws IOException {
+		return endpoint.processCompletions(max);
+	}
+
+	public void close() throws IOException {
+		endpoint.close();
+	}
+}
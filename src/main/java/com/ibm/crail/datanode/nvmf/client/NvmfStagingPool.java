@@ -0,0 +1,338 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import sun.nio.ch.DirectBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Staging buffers for the unaligned paths, read-ahead and write coalescing, shared by all
+ * endpoints of a client. Buffers come in power of two multiples of the minimum sector size
+ * up to the block size, so a single sector read-modify-write does not hold a whole block.
+ *
+ * Every thread keeps a few buffers per size class, only overflow goes to the shared free
+ * lists of its NUMA node. Buffers are carved from slabs that are allocated and zeroed by the
+ * requesting thread, with the default first-touch policy their pages end up on the node of
+ * the thread that polls for the operation. The SPDK socketmem hugepages of the client are not
+ * accessible from Java, staging memory is regular direct memory, but the pool holds at most
+ * its capacity and splits it across the nodes in the proportions of the socketmem layout.
+ * Beyond the share of its node a thread gets buffers that are not pooled and are left to the
+ * garbage collector once put back. The caches of threads that terminated are drained into
+ * the free lists before the pool grows.
+ */
+public class NvmfStagingPool implements NvmfStagingPoolMXBean {
+
+	static final int MIN_SECTOR_SIZE = 512;
+	private static final int SLAB_SIZE = 1024 * 1024;
+	private static final int THREAD_CACHE_BUFFERS = 8;
+
+	/* staging memory of one NUMA node */
+	private static class Node {
+		final long capacity;
+		final AtomicLong allocated;
+		final ConcurrentLinkedQueue<ByteBuffer>[] freeLists;
+
+		@SuppressWarnings("unchecked")
+		Node(long capacity, int classCount) {
+			this.capacity = capacity;
+			this.allocated = new AtomicLong();
+			this.freeLists = new ConcurrentLinkedQueue[classCount];
+			for (int i = 0; i < classCount; i++) {
+				freeLists[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			}
+		}
+
+		/* reserves between min and max bytes of the share of the node, 0 if less than min are left */
+		long reserve(long min, long max) {
+			while (true) {
+				long allocated = this.allocated.get();
+				long reserved = Math.min(max, capacity - allocated);
+				if (reserved < min) {
+					return 0;
+				}
+				if (this.allocated.compareAndSet(allocated, allocated + reserved)) {
+					return reserved;
+				}
+			}
+		}
+	}
+
+	/* only touched by its thread, and by others once the thread terminated */
+	private static class ThreadCache {
+		final Thread owner;
+		final Node node;
+		final ArrayDeque<ByteBuffer>[] buffers;
+
+		@SuppressWarnings("unchecked")
+		ThreadCache(Thread owner, Node node, int classCount) {
+			this.owner = owner;
+			this.node = node;
+			this.buffers = new ArrayDeque[classCount];
+			for (int i = 0; i < classCount; i++) {
+				buffers[i] = new ArrayDeque<ByteBuffer>(THREAD_CACHE_BUFFERS);
+			}
+		}
+	}
+
+	private final int classCount;
+	private final long capacity;
+	private final Node[] nodes;
+	private final int[] cpuNodes;
+	private final ThreadLocal<ThreadCache> threadCaches;
+	private final ConcurrentLinkedQueue<ThreadCache> caches;
+	private final LongAdder buffersInUse;
+	private final LongAdder unpooledBuffers;
+
+	public NvmfStagingPool() {
+		this(NvmfDataNodeConstants.STAGING_MEMORY, NvmfDataNodeConstants.SOCKETMEM);
+	}
+
+	/* capacity in bytes, split across the NUMA nodes in the proportions of socketMemory */
+	public NvmfStagingPool(long capacity, long[] socketMemory) {
+		int classes = 1;
+		while (classSize(classes - 1) < CrailConstants.BLOCK_SIZE) {
+			classes++;
+		}
+		this.classCount = classes;
+		this.capacity = capacity;
+		long totalSocketMemory = 0;
+		for (long memory : socketMemory) {
+			totalSocketMemory += memory;
+		}
+		this.nodes = new Node[Math.max(socketMemory.length, 1)];
+		for (int i = 0; i < nodes.length; i++) {
+			long share = totalSocketMemory > 0 ? (long) (capacity * ((double) socketMemory[i] / totalSocketMemory)) :
+					(i == 0 ? capacity : 0);
+			nodes[i] = new Node(share, classCount);
+		}
+		this.cpuNodes = cpuNodes();
+		this.caches = new ConcurrentLinkedQueue<ThreadCache>();
+		this.buffersInUse = new LongAdder();
+		this.unpooledBuffers = new LongAdder();
+		this.threadCaches = new ThreadLocal<ThreadCache>() {
+			@Override
+			protected ThreadCache initialValue() {
+				ThreadCache cache = new ThreadCache(Thread.currentThread(), homeNode(), classCount);
+				caches.add(cache);
+				return cache;
+			}
+		};
+	}
+
+	/* returns a cleared buffer with a capacity of at least size bytes */
+	public ByteBuffer get(int size) {
+		int sizeClass = sizeClass(size);
+		ThreadCache cache = threadCaches.get();
+		ByteBuffer buffer = cache.buffers[sizeClass].poll();
+		if (buffer == null) {
+			buffer = cache.node.freeLists[sizeClass].poll();
+			if (buffer == null) {
+				buffer = refill(cache, sizeClass);
+			}
+		}
+		buffer.clear();
+		buffersInUse.increment();
+		return buffer;
+	}
+
+	public void put(ByteBuffer buffer) {
+		buffersInUse.decrement();
+		// pooled buffers are views of a slab, unpooled ones go to the garbage collector
+		if (((DirectBuffer) buffer).attachment() == null) {
+			return;
+		}
+		int sizeClass = sizeClass(buffer.capacity());
+		ThreadCache cache = threadCaches.get();
+		if (cache.buffers[sizeClass].size() < THREAD_CACHE_BUFFERS) {
+			cache.buffers[sizeClass].push(buffer);
+		} else {
+			cache.node.freeLists[sizeClass].add(buffer);
+		}
+	}
+
+	public long getBuffersInUse() {
+		return buffersInUse.sum();
+	}
+
+	public long getAllocatedBytes() {
+		long allocated = 0;
+		for (Node node : nodes) {
+			allocated += node.allocated.get();
+		}
+		return allocated;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public long getUnpooledBuffers() {
+		return unpooledBuffers.sum();
+	}
+
+	private static int classSize(int sizeClass) {
+		return MIN_SECTOR_SIZE << sizeClass;
+	}
+
+	private int sizeClass(int size) {
+		int sizeClass = 0;
+		while (classSize(sizeClass) < size) {
+			sizeClass++;
+		}
+		if (sizeClass >= classCount) {
+			throw new IllegalArgumentException("staging buffer of " + size + " bytes exceeds the block size");
+		}
+		return sizeClass;
+	}
+
+	/*
+	 * Carves a slab into buffers of one class, the calling thread keeps what fits in its cache.
+	 * Once the share of the node is used up, buffers come from the free lists of other nodes
+	 * or are allocated outside of the pool.
+	 */
+	private ByteBuffer refill(ThreadCache cache, int sizeClass) {
+		drainTerminated();
+		ByteBuffer buffer = cache.node.freeLists[sizeClass].poll();
+		if (buffer != null) {
+			return buffer;
+		}
+		int size = classSize(sizeClass);
+		long reserved = cache.node.reserve(size, Math.max(SLAB_SIZE / size, 1) * (long) size);
+		if (reserved == 0) {
+			for (Node node : nodes) {
+				buffer = node.freeLists[sizeClass].poll();
+				if (buffer != null) {
+					return buffer;
+				}
+			}
+			unpooledBuffers.increment();
+			return ByteBuffer.allocateDirect(size);
+		}
+		int count = (int) (reserved / size);
+		ByteBuffer slab = ByteBuffer.allocateDirect(count * size);
+		for (int i = 1; i < count; i++) {
+			buffer = NvmfDataNodeUtils.slice(slab, i * size, size);
+			if (cache.buffers[sizeClass].size() < THREAD_CACHE_BUFFERS) {
+				cache.buffers[sizeClass].push(buffer);
+			} else {
+				cache.node.freeLists[sizeClass].add(buffer);
+			}
+		}
+		return NvmfDataNodeUtils.slice(slab, 0, size);
+	}
+
+	/* the cached buffers of terminated threads go back to the free lists of their node */
+	private void drainTerminated() {
+		Iterator<ThreadCache> iterator = caches.iterator();
+		while (iterator.hasNext()) {
+			ThreadCache cache = iterator.next();
+			// isAlive() returning false makes the last writes of the thread to its cache visible
+			if (!cache.owner.isAlive() && caches.remove(cache)) {
+				for (int i = 0; i < classCount; i++) {
+					ByteBuffer buffer;
+					while ((buffer = cache.buffers[i].poll()) != null) {
+						cache.node.freeLists[i].add(buffer);
+					}
+				}
+			}
+		}
+	}
+
+	/* the node of the CPU the calling thread runs on, or the one with the largest share */
+	private Node homeNode() {
+		int cpu = currentCpu();
+		if (cpuNodes != null && cpu >= 0 && cpu < cpuNodes.length) {
+			int node = cpuNodes[cpu];
+			if (node < nodes.length && nodes[node].capacity > 0) {
+				return nodes[node];
+			}
+		}
+		Node largest = nodes[0];
+		for (Node node : nodes) {
+			if (node.capacity > largest.capacity) {
+				largest = node;
+			}
+		}
+		return largest;
+	}
+
+	/* processor field of /proc/thread-self/stat, -1 if not available */
+	private static int currentCpu() {
+		try {
+			String stat = new String(Files.readAllBytes(new File("/proc/thread-self/stat").toPath()),
+					StandardCharsets.US_ASCII);
+			// fields after the command name start with the state, the processor is field 39
+			String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+			return Integer.parseInt(fields[36]);
+		} catch (IOException | RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/* NUMA node of every CPU from sysfs, null if not available */
+	private static int[] cpuNodes() {
+		File[] nodeDirs = new File("/sys/devices/system/node").listFiles();
+		if (nodeDirs == null) {
+			return null;
+		}
+		int[] cpuNodes = new int[0];
+		try {
+			for (File nodeDir : nodeDirs) {
+				if (!nodeDir.getName().matches("node[0-9]+")) {
+					continue;
+				}
+				int node = Integer.parseInt(nodeDir.getName().substring(4));
+				String cpuList = new String(Files.readAllBytes(new File(nodeDir, "cpulist").toPath()),
+						StandardCharsets.US_ASCII).trim();
+				if (cpuList.isEmpty()) {
+					continue;
+				}
+				for (String range : cpuList.split(",")) {
+					String[] bounds = range.split("-");
+					int first = Integer.parseInt(bounds[0]);
+					int last = Integer.parseInt(bounds[bounds.length - 1]);
+					if (last >= cpuNodes.length) {
+						int[] grown = new int[last + 1];
+						System.arraycopy(cpuNodes, 0, grown, 0, cpuNodes.length);
+						cpuNodes = grown;
+					}
+					for (int cpu = first; cpu <= last; cpu++) {
+						cpuNodes[cpu] = node;
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+		return cpuNodes;
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeEndpoint.Operation;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Counters and latency histograms of one endpoint, i.e. of one client to one datanode.
+ * Counters are LongAdders and histograms are lock-free, recording does not serialize
+ * threads. Operations are counted as issued to the device, reads served from read-ahead
+ * or the block cache do not show up here. Latencies are:
+ *
+ * submitToComplete - from just before the command is handed to the device (or queued for the
+ *                    poller of a shared queue pair) until its completion was processed
+ * waitTime         - time spent in get() of a command future, also if it had completed already
+ */
+public class NvmfStatistics implements NvmfStatisticsMXBean {
+
+	private final NvmfDataNodeEndpoint endpoint;
+	private final LongAdder readOps;
+	private final LongAdder writeOps;
+	private final LongAdder readBytes;
+	private final LongAdder writeBytes;
+	private final LongAdder alignedOps;
+	private final LongAdder unalignedOps;
+	private final LongAdder readModifyWriteOps;
+	private final LongAdder completions;
+	private final NvmfLatencyHistogram submitToComplete;
+	private final NvmfLatencyHistogram waitTime;
+
+	NvmfStatistics(NvmfDataNodeEndpoint endpoint) {
+		this.endpoint = endpoint;
+		this.readOps = new LongAdder();
+		this.writeOps = new LongAdder();
+		this.readBytes = new LongAdder();
+		this.writeBytes = new LongAdder();
+		this.alignedOps = new LongAdder();
+		this.unalignedOps = new LongAdder();
+		this.readModifyWriteOps = new LongAdder();
+		this.completions = new LongAdder();
+		this.submitToComplete = new NvmfLatencyHistogram();
+		this.waitTime = new NvmfLatencyHistogram();
+	}
+
+	void op(Operation op, int length, boolean aligned) {
+		if (op == Operation.READ) {
+			readOps.increment();
+			readBytes.add(length);
+		} else {
+			writeOps.increment();
+			writeBytes.add(length);
+		}
+		if (aligned) {
+			alignedOps.increment();
+		} else {
+			unalignedOps.increment();
+		}
+	}
+
+	void readModifyWrite() {
+		readModifyWriteOps.increment();
+	}
+
+	void completions(int count) {
+		completions.add(count);
+	}
+
+	void submitToComplete(long nanos) {
+		submitToComplete.record(nanos);
+	}
+
+	void waitTime(long nanos) {
+		waitTime.record(nanos);
+	}
+
+	public String getDatanode() {
+		return endpoint.getAddress().toString();
+	}
+
+	public long getReadOps() {
+		return readOps.sum();
+	}
+
+	public long getWriteOps() {
+		return writeOps.sum();
+	}
+
+	public long getReadBytes() {
+		return readBytes.sum();
+	}
+
+	public long getWriteBytes() {
+		return writeBytes.sum();
+	}
+
+	public long getAlignedOps() {
+		return alignedOps.sum();
+	}
+
+	public long getUnalignedOps() {
+		return unalignedOps.sum();
+	}
+
+	public long getReadModifyWriteOps() {
+		return readModifyWriteOps.sum();
+	}
+
+	public long getCompletions() {
+		return completions.sum();
+	}
+
+	public int getInFlight() {
+		int inFlight = 0;
+		for (NvmfQueuePair queuePair : endpoint.getQueuePairs()) {
+			inFlight += queuePair.getInFlight();
+		}
+		return inFlight;
+	}
+
+	public long getReadAheadHits() {
+		return endpoint.getReadAheadHits();
+	}
+
+	public long getReadAheadMisses() {
+		return endpoint.getReadAheadMisses();
+	}
+
+	public NvmfLatencyHistogram.Snapshot getSubmitToComplete() {
+		return submitToComplete.snapshot();
+	}
+
+	public NvmfLatencyHistogram.Snapshot getWaitTime() {
+		return waitTime.snapshot();
+	}
+
+	/* consistent enough view for periodic reporting, rates follow from two snapshots */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	public static class Snapshot {
+		private final long timestamp;
+		private final long readOps;
+		private final long writeOps;
+		private final long readBytes;
+		private final long writeBytes;
+		private final long alignedOps;
+		private final long unalignedOps;
+		private final long readModifyWriteOps;
+		private final int inFlight;
+		private final NvmfLatencyHistogram.Snapshot submitToComplete;
+		private final NvmfLatencyHistogram.Snapshot waitTime;
+
+		Snapshot(NvmfStatistics statistics) {
+			this.timestamp = System.currentTimeMillis();
+			this.readOps = statistics.getReadOps();
+			this.writeOps = statistics.getWriteOps();
+			this.readBytes = statistics.getReadBytes();
+			this.writeBytes = statistics.getWriteBytes();
+			this.alignedOps = statistics.getAlignedOps();
+			this.unalignedOps = statistics.getUnalignedOps();
+			this.readModifyWriteOps = statistics.getReadModifyWriteOps();
+			this.inFlight = statistics.getInFlight();
+			this.submitToComplete = statistics.getSubmitToComplete();
+			this.waitTime = statistics.getWaitTime();
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public long getReadOps() {
+			return readOps;
+		}
+
+		public long getWriteOps() {
+			return writeOps;
+		}
+
+		public long getReadBytes() {
+			return readBytes;
+		}
+
+		public long getWriteBytes() {
+			return writeBytes;
+		}
+
+		public long getAlignedOps() {
+			return alignedOps;
+		}
+
+		public long getUnalignedOps() {
+			return unalignedOps;
+		}
+
+		public long getReadModifyWriteOps() {
+			return readModifyWriteOps;
+		}
+
+		public int getInFlight() {
+			return inFlight;
+		}
+
+		public NvmfLatencyHistogram.Snapshot getSubmitToComplete() {
+			return submitToComplete;
+		}
+
+		public NvmfLatencyHistogram.Snapshot getWaitTime() {
+			return waitTime;
+		}
+
+		@Override
+		public String toString() {
+			return "reads " + readOps + " (" + readBytes + " bytes), writes " + writeOps + " (" + writeBytes +
+					" bytes), aligned " + alignedOps + ", unaligned " + unalignedOps + ", rmw " + readModifyWriteOps +
+					", in flight " + inFlight + ", submit to complete [" + submitToComplete + "], wait [" +
+					waitTime + "]";
+		}
+	}
+}
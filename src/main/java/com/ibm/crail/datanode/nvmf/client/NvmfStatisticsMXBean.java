@@ -0,0 +1,52 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+/* JMX view of the statistics of an endpoint, latencies in nanoseconds */
+public interface NvmfStatisticsMXBean {
+
+	String getDatanode();
+
+	long getReadOps();
+
+	long getWriteOps();
+
+	long getReadBytes();
+
+	long getWriteBytes();
+
+	long getAlignedOps();
+
+	long getUnalignedOps();
+
+	long getReadModifyWriteOps();
+
+	long getCompletions();
+
+	int getInFlight();
+
+	long getReadAheadHits();
+
+	long getReadAheadMisses();
+
+	NvmfLatencyHistogram.Snapshot getSubmitToComplete();
+
+	NvmfLatencyHistogram.Snapshot getWaitTime();
+}
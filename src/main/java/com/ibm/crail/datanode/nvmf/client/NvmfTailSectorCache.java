@@ -0,0 +1,241 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.namenode.protocol.BlockInfo;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Caches the content of the last, partially written sector of recently appended blocks.
+ * Crail is append only, so the writer knows what the sector holds and an unaligned append
+ * can be written without reading the sector back first.
+ *
+ * Entries are keyed by the address of the block, so every BlockInfo describing the same block
+ * finds them. They are only updated once a write completed successfully, and never move the
+ * cached tail backwards. A block that gets reassigned is invalidated by the first write to
+ * its start, all entries go with the endpoint.
+ *
+ * The entries live in an open addressing table on the block address and a list in access
+ * order for eviction, so lookups neither box keys nor allocate, and evicted or removed
+ * entries keep their sector memory for reuse.
+ */
+class NvmfTailSectorCache {
+
+	private static class Entry {
+		private final ByteBuffer sector;
+		private final long sectorAddress;
+		private long block;
+		private long sectorOffset;
+		private int validBytes;
+		/* access order, most recently used first; next also links the free entries */
+		private Entry previous;
+		private Entry next;
+
+		Entry(int sectorSize) {
+			this.sector = ByteBuffer.allocateDirect(sectorSize);
+			this.sectorAddress = NvmfDataNodeUtils.getAddress(sector);
+		}
+	}
+
+	private final int sectorSize;
+	private final int capacity;
+	private final Entry[] table;
+	private final int mask;
+	private int size;
+	private Entry mostRecent;
+	private Entry leastRecent;
+	private Entry free;
+
+	NvmfTailSectorCache(int sectorSize, int capacity) {
+		this.sectorSize = sectorSize;
+		this.capacity = capacity;
+		int tableSize = 2;
+		while (tableSize < 2 * capacity) {
+			tableSize <<= 1;
+		}
+		this.table = new Entry[tableSize];
+		this.mask = tableSize - 1;
+	}
+
+	/*
+	 * Copies the cached head of the sector remoteOffset falls into to the start of
+	 * stagingBuffer. Only succeeds if the cached data ends exactly at remoteOffset.
+	 */
+	synchronized boolean fill(BlockInfo block, long remoteOffset, ByteBuffer stagingBuffer) {
+		Entry entry = get(block.getAddr());
+		if (entry == null ||
+				entry.sectorOffset != NvmfDataNodeUtils.alignOffset(sectorSize, remoteOffset) ||
+				entry.validBytes != NvmfDataNodeUtils.namespaceSectorOffset(sectorSize, remoteOffset)) {
+			return false;
+		}
+		NvmfDataNodeUtils.copyMemory(entry.sectorAddress, NvmfDataNodeUtils.getAddress(stagingBuffer),
+				entry.validBytes);
+		return true;
+	}
+
+	/*
+	 * Records the tail sector of a completed write. image holds the sector aligned data written
+	 * starting at imageOffset, endOffset is where the valid data of the write ends. A write
+	 * completing after a later append keeps the entry of the append.
+	 */
+	synchronized void update(BlockInfo block, long endOffset, ByteBuffer image, long imageOffset) {
+		if (capacity == 0) {
+			return;
+		}
+		int validBytes = (int) NvmfDataNodeUtils.namespaceSectorOffset(sectorSize, endOffset);
+		Entry entry = get(block.getAddr());
+		if (entry != null && entry.sectorOffset + entry.validBytes > endOffset) {
+			return;
+		}
+		if (validBytes == 0) {
+			if (entry != null) {
+				remove(entry);
+			}
+			return;
+		}
+		if (entry == null) {
+			entry = add(block.getAddr());
+		}
+		entry.sectorOffset = NvmfDataNodeUtils.alignOffset(sectorSize, endOffset);
+		entry.validBytes = validBytes;
+		NvmfDataNodeUtils.copyMemory(NvmfDataNodeUtils.getAddress(image) + entry.sectorOffset - imageOffset,
+				entry.sectorAddress, validBytes);
+	}
+
+	/* drops the entry of block if its sector overlaps [offset, offset + length) */
+	synchronized void invalidate(BlockInfo block, long offset, long length) {
+		if (size == 0) {
+			return;
+		}
+		Entry entry = get(block.getAddr());
+		if (entry != null && entry.sectorOffset + sectorSize > offset && entry.sectorOffset < offset + length) {
+			remove(entry);
+		}
+	}
+
+	synchronized void invalidate(BlockInfo block) {
+		Entry entry = get(block.getAddr());
+		if (entry != null) {
+			remove(entry);
+		}
+	}
+
+	synchronized void clear() {
+		while (mostRecent != null) {
+			remove(mostRecent);
+		}
+	}
+
+	private int slot(long block) {
+		long hash = block * 0x9E3779B97F4A7C15L;
+		return (int) (hash >>> 32) & mask;
+	}
+
+	/* a lookup counts as a use of the entry */
+	private Entry get(long block) {
+		for (int i = slot(block); table[i] != null; i = (i + 1) & mask) {
+			Entry entry = table[i];
+			if (entry.block == block) {
+				touch(entry);
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/* inserts an entry for a block that has none, evicting the least recently used one if full */
+	private Entry add(long block) {
+		if (size == capacity) {
+			remove(leastRecent);
+		}
+		Entry entry = free;
+		if (entry != null) {
+			free = entry.next;
+		} else {
+			entry = new Entry(sectorSize);
+		}
+		entry.block = block;
+		int i = slot(block);
+		while (table[i] != null) {
+			i = (i + 1) & mask;
+		}
+		table[i] = entry;
+		size++;
+		entry.previous = null;
+		entry.next = mostRecent;
+		link(entry);
+		return entry;
+	}
+
+	private void remove(Entry entry) {
+		int i = slot(entry.block);
+		while (table[i] != entry) {
+			i = (i + 1) & mask;
+		}
+		table[i] = null;
+		// move later entries of the probe sequence into the gap
+		for (int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+			int home = slot(table[j].block);
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				table[i] = table[j];
+				table[j] = null;
+				i = j;
+			}
+		}
+		size--;
+		unlink(entry);
+		entry.previous = null;
+		entry.next = free;
+		free = entry;
+	}
+
+	private void touch(Entry entry) {
+		if (entry != mostRecent) {
+			unlink(entry);
+			entry.previous = null;
+			entry.next = mostRecent;
+			link(entry);
+		}
+	}
+
+	/* makes entry, whose next is the current most recent entry, the most recent one */
+	private void link(Entry entry) {
+		if (mostRecent != null) {
+			mostRecent.previous = entry;
+		} else {
+			leastRecent = entry;
+		}
+		mostRecent = entry;
+	}
+
+	private void unlink(Entry entry) {
+		if (entry.previous != null) {
+			entry.previous.next = entry.next;
+		} else {
+			mostRecent = entry.next;
+		}
+		if (entry.next != null) {
+			entry.next.previous = entry.previous;
+		} else {
+			leastRecent = entry.previous;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+/*
+ * Token bucket refilled at rate tokens per second, holding at most burst tokens. A take never
+ * fails: taking more than is available puts the bucket into debt and the caller waits until it
+ * is paid off, so requests larger than the burst still get through at the configured rate.
+ */
+public class NvmfTokenBucket {
+	private final long rate;
+	private final long burst;
+	private double tokens;
+	private long lastRefill;
+
+	public NvmfTokenBucket(long rate, long burst) {
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/* nanoseconds the caller has to wait before it may go ahead */
+	public synchronized long take(long amount) {
+		refill();
+		tokens -= amount;
+		return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+	}
+
+	/* negative while in debt */
+	public synchronized long getAvailable() {
+		refill();
+		return (long) tokens;
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	public long getBurst() {
+		return burst;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastRefill) * (double) rate / 1e9);
+		lastRefill = now;
+	}
+}
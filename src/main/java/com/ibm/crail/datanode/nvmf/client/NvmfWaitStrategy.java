@@ -0,0 +1,95 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import java.io.IOException;
+
+/*
+ * What a thread waiting for a command does between two polls of its queue pair.
+ *
+ * spin  - poll continuously, lowest latency, one core per waiting thread
+ * yield - spin for a while, then yield the CPU between polls
+ * park  - spin for a while, then park until the completion reaper of the endpoint
+ *         saw completions on the queue pair
+ */
+public abstract class NvmfWaitStrategy {
+
+	static final int SPINS = 256;
+	/* safety net only, parked waiters are woken up by the reaper or the poller */
+	static final long MAX_PARK_NS = 1000000;
+
+	public static NvmfWaitStrategy getInstance(String name) throws IOException {
+		if ("spin".equalsIgnoreCase(name)) {
+			return new Spin();
+		} else if ("yield".equalsIgnoreCase(name)) {
+			return new SpinYield();
+		} else if ("park".equalsIgnoreCase(name)) {
+			return new SpinPark();
+		}
+		throw new IOException("unknown wait strategy " + name);
+	}
+
+	/* true if the endpoint has to run a completion reaper for this strategy */
+	abstract boolean needsReaper();
+
+	/* called after the iteration-th poll that did not complete the command */
+	abstract void idle(NvmfQueuePair queuePair, NvmfDataFuture future, int iteration);
+
+	/* called once per wait that went idle, when the command completed or the wait gave up */
+	void done(NvmfQueuePair queuePair) {
+	}
+
+	static class Spin extends NvmfWaitStrategy {
+		boolean needsReaper() {
+			return false;
+		}
+
+		void idle(NvmfQueuePair queuePair, NvmfDataFuture future, int iteration) {
+		}
+	}
+
+	static class SpinYield extends NvmfWaitStrategy {
+		boolean needsReaper() {
+			return false;
+		}
+
+		void idle(NvmfQueuePair queuePair, NvmfDataFuture future, int iteration) {
+			if (iteration > SPINS) {
+				Thread.yield();
+			}
+		}
+	}
+
+	static class SpinPark extends NvmfWaitStrategy {
+		boolean needsReaper() {
+			return true;
+		}
+
+		void idle(NvmfQueuePair queuePair, NvmfDataFuture future, int iteration) {
+			if (iteration > SPINS) {
+				queuePair.park(future, MAX_PARK_NS);
+			}
+		}
+
+		void done(NvmfQueuePair queuePair) {
+			queuePair.unpark();
+		}
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.client;
+
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Gathers small contiguous appends to the same block into one larger write. The data is
+ * copied into a staging buffer on submission, the staged range is written when it reaches
+ * the size threshold, when the deadline of the oldest write expires, when a write that does
+ * not continue the range arrives, or when a caller waits on one of the pending futures.
+ * A flusher thread enforces the deadline, so an idle writer's data does not stay behind.
+ *
+ * Ranges reaching the threshold are written up to their last sector boundary only, the
+ * partial sector is carried into the next range. Consecutive ranges therefore do not share
+ * a sector while both are in flight. Any other flush writes the whole range; a range that
+ * continues it in the middle of a sector waits for it to complete first, so that the head
+ * of the sector comes from the tail sector cache instead of being read while it is written.
+ */
+class NvmfWriteCoalescer implements Runnable {
+
+	/* one staged range, shared by the futures of all writes gathered into it */
+	static class Group {
+		private final NvmfDataNodeEndpoint endpoint;
+		private final ByteBuffer stagingBuffer;
+		/* the futures of the writes ending in the range, until it is flushed */
+		private final ArrayList<NvmfCoalescedWriteFuture> futures;
+		private volatile Future<DataResult> writeFuture;
+		private volatile IOException exception;
+		private boolean released;
+
+		Group(NvmfDataNodeEndpoint endpoint, ByteBuffer stagingBuffer) {
+			this.endpoint = endpoint;
+			this.stagingBuffer = stagingBuffer;
+			this.futures = new ArrayList<NvmfCoalescedWriteFuture>();
+		}
+
+		Future<DataResult> getWriteFuture() {
+			return writeFuture;
+		}
+
+		IOException getException() {
+			return exception;
+		}
+
+		synchronized void release() throws IOException {
+			if (!released) {
+				released = true;
+				endpoint.putBuffer(stagingBuffer);
+			}
+		}
+	}
+
+	private final NvmfDataNodeEndpoint endpoint;
+	private final int threshold;
+	private final long timeoutNs;
+	private final Thread flusher;
+	private volatile boolean running;
+
+	private Group group;
+	private BlockInfo block;
+	private long startOffset;
+	private int staged;
+	private long deadline;
+	/* the range written last, and the block address and offset it ends at */
+	private Group previous;
+	private long previousBlock;
+	private long previousEnd;
+
+	NvmfWriteCoalescer(NvmfDataNodeEndpoint endpoint, int threshold, long timeoutNs, String name) {
+		this.endpoint = endpoint;
+		this.threshold = threshold;
+		this.timeoutNs = timeoutNs;
+		this.running = true;
+		if (timeoutNs > 0) {
+			this.flusher = new Thread(this, name);
+			this.flusher.setDaemon(true);
+			this.flusher.start();
+		} else {
+			/* every write is flushed right away */
+			this.flusher = null;
+		}
+	}
+
+	public void run() {
+		while (running) {
+			long waitNanos;
+			try {
+				waitNanos = flushExpired();
+			} catch (IOException e) {
+				// recorded in the group and reported by its futures
+				continue;
+			}
+			if (waitNanos > 0) {
+				LockSupport.parkNanos(this, waitNanos);
+			} else {
+				LockSupport.park(this);
+			}
+		}
+	}
+
+	/* writes the pending range and stops the flusher */
+	void close() throws IOException, InterruptedException {
+		if (flusher != null) {
+			running = false;
+			LockSupport.unpark(flusher);
+			flusher.join();
+		}
+		flush();
+	}
+
+	/* returns null if the write is too large to be coalesced */
+	synchronized Future<DataResult> write(ByteBuffer buffer, BlockInfo remoteMr, long remoteOffset)
+			throws IOException {
+		int length = buffer.remaining();
+		if (length >= threshold) {
+			return null;
+		}
+		if (group != null && (remoteMr.getAddr() != block.getAddr() || remoteOffset != startOffset + staged ||
+				staged + length > group.stagingBuffer.capacity())) {
+			flush();
+		}
+		if (group == null) {
+			group = newGroup();
+			block = remoteMr;
+			startOffset = remoteOffset;
+			staged = 0;
+			deadline = System.nanoTime() + timeoutNs;
+			if (flusher != null) {
+				LockSupport.unpark(flusher);
+			}
+		}
+		ByteBuffer stagingBuffer = group.stagingBuffer.duplicate();
+		stagingBuffer.clear().position(staged);
+		stagingBuffer.put(buffer.duplicate());
+		staged += length;
+		NvmfCoalescedWriteFuture future = new NvmfCoalescedWriteFuture(this, group, remoteOffset + length, length);
+		group.futures.add(future);
+		if (System.nanoTime() >= deadline) {
+			flush();
+		} else if (staged >= threshold) {
+			flushSectors();
+		}
+		return future;
+	}
+
+	/* a group never grows beyond twice the threshold */
+	private Group newGroup() {
+		return new Group(endpoint, endpoint.getBuffer((int) Math.min(2L * threshold, CrailConstants.BLOCK_SIZE)));
+	}
+
+	/* writes the staged range if it belongs to remoteMr */
+	synchronized void flush(BlockInfo remoteMr) throws IOException {
+		if (group != null && block.getAddr() == remoteMr.getAddr()) {
+			flush();
+		}
+	}
+
+	/* writes the range the data of future ends in if it is still pending */
+	synchronized void flush(NvmfCoalescedWriteFuture future) throws IOException {
+		if (group != null && future.getGroup() == group) {
+			flush();
+		}
+	}
+
+	/* returns the nanoseconds until the pending range expires, 0 if there is none */
+	private synchronized long flushExpired() throws IOException {
+		if (group == null) {
+			return 0;
+		}
+		long waitNanos = deadline - System.nanoTime();
+		if (waitNanos <= 0) {
+			flush();
+			return 0;
+		}
+		return waitNanos;
+	}
+
+	/* writes the whole staged range */
+	synchronized void flush() throws IOException {
+		if (group == null) {
+			return;
+		}
+		Group flushed = group;
+		group = null;
+		BlockInfo remoteMr = block;
+		block = null;
+		submit(flushed, remoteMr, startOffset, staged);
+	}
+
+	/*
+	 * Writes the staged range up to its last sector boundary and starts the next range with
+	 * the rest. The futures of writes ending in the rest move along, those of writes starting
+	 * before the boundary wait for both ranges.
+	 */
+	private void flushSectors() throws IOException {
+		long sectorEnd = NvmfDataNodeUtils.alignOffset(endpoint.getSectorSize(), startOffset + staged);
+		int length = (int) (sectorEnd - startOffset);
+		if (length <= 0) {
+			// nothing but a partial sector, the range grows until the group is full
+			return;
+		}
+		if (length == staged) {
+			flush();
+			return;
+		}
+		Group flushed = group;
+		Group next = newGroup();
+		int carried = staged - length;
+		NvmfDataNodeUtils.copyMemory(NvmfDataNodeUtils.getAddress(flushed.stagingBuffer) + length,
+				NvmfDataNodeUtils.getAddress(next.stagingBuffer), carried);
+		for (NvmfCoalescedWriteFuture future : flushed.futures) {
+			if (future.getEndOffset() > sectorEnd) {
+				future.carry(next, future.getEndOffset() - future.getLen() < sectorEnd ? flushed : null);
+				next.futures.add(future);
+			}
+		}
+		long flushedOffset = startOffset;
+		group = next;
+		startOffset = sectorEnd;
+		staged = carried;
+		submit(flushed, block, flushedOffset, length);
+	}
+
+	private void submit(Group flushed, BlockInfo remoteMr, long offset, int length) throws IOException {
+		flushed.futures.clear();
+		if (previous != null && previousBlock == remoteMr.getAddr() && previousEnd == offset &&
+				NvmfDataNodeUtils.namespaceSectorOffset(endpoint.getSectorSize(), offset) != 0) {
+			// the sector we start in is still being written by the previous range
+			Future<DataResult> previousWrite = previous.writeFuture;
+			if (previousWrite != null) {
+				NvmfDataNodeUtils.awaitQuietly(previousWrite);
+			}
+		}
+		previous = flushed;
+		previousBlock = remoteMr.getAddr();
+		previousEnd = offset + length;
+		ByteBuffer stagingBuffer = flushed.stagingBuffer.duplicate();
+		stagingBuffer.clear().limit(length);
+		try {
+			flushed.writeFuture = endpoint.submitWrite(stagingBuffer, remoteMr, offset);
+		} catch (IOException e) {
+			flushed.exception = e;
+			flushed.release();
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,375 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.tools;
+
+import com.ibm.crail.conf.CrailConfiguration;
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.datanode.nvmf.NvmfDataNode;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeEndpoint;
+import com.ibm.crail.datanode.nvmf.client.NvmfLatencyHistogram;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * fio-like load generator that drives one datanode through NvmfDataNodeEndpoint, bypassing
+ * the namenode. It reads and writes the raw address space of the datanode and destroys the
+ * data of files stored in the range it writes to.
+ *
+ * Every thread keeps iodepth commands in flight and reaps them in submission order, the
+ * latency of a command is measured from its submission until the thread saw it complete.
+ */
+public class NvmfLoadGenerator {
+
+	/* a block of the raw address space of the datanode */
+	private static class Block extends BlockInfo {
+		private final long addr;
+		private final int stripeWidth;
+
+		Block(long addr, int stripeWidth) {
+			this.addr = addr;
+			this.stripeWidth = stripeWidth;
+		}
+
+		@Override
+		public long getAddr() {
+			return addr;
+		}
+
+		@Override
+		public int getLength() {
+			return (int) CrailConstants.BLOCK_SIZE;
+		}
+
+		@Override
+		public int getLkey() {
+			return stripeWidth;
+		}
+	}
+
+	private final NvmfDataNodeEndpoint endpoint;
+	private final boolean random;
+	private final int readPercentage;
+	private final int ioSize;
+	private final int alignment;
+	private final int ioDepth;
+	private final int threads;
+	private final long durationNs;
+	private final long offset;
+	private final long size;
+	private final int stripeWidth;
+
+	private final LongAdder readOps;
+	private final LongAdder writeOps;
+	private final NvmfLatencyHistogram readLatency;
+	private final NvmfLatencyHistogram writeLatency;
+
+	NvmfLoadGenerator(NvmfDataNodeEndpoint endpoint, boolean random, int readPercentage, int ioSize, int alignment,
+					  int ioDepth, int threads, long durationNs, long offset, long size, int stripeWidth) {
+		this.endpoint = endpoint;
+		this.random = random;
+		this.readPercentage = readPercentage;
+		this.ioSize = ioSize;
+		this.alignment = alignment;
+		this.ioDepth = ioDepth;
+		this.threads = threads;
+		this.durationNs = durationNs;
+		this.offset = offset;
+		this.size = size;
+		this.stripeWidth = stripeWidth;
+		this.readOps = new LongAdder();
+		this.writeOps = new LongAdder();
+		this.readLatency = new NvmfLatencyHistogram();
+		this.writeLatency = new NvmfLatencyHistogram();
+	}
+
+	/* returns the elapsed time in nanoseconds */
+	long run() throws Exception {
+		Thread[] workers = new Thread[threads];
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final long start = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			final int thread = i;
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						work(thread, start + durationNs);
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			}, "nvmf-load-" + i);
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		return elapsed;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void work(int thread, long end) throws Exception {
+		Random rand = new Random(thread);
+		/* sequential threads work on their own slice of the range */
+		long sliceSize = (size / threads) / alignment * alignment;
+		long sliceStart = offset + thread * sliceSize;
+		long sliceEnd = sliceStart + sliceSize;
+		long cursor = nextAddress(sliceStart, sliceEnd);
+
+		ByteBuffer[] buffers = new ByteBuffer[ioDepth];
+		Future<DataResult>[] futures = new Future[ioDepth];
+		boolean[] reads = new boolean[ioDepth];
+		long[] submitTimes = new long[ioDepth];
+		for (int i = 0; i < ioDepth; i++) {
+			buffers[i] = ByteBuffer.allocateDirect(ioSize);
+		}
+
+		int slot = 0;
+		while (true) {
+			if (futures[slot] != null) {
+				complete(futures[slot], reads[slot], submitTimes[slot]);
+				futures[slot] = null;
+			}
+			if (System.nanoTime() >= end) {
+				break;
+			}
+			long address;
+			if (random) {
+				address = randomAddress(rand);
+			} else {
+				address = cursor;
+				cursor = nextAddress(cursor + ioSize, sliceEnd);
+				if (cursor + ioSize > sliceEnd) {
+					cursor = nextAddress(sliceStart, sliceEnd);
+				}
+			}
+			boolean read = readPercentage == 100 || (readPercentage > 0 && rand.nextInt(100) < readPercentage);
+			Block block = new Block(address / CrailConstants.BLOCK_SIZE * CrailConstants.BLOCK_SIZE, stripeWidth);
+			long remoteOffset = address % CrailConstants.BLOCK_SIZE;
+			buffers[slot].clear();
+			submitTimes[slot] = System.nanoTime();
+			reads[slot] = read;
+			if (read) {
+				futures[slot] = endpoint.read(buffers[slot], null, block, remoteOffset);
+			} else {
+				futures[slot] = endpoint.write(buffers[slot], null, block, remoteOffset);
+			}
+			slot = (slot + 1) % ioDepth;
+		}
+		for (int i = 0; i < ioDepth; i++) {
+			if (futures[i] != null) {
+				complete(futures[i], reads[i], submitTimes[i]);
+			}
+		}
+	}
+
+	private void complete(Future<DataResult> future, boolean read, long submitTime) throws Exception {
+		future.get();
+		long latency = System.nanoTime() - submitTime;
+		endpoint.release(future);
+		if (read) {
+			readOps.increment();
+			readLatency.record(latency);
+		} else {
+			writeOps.increment();
+			writeLatency.record(latency);
+		}
+	}
+
+	/* next aligned address at or after address that does not make an I/O cross a block */
+	private long nextAddress(long address, long end) {
+		long aligned = (address + alignment - 1) / alignment * alignment;
+		if (aligned % CrailConstants.BLOCK_SIZE + ioSize > CrailConstants.BLOCK_SIZE) {
+			aligned = (aligned / CrailConstants.BLOCK_SIZE + 1) * CrailConstants.BLOCK_SIZE;
+		}
+		return Math.min(aligned, end);
+	}
+
+	private long randomAddress(Random rand) {
+		long blocks = size / CrailConstants.BLOCK_SIZE;
+		long block = offset / CrailConstants.BLOCK_SIZE + (long) (rand.nextDouble() * blocks);
+		long slots = (CrailConstants.BLOCK_SIZE - ioSize) / alignment + 1;
+		return block * CrailConstants.BLOCK_SIZE + (long) rand.nextInt((int) slots) * alignment;
+	}
+
+	String report(long elapsedNs, boolean json) {
+		double seconds = elapsedNs / 1e9;
+		long reads = readOps.sum();
+		long writes = writeOps.sum();
+		double iops = (reads + writes) / seconds;
+		double bandwidth = (reads + writes) * (double) ioSize / seconds / (1024 * 1024);
+		NvmfLatencyHistogram.Snapshot read = readLatency.snapshot();
+		NvmfLatencyHistogram.Snapshot write = writeLatency.snapshot();
+		StringBuilder report = new StringBuilder();
+		if (json) {
+			report.append("{\"runtime\":").append(String.format("%.3f", seconds));
+			report.append(",\"bs\":").append(ioSize);
+			report.append(",\"iodepth\":").append(ioDepth);
+			report.append(",\"threads\":").append(threads);
+			report.append(",\"iops\":").append(String.format("%.1f", iops));
+			report.append(",\"bandwidth\":").append(String.format("%.2f", bandwidth));
+			report.append(",\"read\":");
+			appendJson(report, reads, seconds, read);
+			report.append(",\"write\":");
+			appendJson(report, writes, seconds, write);
+			report.append("}\n");
+		} else {
+			report.append(String.format("runtime %.3fs, bs %d, iodepth %d, threads %d%n", seconds, ioSize, ioDepth,
+					threads));
+			report.append(String.format("total: iops %.1f, bandwidth %.2f MB/s%n", iops, bandwidth));
+			appendText(report, "read", reads, seconds, read);
+			appendText(report, "write", writes, seconds, write);
+		}
+		return report.toString();
+	}
+
+	private void appendJson(StringBuilder report, long ops, double seconds, NvmfLatencyHistogram.Snapshot latency) {
+		report.append("{\"ops\":").append(ops);
+		report.append(",\"iops\":").append(String.format("%.1f", ops / seconds));
+		report.append(",\"bandwidth\":").append(String.format("%.2f", ops * (double) ioSize / seconds / (1024 * 1024)));
+		report.append(",\"latency_ns\":{\"mean\":").append(latency.getMean());
+		report.append(",\"p50\":").append(latency.getP50());
+		report.append(",\"p90\":").append(latency.getP90());
+		report.append(",\"p99\":").append(latency.getP99());
+		report.append(",\"p99.9\":").append(latency.getP999());
+		report.append(",\"max\":").append(latency.getMax());
+		report.append("}}");
+	}
+
+	private void appendText(StringBuilder report, String name, long ops, double seconds,
+							NvmfLatencyHistogram.Snapshot latency) {
+		if (ops == 0) {
+			return;
+		}
+		report.append(String.format("%s: ops %d, iops %.1f, bandwidth %.2f MB/s%n", name, ops, ops / seconds,
+				ops * (double) ioSize / seconds / (1024 * 1024)));
+		report.append(String.format("%s latency (us): mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+				name, latency.getMean() / 1e3, latency.getP50() / 1e3, latency.getP90() / 1e3,
+				latency.getP99() / 1e3, latency.getP999() / 1e3, latency.getMax() / 1e3));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("a", "address", true, "datanode address host:port (default: bindip:port)");
+		options.addOption("s", "simulated", true, "run against a simulated namespace in this file");
+		options.addOption("m", "rw", true, "read, write, randread, randwrite, rw or randrw (default: randread)");
+		options.addOption("r", "rwmixread", true, "percentage of reads for rw and randrw (default: 50)");
+		options.addOption("b", "bs", true, "I/O size in bytes (default: 4096)");
+		options.addOption("A", "align", true, "offset alignment in bytes (default: bs)");
+		options.addOption("q", "iodepth", true, "commands in flight per thread (default: 1)");
+		options.addOption("t", "threads", true, "number of threads (default: 1)");
+		options.addOption("d", "runtime", true, "run time in seconds (default: 10)");
+		options.addOption("o", "offset", true, "start of the range in bytes (default: 0)");
+		options.addOption("S", "size", true, "size of the range in bytes (default: 1073741824)");
+		options.addOption("w", "stripewidth", true, "number of namespaces of the datanode (default: 1)");
+		options.addOption("j", "json", false, "print the report as JSON");
+		options.addOption("h", "help", false, "print this help");
+
+		CommandLine line;
+		try {
+			line = new GnuParser().parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("NvmfLoadGenerator", options);
+			System.exit(1);
+			return;
+		}
+		if (line.hasOption("h")) {
+			new HelpFormatter().printHelp("NvmfLoadGenerator", options);
+			return;
+		}
+
+		String mode = line.getOptionValue("m", "randread");
+		int readPercentage;
+		if (mode.equals("read") || mode.equals("randread")) {
+			readPercentage = 100;
+		} else if (mode.equals("write") || mode.equals("randwrite")) {
+			readPercentage = 0;
+		} else if (mode.equals("rw") || mode.equals("randrw")) {
+			readPercentage = Integer.parseInt(line.getOptionValue("r", "50"));
+		} else {
+			throw new IllegalArgumentException("unknown rw mode " + mode);
+		}
+		boolean random = mode.startsWith("rand");
+		int ioSize = Integer.parseInt(line.getOptionValue("b", "4096"));
+		int alignment = Integer.parseInt(line.getOptionValue("A", Integer.toString(ioSize)));
+		int ioDepth = Integer.parseInt(line.getOptionValue("q", "1"));
+		int threads = Integer.parseInt(line.getOptionValue("t", "1"));
+		long runtime = Long.parseLong(line.getOptionValue("d", "10"));
+		long offset = Long.parseLong(line.getOptionValue("o", "0"));
+		long size = Long.parseLong(line.getOptionValue("S", "1073741824"));
+		int stripeWidth = Integer.parseInt(line.getOptionValue("w", "1"));
+
+		if (ioSize <= 0 || ioSize > CrailConstants.BLOCK_SIZE) {
+			throw new IllegalArgumentException("bs must be > 0 and <= crail.blocksize");
+		}
+		if (alignment <= 0 || readPercentage < 0 || readPercentage > 100 || ioDepth <= 0 || threads <= 0 ||
+				runtime <= 0 || offset < 0 || stripeWidth <= 0) {
+			throw new IllegalArgumentException("invalid arguments");
+		}
+		if (offset % CrailConstants.BLOCK_SIZE != 0 || size < threads * CrailConstants.BLOCK_SIZE) {
+			throw new IllegalArgumentException("offset must be block aligned and size at least a block per thread");
+		}
+
+		NvmfDataNode datanode = new NvmfDataNode();
+		datanode.init(new CrailConfiguration(), new String[0]);
+		if (line.hasOption("s")) {
+			NvmfDataNodeConstants.SIMULATED_TARGET = line.getOptionValue("s");
+			NvmfDataNodeConstants.SIMULATED_SIZE = Math.max(NvmfDataNodeConstants.SIMULATED_SIZE, offset + size);
+		}
+		InetSocketAddress address;
+		if (line.hasOption("a")) {
+			String[] hostPort = line.getOptionValue("a").split(":");
+			address = new InetSocketAddress(hostPort[0],
+					hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : NvmfDataNodeConstants.PORT);
+		} else {
+			address = datanode.getAddress();
+		}
+
+		NvmfDataNodeEndpoint endpoint = (NvmfDataNodeEndpoint) datanode.createEndpoint(address);
+		try {
+			NvmfLoadGenerator generator = new NvmfLoadGenerator(endpoint, random, readPercentage, ioSize, alignment,
+					ioDepth, threads, TimeUnit.SECONDS.toNanos(runtime), offset, size, stripeWidth);
+			long elapsed = generator.run();
+			System.out.print(generator.report(elapsed, line.hasOption("j")));
+		} finally {
+			endpoint.close();
+		}
+		System.exit(0);
+	}
+}
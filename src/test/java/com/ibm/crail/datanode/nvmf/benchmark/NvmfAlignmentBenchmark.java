@@ -0,0 +1,68 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.benchmark;
+
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeUtils;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/* address and alignment math evaluated for every operation */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NvmfAlignmentBenchmark {
+
+	@Param({"512", "4096"})
+	public int sectorSize;
+
+	@Param({"0", "100"})
+	public long remoteOffset;
+
+	private final int length = 65536;
+
+	private final BlockInfo block = new NvmfBenchmarkBlock(1L << 30, 1 << 20);
+
+	@Benchmark
+	public long linearBlockAddress() {
+		return NvmfDataNodeUtils.linearBlockAddress(block, remoteOffset, sectorSize);
+	}
+
+	@Benchmark
+	public void alignment(Blackhole blackhole) {
+		blackhole.consume(NvmfDataNodeUtils.namespaceSectorOffset(sectorSize, remoteOffset));
+		blackhole.consume(NvmfDataNodeUtils.alignOffset(sectorSize, remoteOffset));
+		blackhole.consume(NvmfDataNodeUtils.alignLength(sectorSize, remoteOffset, length));
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.benchmark;
+
+import com.ibm.crail.namenode.protocol.BlockInfo;
+
+/* a block of the stand-in namespace, as the namenode would hand it out */
+class NvmfBenchmarkBlock extends BlockInfo {
+	private final long addr;
+	private final int length;
+
+	NvmfBenchmarkBlock(long addr, int length) {
+		this.addr = addr;
+		this.length = length;
+	}
+
+	@Override
+	public long getAddr() {
+		return addr;
+	}
+
+	@Override
+	public int getLength() {
+		return length;
+	}
+
+	@Override
+	public int getLkey() {
+		return 0;
+	}
+}
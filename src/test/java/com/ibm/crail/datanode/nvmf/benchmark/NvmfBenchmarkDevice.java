@@ -0,0 +1,134 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.benchmark;
+
+import com.ibm.crail.datanode.nvmf.client.NvmfCompletion;
+import com.ibm.crail.datanode.nvmf.client.NvmfDevice;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+/*
+ * Stand-in for a namespace that executes every command as a memory copy on submission.
+ * Completions are reported by the next processCompletions call, no latency is added and
+ * nothing is allocated per command, so benchmarks measure the client only.
+ */
+class NvmfBenchmarkDevice implements NvmfDevice {
+
+	static class Factory implements NvmfDevice.Factory {
+		private final int sectorSize;
+		private final ByteBuffer namespace;
+
+		Factory(int sectorSize, int namespaceSize) {
+			this.sectorSize = sectorSize;
+			this.namespace = ByteBuffer.allocateDirect(namespaceSize);
+		}
+
+		public NvmfDevice connect(URI url) throws IOException {
+			return new NvmfBenchmarkDevice(sectorSize, namespace.duplicate());
+		}
+	}
+
+	private static final NvmfCompletion COMPLETED = new NvmfCompletion() {
+		public boolean done() {
+			return true;
+		}
+
+		public boolean isSuccess() {
+			return true;
+		}
+
+		public String getStatus() {
+			return "SUCCESS";
+		}
+
+		public void release() {
+		}
+	};
+
+	private final int sectorSize;
+	private final ByteBuffer namespace;
+	private int pending;
+
+	NvmfBenchmarkDevice(int sectorSize, ByteBuffer namespace) {
+		this.sectorSize = sectorSize;
+		this.namespace = namespace;
+	}
+
+	public int getSectorSize() {
+		return sectorSize;
+	}
+
+	public int getIOQueueSize() {
+		return 128;
+	}
+
+	public long getNamespaceSize() {
+		return namespace.capacity();
+	}
+
+	public int getMaxTransferSize() {
+		return 0;
+	}
+
+	public NvmfCompletion read(ByteBuffer buffer, long lba) throws IOException {
+		ByteBuffer source = range(lba, buffer.remaining());
+		buffer.duplicate().put(source);
+		pending++;
+		return COMPLETED;
+	}
+
+	public NvmfCompletion write(ByteBuffer buffer, long lba) throws IOException {
+		range(lba, buffer.remaining()).put(buffer.duplicate());
+		pending++;
+		return COMPLETED;
+	}
+
+	public boolean supportsScatterGather() {
+		return false;
+	}
+
+	public NvmfCompletion read(ByteBuffer[] buffers, long lba) throws IOException {
+		throw new IOException("scatter/gather not supported");
+	}
+
+	public NvmfCompletion write(ByteBuffer[] buffers, long lba) throws IOException {
+		throw new IOException("scatter/gather not supported");
+	}
+
+	private ByteBuffer range(long lba, int length) throws IOException {
+		long offset = lba * sectorSize;
+		if (offset < 0 || offset + length > namespace.capacity()) {
+			throw new IOException("lba " + lba + " out of range");
+		}
+		namespace.clear().position((int) offset).limit((int) offset + length);
+		return namespace;
+	}
+
+	public int processCompletions(int max) throws IOException {
+		int completions = Math.min(pending, max);
+		pending -= completions;
+		return completions;
+	}
+
+	public void close() throws IOException {
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Crail: A Multi-tiered Distributed Direct Access File System
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.datanode.nvmf.benchmark;
+
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeEndpoint;
+import com.ibm.crail.datanode.nvmf.client.NvmfStagingPool;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Synchronous reads and writes through NvmfDataNodeEndpoint against NvmfBenchmarkDevice.
+ * A remote offset of 0 takes the aligned path, other offsets the unaligned paths
+ * (staged head and tail sectors for reads, tail sector cache or read-modify-write for
+ * writes). Run with -prof gc for the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NvmfEndpointBenchmark {
+
+	private static final int SECTOR_SIZE = 512;
+
+	@Param({"512", "4096", "65536", "262144"})
+	public int ioSize;
+
+	@Param({"0", "100"})
+	public int remoteOffset;
+
+	private NvmfDataNodeEndpoint endpoint;
+	private BlockInfo block;
+	private ByteBuffer buffer;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		int blockSize = (int) CrailConstants.BLOCK_SIZE;
+		endpoint = new NvmfDataNodeEndpoint(new NvmfBenchmarkDevice.Factory(SECTOR_SIZE, 4 * blockSize),
+				new InetSocketAddress("127.0.0.1", 4420), null, new NvmfStagingPool(), null);
+		block = new NvmfBenchmarkBlock(blockSize, blockSize);
+		buffer = ByteBuffer.allocateDirect(ioSize);
+		// unaligned reads need the sectors around them
+		buffer.clear();
+		endpoint.write(buffer, null, block, 0).get();
+		buffer.clear();
+		endpoint.write(buffer, null, block, ioSize).get();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		endpoint.close();
+	}
+
+	@Benchmark
+	public DataResult write() throws Exception {
+		buffer.clear();
+		Future<DataResult> future = endpoint.write(buffer, null, block, remoteOffset);
+		DataResult result = future.get();
+		endpoint.release(future);
+		return result;
+	}
+
+	@Benchmark
+	public DataResult read() throws Exception {
+		buffer.clear();
+		Future<DataResult> future = endpoint.read(buffer, null, block, remoteOffset);
+		DataResult result = future.get();
+		endpoint.release(future);
+		return result;
+	}
+}
@@ -0,0 +1,17 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import org.junit.Test;
+
+/* completion driven asynchronous I/O */
+public class AsyncIOTest extends SimulatedTargetBase {
+
+	@Test(timeout = 60000)
+	public void testAsyncIO() throws Exception {
+		asyncIO(true);
+		// completed through the reaper, nobody calls progress
+		NvmfDataNodeConstants.WAIT_STRATEGY = "park";
+		connect();
+		asyncIO(false);
+	}
+}
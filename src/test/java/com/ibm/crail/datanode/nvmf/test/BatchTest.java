@@ -0,0 +1,98 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import com.ibm.crail.datanode.nvmf.client.NvmfBatchEntry;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* batched reads and writes, split into chunks of the transfer size */
+public class BatchTest extends SimulatedTargetBase {
+
+	/* batches beyond the queue depth go out in waves, next to single ops of another thread */
+	@Test(timeout = 60000)
+	public void testLargeBatch() throws Exception {
+		final BlockInfo block = newBlock();
+		final BlockInfo otherBlock = newBlock();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; i < 100; i++) {
+						endpoint.write(randomBuffer(0, 4096), null, otherBlock, i * 4096).get();
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			}
+		});
+		thread.start();
+		ByteBuffer data = randomBuffer(0, 100 * 4096);
+		List<NvmfBatchEntry> entries = new ArrayList<NvmfBatchEntry>();
+		for (int i = 0; i < 100; i++) {
+			ByteBuffer slice = data.duplicate();
+			slice.position(i * 4096).limit((i + 1) * 4096);
+			entries.add(new NvmfBatchEntry(slice, block, i * 4096));
+		}
+		endpoint.writeBatch(entries).get();
+		thread.join();
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		ByteBuffer input = ByteBuffer.allocateDirect(data.capacity());
+		entries.clear();
+		for (int i = 0; i < 100; i++) {
+			ByteBuffer slice = input.duplicate();
+			slice.position(i * 4096).limit((i + 1) * 4096);
+			entries.add(new NvmfBatchEntry(slice, block, i * 4096));
+		}
+		endpoint.readBatch(entries).get();
+		data.clear();
+		Assert.assertTrue(input.compareTo(data) == 0);
+	}
+
+	/*
+	 * A chunk failing after the first one went out with a reserved slot must neither leak nor
+	 * double count that slot: the simulated queue rejects commands beyond its depth.
+	 */
+	@Test(timeout = 60000)
+	public void testChunkFailure() throws Exception {
+		NvmfDataNodeConstants.TRANSFER_SIZE = 4096;
+		AtomicInteger writesToFail = new AtomicInteger(-1);
+		connect(writesToFail, new AtomicBoolean(false));
+		BlockInfo block = newBlock();
+		for (int round = 0; round < 4; round++) {
+			List<NvmfBatchEntry> entries = new ArrayList<NvmfBatchEntry>();
+			for (int i = 0; i < 4; i++) {
+				entries.add(new NvmfBatchEntry(randomBuffer(0, 16384), block, i * 16384));
+			}
+			writesToFail.set(2 + round);
+			try {
+				endpoint.writeBatch(entries).get();
+				Assert.fail("write did not fail");
+			} catch (IOException e) {
+				// expected, the third chunk of the first entry fails
+			} catch (ExecutionException e) {
+				// expected if the failing chunk belongs to a later entry
+			}
+		}
+		writesToFail.set(-1);
+		for (int round = 0; round < 4; round++) {
+			List<NvmfBatchEntry> entries = new ArrayList<NvmfBatchEntry>();
+			for (int i = 0; i < 100; i++) {
+				entries.add(new NvmfBatchEntry(randomBuffer(0, 4096), block, i * 4096));
+			}
+			endpoint.writeBatch(entries).get();
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.datanode.nvmf.client.NvmfBlockCache;
+import com.ibm.crail.datanode.nvmf.client.NvmfCompletion;
+import com.ibm.crail.datanode.nvmf.client.NvmfDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfSimulatedDevice;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* the read cache shared by the endpoints of a client */
+public class BlockCacheTest extends SimulatedTargetBase {
+
+	/* lengths of the reads reaching the device */
+	final ConcurrentLinkedQueue<Integer> reads = new ConcurrentLinkedQueue<Integer>();
+	/* writes wait in the client until opened */
+	final CountDownLatch writeGate = new CountDownLatch(1);
+	final AtomicBoolean gateWrites = new AtomicBoolean(false);
+
+	/* completes once it was submitted to the device after the gate opened */
+	static class HeldWrite implements NvmfCompletion {
+		private final ByteBuffer buffer;
+		private final long lba;
+		private volatile NvmfCompletion completion;
+
+		HeldWrite(ByteBuffer buffer, long lba) {
+			this.buffer = buffer;
+			this.lba = lba;
+		}
+
+		public boolean done() {
+			return completion != null && completion.done();
+		}
+
+		public boolean isSuccess() {
+			return completion.isSuccess();
+		}
+
+		public String getStatus() {
+			return completion.getStatus();
+		}
+
+		public void release() {
+			completion.release();
+		}
+	}
+
+	void connectCache(int lines) throws Exception {
+		blockCache = new NvmfBlockCache(lines * 4096, 4096);
+		final NvmfSimulatedDevice.Factory factory = simulated();
+		connect(new NvmfDevice.Factory() {
+			public NvmfDevice connect(URI url) throws IOException {
+				final ConcurrentLinkedQueue<HeldWrite> held = new ConcurrentLinkedQueue<HeldWrite>();
+				return new FailingDevice(factory.connect(url), new AtomicInteger(-1), new AtomicBoolean(false)) {
+					@Override
+					public NvmfCompletion read(ByteBuffer buffer, long lba) throws IOException {
+						reads.add(buffer.remaining());
+						return super.read(buffer, lba);
+					}
+
+					@Override
+					public NvmfCompletion write(ByteBuffer buffer, long lba) throws IOException {
+						if (gateWrites.get() && writeGate.getCount() > 0) {
+							HeldWrite write = new HeldWrite(buffer, lba);
+							held.add(write);
+							return write;
+						}
+						return super.write(buffer, lba);
+					}
+
+					@Override
+					public int processCompletions(int max) throws IOException {
+						if (writeGate.getCount() == 0) {
+							HeldWrite write;
+							while ((write = held.poll()) != null) {
+								write.completion = super.write(write.buffer, write.lba);
+							}
+						}
+						return super.processCompletions(max);
+					}
+				};
+			}
+		});
+	}
+
+	ByteBuffer read(BlockInfo block, int offset, int length) throws Exception {
+		ByteBuffer input = ByteBuffer.allocateDirect(length);
+		Assert.assertEquals(length, endpoint.read(input, null, block, offset).get().getLen());
+		input.clear();
+		return input;
+	}
+
+	void assertData(ByteBuffer data, int offset, ByteBuffer input) {
+		data.clear().position(offset).limit(offset + input.remaining());
+		Assert.assertTrue("offset " + offset, input.compareTo(data) == 0);
+	}
+
+	/* hits are served from the cache with the data of the line, at any offset into it */
+	@Test(timeout = 60000)
+	public void testHit() throws Exception {
+		connectCache(16);
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 16 * 1024);
+		endpoint.write(data, null, block, 0).get();
+		reads.clear();
+
+		assertData(data, 4096, read(block, 4096, 4096));
+		Assert.assertEquals(1, blockCache.getMisses());
+		Assert.assertEquals(1, reads.size());
+		assertData(data, 4096, read(block, 4096, 4096));
+		assertData(data, 4196, read(block, 4196, 100));
+		assertData(data, 8000, read(block, 8000, 150));
+		Assert.assertEquals(3, blockCache.getHits());
+		Assert.assertEquals(1, blockCache.getMisses());
+		Assert.assertEquals(1, reads.size());
+	}
+
+	/* a full cache evicts lines with CLOCK, lines hit since the hand passed stay */
+	@Test(timeout = 60000)
+	public void testEviction() throws Exception {
+		connectCache(4);
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 64 * 1024);
+		endpoint.write(data, null, block, 0).get();
+
+		for (int line = 0; line < 4; line++) {
+			assertData(data, line * 4096, read(block, line * 4096, 4096));
+		}
+		Assert.assertEquals(0, blockCache.getEvictions());
+		assertData(data, 0, read(block, 0, 4096));
+		Assert.assertEquals(1, blockCache.getHits());
+
+		// evicts lines 1 and 2, line 0 got a second chance
+		assertData(data, 4 * 4096, read(block, 4 * 4096, 4096));
+		assertData(data, 5 * 4096, read(block, 5 * 4096, 4096));
+		Assert.assertEquals(2, blockCache.getEvictions());
+		assertData(data, 0, read(block, 0, 4096));
+		Assert.assertEquals(2, blockCache.getHits());
+		assertData(data, 4096, read(block, 4096, 4096));
+		Assert.assertEquals(2, blockCache.getHits());
+
+		// reads spanning more lines than a sixteenth of the cache bypass it
+		long misses = blockCache.getMisses();
+		assertData(data, 8192, read(block, 8192, 8192));
+		Assert.assertEquals(1, blockCache.getBypasses());
+		Assert.assertEquals(misses, blockCache.getMisses());
+	}
+
+	/* writes drop the lines they overlap, data past the end of a write is undefined as for appends */
+	@Test(timeout = 60000)
+	public void testWriteInvalidation() throws Exception {
+		connectCache(16);
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 16 * 1024);
+		endpoint.write(data, null, block, 0).get();
+		assertData(data, 0, read(block, 0, 4096));
+
+		ByteBuffer update = randomBuffer(0, 1000);
+		endpoint.write(update, null, block, 100).get();
+		update.clear();
+		data.clear().position(100);
+		data.put(update);
+		Assert.assertEquals(1, blockCache.getInvalidations());
+		assertData(data, 0, read(block, 0, 1100));
+	}
+
+	/* a line filled with the old data while a write was in flight is dropped once the write completed */
+	@Test(timeout = 60000)
+	public void testFillDuringWrite() throws Exception {
+		connectCache(16);
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 16 * 1024);
+		endpoint.write(data, null, block, 0).get();
+
+		gateWrites.set(true);
+		ByteBuffer update = randomBuffer(0, 4096);
+		Future<DataResult> write = endpoint.write(update, null, block, 0);
+		// the write is still held, the fill reads the old data
+		assertData(data, 0, read(block, 0, 4096));
+		writeGate.countDown();
+		write.get();
+
+		update.clear();
+		data.clear();
+		data.put(update);
+		assertData(data, 0, read(block, 0, 4096));
+	}
+}
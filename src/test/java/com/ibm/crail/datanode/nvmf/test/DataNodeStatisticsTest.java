@@ -0,0 +1,98 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/* the capacity statistics a datanode publishes as MXBean and as JSON */
+public class DataNodeStatisticsTest extends SimulatedTargetBase {
+
+	static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	static String get(URL url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		try {
+			Assert.assertEquals(200, connection.getResponseCode());
+			Assert.assertTrue(connection.getContentType().startsWith("application/json"));
+			InputStream in = connection.getInputStream();
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] chunk = new byte[4096];
+			int read;
+			while ((read = in.read(chunk)) > 0) {
+				body.write(chunk, 0, read);
+			}
+			return new String(body.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testExport() throws Exception {
+		long capacity = BLOCKS * CrailConstants.BLOCK_SIZE;
+		SimulatedDataNode datanode = new SimulatedDataNode(namespace.getPath(), capacity);
+		NvmfDataNodeConstants.ALLOCATION_SIZE = CrailConstants.BLOCK_SIZE;
+		NvmfDataNodeConstants.STATISTICS_PORT = freePort();
+		datanode.freeBlocks.set(BLOCKS - 5);
+		datanode.start();
+		// the first report of the namenode is in
+		datanode.awaitPolls(2);
+
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("com.ibm.crail.datanode.nvmf:type=DataNode,name=" +
+				ObjectName.quote(datanode.getAddress().toString()));
+		URL url = new URL("http://127.0.0.1:" + NvmfDataNodeConstants.STATISTICS_PORT + "/statistics");
+		try {
+			Assert.assertEquals(capacity, ((Long) mbeanServer.getAttribute(name, "Capacity")).longValue());
+			Assert.assertEquals(capacity, ((Long) mbeanServer.getAttribute(name, "RegisteredBytes")).longValue());
+			Assert.assertEquals(BLOCKS - 5, ((Long) mbeanServer.getAttribute(name, "FreeBlocks")).longValue());
+			Assert.assertEquals(5, ((Long) mbeanServer.getAttribute(name, "AllocatedBlocks")).longValue());
+			Assert.assertEquals(0, ((Long) mbeanServer.getAttribute(name, "AcceptedConnections")).longValue());
+
+			String json = get(url);
+			Assert.assertTrue(json, json.startsWith("{\"address\":\"127.0.0.1:" + NvmfDataNodeConstants.PORT + "\""));
+			Assert.assertTrue(json, json.contains("\"capacity\":" + capacity + ","));
+			Assert.assertTrue(json, json.contains("\"registeredBytes\":" + capacity + ","));
+			Assert.assertTrue(json, json.contains("\"blockSize\":" + CrailConstants.BLOCK_SIZE + ","));
+			Assert.assertTrue(json, json.contains("\"freeBlocks\":" + (BLOCKS - 5) + ","));
+			Assert.assertTrue(json, json.contains("\"allocatedBlocks\":5,"));
+			Assert.assertTrue(json, json.endsWith("\"controllers\":[]}"));
+
+			// the next report is picked up
+			datanode.freeBlocks.set(BLOCKS - 7);
+			datanode.awaitPolls(datanode.polls.get() + 2);
+			Assert.assertEquals(7, ((Long) mbeanServer.getAttribute(name, "AllocatedBlocks")).longValue());
+			Assert.assertTrue(get(url).contains("\"allocatedBlocks\":7,"));
+		} finally {
+			datanode.stop();
+		}
+
+		// both go away with the datanode
+		Assert.assertFalse(mbeanServer.isRegistered(name));
+		try {
+			get(url);
+			Assert.fail("statistics still served");
+		} catch (IOException e) {
+			// refused
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* aligned, unaligned, vectored and concurrent direct I/O */
+public class DirectIOTest extends SimulatedTargetBase {
+
+	@Test
+	public void testDirectIO() throws Exception {
+		int blockSize = (int) CrailConstants.BLOCK_SIZE;
+		int lengths[] = {
+				blockSize / 2,
+				4096,
+				rand.nextInt(blockSize / 2 - 1) + 1,
+				rand.nextInt(511) + 1
+		};
+		int positions[] = {0, rand.nextInt(511) + 1};
+		int remoteOffsets[] = {0, 4096, rand.nextInt(blockSize / 2 - 1) + 1};
+
+		for (int length : lengths) {
+			for (int position : positions) {
+				for (int remoteOffset : remoteOffsets) {
+					writeRead(length, position, remoteOffset);
+				}
+			}
+		}
+	}
+
+	/*
+	 * header and payload appended with one call, read back into a single buffer and scattered
+	 * again. Without the tail sector cached an unaligned append reads the head sector back.
+	 */
+	void scatterGather(int headerLength, int payloadLength, int remoteOffset, boolean cachedTail) throws Exception {
+		BlockInfo block = newBlock();
+		ByteBuffer skip = randomBuffer(0, remoteOffset);
+		if (remoteOffset > 0) {
+			endpoint.write(skip, null, block, 0).get();
+			if (!cachedTail) {
+				endpoint.invalidateTailSector(block);
+			}
+		}
+		ByteBuffer header = randomBuffer(0, headerLength);
+		ByteBuffer payload = randomBuffer(0, payloadLength);
+		int length = headerLength + payloadLength;
+		Assert.assertEquals(length, endpoint.write(new ByteBuffer[]{header, payload}, block, remoteOffset).get().getLen());
+		Assert.assertEquals(0, header.position());
+
+		ByteBuffer input = ByteBuffer.allocateDirect(length);
+		endpoint.read(input, null, block, remoteOffset).get();
+		input.limit(headerLength);
+		Assert.assertTrue(input.compareTo(header) == 0);
+		input.position(headerLength).limit(length);
+		Assert.assertTrue(input.compareTo(payload) == 0);
+		if (remoteOffset > 0) {
+			input.clear().limit(remoteOffset);
+			endpoint.read(input, null, block, 0).get();
+			Assert.assertTrue(input.compareTo(skip) == 0);
+		}
+
+		ByteBuffer headerInput = ByteBuffer.allocateDirect(headerLength);
+		ByteBuffer payloadInput = ByteBuffer.allocateDirect(payloadLength);
+		Assert.assertEquals(length,
+				endpoint.read(new ByteBuffer[]{headerInput, payloadInput}, block, remoteOffset).get().getLen());
+		Assert.assertTrue(headerInput.compareTo(header) == 0);
+		Assert.assertTrue(payloadInput.compareTo(payload) == 0);
+	}
+
+	@Test
+	public void testScatterGather() throws Exception {
+		scatterGather(512, 8192, 0, true);
+		scatterGather(512, 8192, 4096, true);
+		scatterGather(100, 4000, 0, true);
+		scatterGather(100, 4000, 1000, true);
+		scatterGather(100, 4000, 1000, false);
+	}
+
+	@Test
+	public void testConcurrentAppends() throws Exception {
+		Thread[] threads = new Thread[4];
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						BlockInfo block = newBlock();
+						ByteBuffer data = randomBuffer(0, (int) CrailConstants.BLOCK_SIZE);
+						int offset = 0;
+						while (offset < data.capacity()) {
+							int length = Math.min(rand.nextInt(8192) + 1, data.capacity() - offset);
+							ByteBuffer slice = data.duplicate();
+							slice.position(offset).limit(offset + length);
+							endpoint.write(slice, null, block, offset).get();
+							offset += length;
+						}
+						ByteBuffer input = ByteBuffer.allocateDirect(data.capacity());
+						endpoint.read(input, null, block, 0).get();
+						data.clear();
+						Assert.assertTrue(input.compareTo(data) == 0);
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.datanode.nvmf.client.NvmfBatchEntry;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/* futures handed back to the endpoint are recycled */
+public class FutureRecyclingTest extends SimulatedTargetBase {
+
+	/* released futures are reused by later operations and can not be used anymore themselves */
+	@Test(timeout = 60000)
+	public void testReleasedFutures() throws Exception {
+		BlockInfo block = newBlock();
+		ByteBuffer written = randomBuffer(0, 64 * 1024);
+		int offset = 0;
+		while (offset < written.capacity()) {
+			int length = Math.min(rand.nextInt(3000) + 1, written.capacity() - offset);
+			written.limit(offset + length).position(offset);
+			Future<DataResult> future = endpoint.write(written, null, block, offset);
+			Assert.assertEquals(length, future.get().getLen());
+			endpoint.release(future);
+			offset += length;
+		}
+		written.clear();
+
+		ByteBuffer input = ByteBuffer.allocateDirect(written.capacity());
+		for (int i = 0; i < 100; i++) {
+			int position = rand.nextInt(written.capacity() - 2048);
+			int length = rand.nextInt(2048) + 1;
+			// the same range of the same buffer as before every other time
+			ByteBuffer target = i % 2 == 0 ? input : ByteBuffer.allocateDirect(written.capacity());
+			target.limit(position + length).position(position);
+			Future<DataResult> future = endpoint.read(target, null, block, position);
+			future.get();
+			endpoint.release(future);
+			endpoint.release(future);
+			written.limit(position + length).position(position);
+			target.position(position);
+			Assert.assertTrue("position = " + position + ", length = " + length, target.compareTo(written) == 0);
+		}
+
+		List<NvmfBatchEntry> entries = new ArrayList<NvmfBatchEntry>();
+		for (int i = 0; i < 4; i++) {
+			entries.add(new NvmfBatchEntry(ByteBuffer.allocateDirect(1000), block, i * 1000 + 100));
+		}
+		Future<DataResult> batch = endpoint.readBatch(entries);
+		Assert.assertEquals(4000, batch.get().getLen());
+		endpoint.release(batch);
+		try {
+			batch.get();
+			Assert.fail("get after release");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		input.clear().limit(100);
+		Future<DataResult> future = endpoint.read(input, null, block, 10);
+		future.get();
+		endpoint.release(future);
+		try {
+			future.isDone();
+			Assert.fail("isDone after release");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
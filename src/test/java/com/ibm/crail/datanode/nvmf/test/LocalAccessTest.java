@@ -0,0 +1,108 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.datanode.nvmf.NvmfDataNode;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeEndpoint;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeUtils;
+import com.ibm.crail.datanode.nvmf.client.NvmfDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfStagingPool;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* clients reach a datanode on their own host without the fabric */
+public class LocalAccessTest extends SimulatedTargetBase {
+
+	/* a simulated datanode whose fabric takes a while */
+	NvmfDataNode datanode(boolean localAccess) {
+		NvmfDataNodeConstants.SIMULATED_TARGET = namespace.getPath();
+		NvmfDataNodeConstants.SIMULATED_SIZE = BLOCKS * CrailConstants.BLOCK_SIZE;
+		NvmfDataNodeConstants.SIMULATED_LATENCY = 100;
+		NvmfDataNodeConstants.LOCAL_ACCESS = localAccess;
+		return new NvmfDataNode();
+	}
+
+	void assertShared(NvmfDataNodeEndpoint writer, NvmfDataNodeEndpoint reader) throws Exception {
+		BlockInfo block = newBlock();
+		ByteBuffer output = randomBuffer(0, 8192);
+		Assert.assertEquals(8192, writer.write(output, null, block, 0).get().getLen());
+		ByteBuffer input = ByteBuffer.allocateDirect(8192);
+		Assert.assertEquals(8192, reader.read(input, null, block, 0).get().getLen());
+		input.clear();
+		output.clear();
+		Assert.assertTrue(input.compareTo(output) == 0);
+	}
+
+	@Test
+	public void testLocalAddress() throws Exception {
+		Assert.assertTrue(NvmfDataNodeUtils.isLocalAddress(new InetSocketAddress("127.0.0.1", 4420)));
+		Assert.assertTrue(NvmfDataNodeUtils.isLocalAddress(new InetSocketAddress("0.0.0.0", 4420)));
+		// TEST-NET-1, never assigned to a host
+		Assert.assertFalse(NvmfDataNodeUtils.isLocalAddress(new InetSocketAddress("192.0.2.1", 4420)));
+		Assert.assertFalse(NvmfDataNodeUtils.isLocalAddress(InetSocketAddress.createUnresolved("datanode", 4420)));
+	}
+
+	/* the client maps the namespace of the datanode, data is shared with fabric clients */
+	@Test(timeout = 60000)
+	public void testLocalDatanode() throws Exception {
+		NvmfDataNodeEndpoint local = (NvmfDataNodeEndpoint) datanode(true).createEndpoint(
+				new InetSocketAddress("127.0.0.1", 4420));
+		try {
+			Assert.assertTrue(local.isLocal());
+			Assert.assertFalse(endpoint.isLocal());
+			assertShared(local, endpoint);
+			assertShared(endpoint, local);
+		} finally {
+			local.close();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testRemoteDatanode() throws Exception {
+		NvmfDataNode datanode = datanode(true);
+		NvmfDataNodeEndpoint remote = (NvmfDataNodeEndpoint) datanode.createEndpoint(
+				new InetSocketAddress("192.0.2.1", 4420));
+		try {
+			Assert.assertFalse(remote.isLocal());
+			assertShared(remote, endpoint);
+		} finally {
+			remote.close();
+		}
+
+		NvmfDataNodeEndpoint disabled = (NvmfDataNodeEndpoint) datanode(false).createEndpoint(
+				new InetSocketAddress("127.0.0.1", 4420));
+		try {
+			Assert.assertFalse(disabled.isLocal());
+		} finally {
+			disabled.close();
+		}
+	}
+
+	/* e.g. the controller is held by the datanode process */
+	@Test(timeout = 60000)
+	public void testFallback() throws Exception {
+		final AtomicInteger attempts = new AtomicInteger(0);
+		NvmfDevice.Factory failing = new NvmfDevice.Factory() {
+			public NvmfDevice connect(URI url) throws IOException {
+				attempts.incrementAndGet();
+				throw new IOException("controller claimed");
+			}
+		};
+		NvmfDataNodeEndpoint fallback = new NvmfDataNodeEndpoint(simulated(), failing,
+				new InetSocketAddress("127.0.0.1", 4420), null, new NvmfStagingPool(), null);
+		try {
+			Assert.assertEquals(1, attempts.get());
+			Assert.assertFalse(fallback.isLocal());
+			assertShared(fallback, endpoint);
+		} finally {
+			fallback.close();
+		}
+	}
+}
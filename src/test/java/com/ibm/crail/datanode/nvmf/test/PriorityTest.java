@@ -0,0 +1,145 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import com.ibm.crail.datanode.nvmf.client.NvmfBatchEntry;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataBatchFuture;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeEndpoint.Priority;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeUtils;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* admission of latency and bulk operations to the queue pairs */
+public class PriorityTest extends SimulatedTargetBase {
+
+	/* bulk batches split into chunks beyond the transfer size, next to chunked latency ops */
+	@Test(timeout = 60000)
+	public void testChunkedPriorities() throws Exception {
+		NvmfDataNodeConstants.TRANSFER_SIZE = 4096;
+		connect();
+		final BlockInfo latencyBlock = newBlock();
+		final ByteBuffer latencyData = randomBuffer(0, 64 * 8192);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int offset = 0; offset < latencyData.capacity(); offset += 8192) {
+						ByteBuffer slice = latencyData.duplicate();
+						slice.position(offset).limit(offset + 8192);
+						endpoint.write(slice, null, latencyBlock, offset, Priority.LATENCY).get();
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			}
+		});
+		thread.start();
+		BlockInfo bulkBlock = newBlock();
+		ByteBuffer bulkData = randomBuffer(0, 16 * 65536);
+		List<NvmfBatchEntry> entries = new ArrayList<NvmfBatchEntry>();
+		for (int i = 0; i < 16; i++) {
+			ByteBuffer slice = bulkData.duplicate();
+			/* the last entry ends unaligned */
+			slice.position(i * 65536).limit((i + 1) * 65536 - (i == 15 ? 100 : 0));
+			entries.add(new NvmfBatchEntry(slice, bulkBlock, i * 65536));
+		}
+		endpoint.writeBatch(entries, Priority.BULK).get();
+		thread.join();
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		ByteBuffer input = ByteBuffer.allocateDirect(bulkData.capacity() - 100);
+		endpoint.read(input.duplicate(), null, bulkBlock, 0, Priority.BULK).get();
+		bulkData.clear().limit(bulkData.capacity() - 100);
+		Assert.assertTrue(input.compareTo(bulkData) == 0);
+		input = ByteBuffer.allocateDirect(latencyData.capacity());
+		endpoint.read(input.duplicate(), null, latencyBlock, 0, Priority.LATENCY).get();
+		latencyData.clear();
+		Assert.assertTrue(input.compareTo(latencyData) == 0);
+	}
+
+	/* a bulk batch stuck in the device leaves latencyshare of the window to latency ops */
+	@Test(timeout = 60000)
+	public void testLatencyShare() throws Exception {
+		NvmfDataNodeConstants.LATENCY_SHARE = 25;
+		final BlockInfo bulkBlock = newBlock();
+		final GatedDevice device = connectGated(bulkBlock, false);
+		Assert.assertEquals(32, endpoint.getQueueDepth());
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					endpoint.readBatch(entries(bulkBlock, 64), Priority.BULK).get();
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			}
+		});
+		thread.start();
+		while (device.getHeld() < 24) {
+			Thread.sleep(1);
+		}
+		Thread.sleep(20);
+		Assert.assertEquals(24, device.getHeld());
+
+		// a directory entry is a latency op by its size, larger ops by their priority
+		BlockInfo latencyBlock = newBlock();
+		Future<DataResult> future = endpoint.read(ByteBuffer.allocateDirect(512), null, latencyBlock, 0);
+		Assert.assertEquals(512, future.get(1, TimeUnit.SECONDS).getLen());
+		future = endpoint.read(ByteBuffer.allocateDirect(4096), null, latencyBlock, 0, Priority.LATENCY);
+		Assert.assertEquals(4096, future.get(1, TimeUnit.SECONDS).getLen());
+		Assert.assertEquals(24, device.getHeld());
+
+		device.open();
+		thread.join();
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+	}
+
+	/* the poller of a shared queue pair submits latencyweight latency commands per bulk command */
+	@Test(timeout = 60000)
+	public void testWeightedRoundRobin() throws Exception {
+		NvmfDataNodeConstants.SHARED_QUEUE_PAIRS = true;
+		NvmfDataNodeConstants.LATENCY_WEIGHT = 2;
+		BlockInfo blockerBlock = newBlock();
+		GatedDevice device = connectGated(blockerBlock, true);
+		// stalls the poller until both submission rings filled up
+		Future<DataResult> blocker = endpoint.read(ByteBuffer.allocateDirect(4096), null, blockerBlock, 0,
+				Priority.BULK);
+		while (device.getHeld() == 0) {
+			Thread.sleep(1);
+		}
+		BlockInfo bulkBlock = newBlock();
+		BlockInfo latencyBlock = newBlock();
+		NvmfDataBatchFuture bulk = endpoint.readBatch(entries(bulkBlock, 8), Priority.BULK);
+		NvmfDataBatchFuture latency = endpoint.readBatch(entries(latencyBlock, 8), Priority.LATENCY);
+		device.open();
+		blocker.get();
+		bulk.get();
+		latency.get();
+
+		long latencyLba = NvmfDataNodeUtils.linearBlockAddress(latencyBlock, 0, 512);
+		long bulkLba = NvmfDataNodeUtils.linearBlockAddress(bulkBlock, 0, 512);
+		long sectors = CrailConstants.BLOCK_SIZE / 512;
+		StringBuilder order = new StringBuilder();
+		for (long lba : device.submitted) {
+			if (lba >= latencyLba && lba < latencyLba + sectors) {
+				order.append('L');
+			} else if (lba >= bulkLba && lba < bulkLba + sectors) {
+				order.append('B');
+			}
+		}
+		Assert.assertTrue(order.toString(), order.toString().equals("LLBLLBLLBLLBBBBB"));
+	}
+}
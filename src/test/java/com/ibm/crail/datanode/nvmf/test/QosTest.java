@@ -0,0 +1,149 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.datanode.nvmf.client.NvmfBatchEntry;
+import com.ibm.crail.datanode.nvmf.client.NvmfBlockCache;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeEndpoint;
+import com.ibm.crail.datanode.nvmf.client.NvmfQos;
+import com.ibm.crail.datanode.nvmf.client.NvmfSimulatedDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfStagingPool;
+import com.ibm.crail.datanode.nvmf.client.NvmfTokenBucket;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* client I/O limits, against a simulated namespace without latency */
+public class QosTest {
+
+	static final int BLOCKS = 4;
+
+	File namespace;
+	NvmfDataNodeEndpoint endpoint;
+
+	Random rand = new Random();
+
+	@Before
+	public void init() throws Exception {
+		namespace = File.createTempFile("nvmf-qos", ".ns");
+	}
+
+	@After
+	public void fini() throws Exception {
+		if (endpoint != null) {
+			endpoint.close();
+		}
+		namespace.delete();
+	}
+
+	void connect(NvmfQos qos, NvmfBlockCache blockCache) throws Exception {
+		NvmfSimulatedDevice.Factory factory = new NvmfSimulatedDevice.Factory(namespace.getPath(),
+				BLOCKS * CrailConstants.BLOCK_SIZE, 512, 32, 0, 0);
+		endpoint = new NvmfDataNodeEndpoint(factory, new InetSocketAddress("127.0.0.1", 4420), blockCache,
+				new NvmfStagingPool(), qos);
+	}
+
+	BlockInfo block(int i) {
+		return new SimulatedTargetBase.Block(i * CrailConstants.BLOCK_SIZE);
+	}
+
+	@Test
+	public void testTokenBucket() throws Exception {
+		NvmfTokenBucket bucket = new NvmfTokenBucket(1000, 10);
+		Assert.assertEquals(0, bucket.take(10));
+		// 1000 tokens of debt at 1000 per second, less what trickled in meanwhile
+		long waitNanos = bucket.take(1000);
+		Assert.assertTrue("wait " + waitNanos, waitNanos > TimeUnit.MILLISECONDS.toNanos(900) &&
+				waitNanos <= TimeUnit.SECONDS.toNanos(1));
+		Assert.assertTrue(bucket.getAvailable() < -900);
+
+		bucket = new NvmfTokenBucket(1000, 10);
+		bucket.take(10);
+		Thread.sleep(50);
+		Assert.assertEquals(10, bucket.getAvailable());
+	}
+
+	@Test
+	public void testIopsLimit() throws Exception {
+		// 10ms burst: 5 operations
+		NvmfQos qos = new NvmfQos("test", 500, 0, 10);
+		connect(qos, null);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+		long start = System.nanoTime();
+		for (int i = 0; i < 100; i++) {
+			buffer.clear();
+			endpoint.write(buffer, null, block(0), i * 4096).get();
+		}
+		long elapsed = System.nanoTime() - start;
+		Assert.assertTrue("elapsed " + elapsed, elapsed >= TimeUnit.MILLISECONDS.toNanos(150));
+		Assert.assertEquals(100, qos.getOperations());
+		Assert.assertEquals(100 * 4096, qos.getBytes());
+		Assert.assertTrue(qos.getThrottledOperations() > 0);
+	}
+
+	@Test
+	public void testBandwidthLimit() throws Exception {
+		NvmfQos qos = new NvmfQos("test", 0, 4 * 1024 * 1024, 10);
+		connect(qos, null);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		List<NvmfBatchEntry> entries = new ArrayList<NvmfBatchEntry>();
+		for (int i = 0; i < 16; i++) {
+			entries.add(new NvmfBatchEntry(buffer.duplicate(), block(1), i * buffer.capacity()));
+		}
+		long start = System.nanoTime();
+		endpoint.writeBatch(entries).get();
+		// 1MB at 4MB/s, less the 40KB burst
+		long elapsed = System.nanoTime() - start;
+		Assert.assertTrue("elapsed " + elapsed, elapsed >= TimeUnit.MILLISECONDS.toNanos(200));
+		Assert.assertEquals(16, qos.getOperations());
+	}
+
+	/* throttled fills and writes invalidating the cache from several threads must not deadlock */
+	@Test(timeout = 60000)
+	public void testLimitsWithCache() throws Exception {
+		NvmfQos qos = new NvmfQos("test", 2000, 0, 10);
+		connect(qos, new NvmfBlockCache(64 * 1024, 4096));
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final boolean writer = i == 0;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int j = 0; j < 100; j++) {
+							int offset = rand.nextInt(16) * 4096;
+							if (writer) {
+								List<NvmfBatchEntry> entries = new ArrayList<NvmfBatchEntry>();
+								entries.add(new NvmfBatchEntry(ByteBuffer.allocateDirect(4096), block(2), offset));
+								entries.add(new NvmfBatchEntry(ByteBuffer.allocateDirect(4096), block(2),
+										(offset + 4096) % (64 * 1024)));
+								endpoint.writeBatch(entries).get();
+							} else {
+								endpoint.read(ByteBuffer.allocateDirect(1000), null, block(2), offset + 100).get();
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+	}
+}
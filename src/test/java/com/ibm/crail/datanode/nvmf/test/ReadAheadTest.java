@@ -0,0 +1,105 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import com.ibm.crail.datanode.nvmf.client.NvmfCompletion;
+import com.ibm.crail.datanode.nvmf.client.NvmfDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfSimulatedDevice;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* sequential read-ahead into staging buffers */
+public class ReadAheadTest extends SimulatedTargetBase {
+
+	static final int WINDOW = 32 * 1024;
+
+	/* lengths of the reads reaching the device */
+	final ConcurrentLinkedQueue<Integer> reads = new ConcurrentLinkedQueue<Integer>();
+
+	void connectReadAhead() throws Exception {
+		NvmfDataNodeConstants.READ_AHEAD = WINDOW;
+		NvmfDataNodeConstants.STATISTICS = true;
+		final NvmfSimulatedDevice.Factory factory = simulated();
+		connect(new NvmfDevice.Factory() {
+			public NvmfDevice connect(URI url) throws IOException {
+				return new FailingDevice(factory.connect(url), new AtomicInteger(-1), new AtomicBoolean(false)) {
+					@Override
+					public NvmfCompletion read(ByteBuffer buffer, long lba) throws IOException {
+						reads.add(buffer.remaining());
+						return super.read(buffer, lba);
+					}
+				};
+			}
+		});
+	}
+
+	/* reads the block in chunks of length from offset on and compares them with data */
+	void readSequential(ByteBuffer data, BlockInfo block, int offset, int end, int length) throws Exception {
+		ByteBuffer input = ByteBuffer.allocateDirect(length);
+		for (; offset < end; offset += length) {
+			input.clear();
+			Assert.assertEquals(length, endpoint.read(input, null, block, offset).get().getLen());
+			data.clear().position(offset).limit(offset + length);
+			input.clear();
+			Assert.assertTrue("offset " + offset, input.compareTo(data) == 0);
+		}
+	}
+
+	/* sequential reads are served from prefetched ranges */
+	@Test(timeout = 60000)
+	public void testSequentialHit() throws Exception {
+		connectReadAhead();
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 256 * 1024);
+		endpoint.write(data, null, block, 0).get();
+		reads.clear();
+
+		readSequential(data, block, 0, data.capacity(), 4096);
+		long hits = endpoint.getStatistics().getReadAheadHits();
+		Assert.assertTrue("hits " + hits, hits >= 48);
+		Assert.assertTrue("device reads " + reads.size(), reads.size() < 16);
+	}
+
+	/* a write through another BlockInfo of the block drops the prefetched data it overlaps */
+	@Test(timeout = 60000)
+	public void testInvalidation() throws Exception {
+		connectReadAhead();
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 64 * 1024);
+		endpoint.write(data, null, block, 0).get();
+		readSequential(data, block, 0, 16 * 1024, 4096);
+		Assert.assertTrue(endpoint.getStatistics().getReadAheadHits() > 0);
+
+		// overwrite data the read-ahead holds already
+		ByteBuffer update = randomBuffer(0, 4096);
+		endpoint.write(update, null, new Block(block.getAddr()), 20 * 1024).get();
+		update.clear();
+		data.clear().position(20 * 1024);
+		data.put(update);
+		readSequential(data, block, 16 * 1024, data.capacity(), 4096);
+	}
+
+	/* the window doubles up to readahead and the read-ahead never reads beyond it at once */
+	@Test(timeout = 60000)
+	public void testWindowLimit() throws Exception {
+		connectReadAhead();
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 512 * 1024);
+		endpoint.write(data, null, block, 0).get();
+		reads.clear();
+
+		readSequential(data, block, 0, data.capacity(), 4096);
+		int largest = 0;
+		for (int length : reads) {
+			largest = Math.max(largest, length);
+		}
+		Assert.assertEquals(WINDOW, largest);
+	}
+}
@@ -0,0 +1,54 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import org.junit.Assert;
+import org.junit.Test;
+
+/* a datanode registers its capacity in batches of just under 2GB, setBlock takes an int length */
+public class RegistrationTest extends SimulatedTargetBase {
+	/* sparse, only the mapping is this large */
+	static final long CAPACITY = 5L * 1024 * 1024 * 1024;
+
+	void assertBatches(SimulatedDataNode datanode, int batches) {
+		long batchSize = (Integer.MAX_VALUE / CrailConstants.BLOCK_SIZE) * CrailConstants.BLOCK_SIZE;
+		Assert.assertEquals(batches, datanode.regions.size());
+		long addr = 0;
+		for (int i = 0; i < batches; i++) {
+			SimulatedDataNode.Region region = datanode.regions.get(i);
+			Assert.assertEquals(addr, region.addr);
+			Assert.assertEquals(0, region.length % CrailConstants.BLOCK_SIZE);
+			Assert.assertEquals(Math.min(batchSize, CAPACITY - addr), region.length);
+			addr += region.length;
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testBatches() throws Exception {
+		SimulatedDataNode datanode = new SimulatedDataNode(namespace.getPath(), CAPACITY);
+		datanode.start();
+		datanode.awaitPolls(1);
+		datanode.stop();
+		assertBatches(datanode, 3);
+	}
+
+	/* with a free watermark one batch is registered at a time, when the namenode runs low */
+	@Test(timeout = 60000)
+	public void testLazy() throws Exception {
+		SimulatedDataNode datanode = new SimulatedDataNode(namespace.getPath(), CAPACITY);
+		NvmfDataNodeConstants.FREE_WATERMARK = 100;
+		datanode.start();
+		datanode.awaitPolls(2);
+		assertBatches(datanode, 1);
+
+		datanode.freeBlocks.set(99);
+		while (datanode.regions.size() < 3) {
+			Thread.sleep(10);
+		}
+		// nothing left to register
+		datanode.awaitPolls(datanode.polls.get() + 2);
+		datanode.stop();
+		assertBatches(datanode, 3);
+		Assert.assertEquals(CAPACITY, datanode.registeredBytes());
+	}
+}
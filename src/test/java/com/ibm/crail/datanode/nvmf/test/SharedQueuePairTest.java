@@ -0,0 +1,68 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/* queue pairs shared between threads and their poller */
+public class SharedQueuePairTest extends SimulatedTargetBase {
+
+	/*
+	 * Shared queue pairs: async stages doing blocking I/O of their own must not hang the
+	 * poller, and a poller failing to process completions fails the outstanding commands.
+	 */
+	@Test(timeout = 60000)
+	public void testSharedQueuePairs() throws Exception {
+		NvmfDataNodeConstants.SHARED_QUEUE_PAIRS = true;
+		AtomicBoolean failCompletions = new AtomicBoolean(false);
+		connect(new AtomicInteger(-1), failCompletions);
+		writeRead(8192, 0, 0);
+		writeRead(1000, 100, 4000);
+		asyncIO(false);
+
+		final BlockInfo block = newBlock();
+		final ByteBuffer data = randomBuffer(0, 4096);
+		final ByteBuffer input = ByteBuffer.allocateDirect(4096);
+		endpoint.writeAsync(data, block, 0).thenApply(new Function<DataResult, DataResult>() {
+			public DataResult apply(DataResult result) {
+				try {
+					return endpoint.read(input, null, block, 0).get();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}).get();
+		Assert.assertTrue(input.compareTo(data) == 0);
+
+		failCompletions.set(true);
+		List<Future<DataResult>> futures = new ArrayList<Future<DataResult>>();
+		try {
+			// runs out of slots at the latest, acquiring one then fails
+			for (int i = 0; ; i++) {
+				futures.add(endpoint.write(randomBuffer(0, 4096), null, block, (i % 16) * 4096));
+			}
+		} catch (IOException e) {
+			// expected once the poller saw the failure
+		}
+		for (Future<DataResult> future : futures) {
+			try {
+				future.get();
+				Assert.fail("write did not fail");
+			} catch (ExecutionException e) {
+				// expected
+			}
+		}
+	}
+}
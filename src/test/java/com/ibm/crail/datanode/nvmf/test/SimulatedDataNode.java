@@ -0,0 +1,99 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.datanode.nvmf.NvmfDataNode;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import com.ibm.crail.namenode.protocol.DataNodeStatistics;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* runs a datanode on the simulated target without a namenode, recording what it registers */
+class SimulatedDataNode extends NvmfDataNode {
+
+	/* a setBlock call */
+	static class Region {
+		final long addr;
+		final int length;
+		final int key;
+
+		Region(long addr, int length, int key) {
+			this.addr = addr;
+			this.length = length;
+			this.key = key;
+		}
+	}
+
+	final List<Region> regions = new CopyOnWriteArrayList<Region>();
+	/* free blocks reported by the namenode */
+	final AtomicInteger freeBlocks = new AtomicInteger(Integer.MAX_VALUE);
+	final AtomicInteger polls = new AtomicInteger(0);
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	private Thread thread;
+
+	/* changes the constants, tests restore them */
+	SimulatedDataNode(String path, long size) throws Exception {
+		NvmfDataNodeConstants.IP_ADDR = InetAddress.getByName("127.0.0.1");
+		NvmfDataNodeConstants.SIMULATED_TARGET = path;
+		NvmfDataNodeConstants.SIMULATED_SIZE = size;
+	}
+
+	@Override
+	public void setBlock(long addr, int length, int key) throws Exception {
+		regions.add(new Region(addr, length, key));
+	}
+
+	@Override
+	public DataNodeStatistics getDataNode() throws Exception {
+		polls.incrementAndGet();
+		return new DataNodeStatistics() {
+			@Override
+			public int getFreeBlockCount() {
+				return freeBlocks.get();
+			}
+		};
+	}
+
+	long registeredBytes() {
+		long bytes = 0;
+		for (Region region : regions) {
+			bytes += region.length;
+		}
+		return bytes;
+	}
+
+	void start() {
+		thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					SimulatedDataNode.this.run();
+				} catch (Throwable e) {
+					failure.set(e);
+				}
+			}
+		}, "simulated-datanode");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/* waits for the monitor loop to poll the namenode polls times */
+	void awaitPolls(int polls) throws Exception {
+		while (this.polls.get() < polls) {
+			if (!thread.isAlive()) {
+				stop();
+				throw new IllegalStateException("datanode exited");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	void stop() throws Exception {
+		close();
+		thread.join();
+		if (failure.get() != null) {
+			throw new Exception("datanode failed", failure.get());
+		}
+	}
+}
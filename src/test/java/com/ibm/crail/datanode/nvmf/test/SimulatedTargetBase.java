@@ -0,0 +1,428 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import com.ibm.crail.datanode.nvmf.client.NvmfBatchEntry;
+import com.ibm.crail.datanode.nvmf.client.NvmfBlockCache;
+import com.ibm.crail.datanode.nvmf.client.NvmfCompletion;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeEndpoint;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeUtils;
+import com.ibm.crail.datanode.nvmf.client.NvmfDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfSimulatedDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfStagingPool;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/* client I/O paths against a simulated namespace, runs without SPDK or NVMe hardware */
+public abstract class SimulatedTargetBase {
+
+	static class Block extends BlockInfo {
+		private final long addr;
+		/* stripe width of the datanode, see NvmfDataNodeUtils.stripeWidth */
+		private final int lkey;
+
+		Block(long addr) {
+			this(addr, 0);
+		}
+
+		Block(long addr, int lkey) {
+			this.addr = addr;
+			this.lkey = lkey;
+		}
+
+		@Override
+		public long getAddr() {
+			return addr;
+		}
+
+		@Override
+		public int getLength() {
+			return (int) CrailConstants.BLOCK_SIZE;
+		}
+
+		@Override
+		public int getLkey() {
+			return lkey;
+		}
+	}
+
+	/*
+	 * Holds reads of a range of sectors until the gate opens, to see which commands the client
+	 * puts in flight meanwhile. Held reads either wait in the device, taking their slot, or
+	 * stall the thread submitting them. Records the LBA of every command submitted.
+	 */
+	static class GatedDevice implements NvmfDevice {
+		private final NvmfDevice device;
+		private final long gatedLba;
+		private final long gatedSectors;
+		private final boolean stall;
+		private final CountDownLatch gate;
+		private final ConcurrentLinkedQueue<HeldRead> held;
+		private final AtomicInteger stalled;
+		final ConcurrentLinkedQueue<Long> submitted;
+
+		GatedDevice(NvmfDevice device, long gatedLba, long gatedSectors, boolean stall) {
+			this.device = device;
+			this.gatedLba = gatedLba;
+			this.gatedSectors = gatedSectors;
+			this.stall = stall;
+			this.gate = new CountDownLatch(1);
+			this.held = new ConcurrentLinkedQueue<HeldRead>();
+			this.stalled = new AtomicInteger(0);
+			this.submitted = new ConcurrentLinkedQueue<Long>();
+		}
+
+		void open() {
+			gate.countDown();
+		}
+
+		/* reads waiting in the device or stalling their submitter */
+		int getHeld() {
+			return stall ? stalled.get() : held.size();
+		}
+
+		public int getSectorSize() {
+			return device.getSectorSize();
+		}
+
+		public int getIOQueueSize() {
+			return device.getIOQueueSize();
+		}
+
+		public long getNamespaceSize() {
+			return device.getNamespaceSize();
+		}
+
+		public int getMaxTransferSize() {
+			return device.getMaxTransferSize();
+		}
+
+		public NvmfCompletion read(ByteBuffer buffer, long lba) throws IOException {
+			submitted.add(lba);
+			if (lba >= gatedLba && lba < gatedLba + gatedSectors && gate.getCount() > 0) {
+				if (!stall) {
+					HeldRead read = new HeldRead(buffer, lba);
+					held.add(read);
+					return read;
+				}
+				stalled.incrementAndGet();
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			return device.read(buffer, lba);
+		}
+
+		public NvmfCompletion write(ByteBuffer buffer, long lba) throws IOException {
+			submitted.add(lba);
+			return device.write(buffer, lba);
+		}
+
+		public boolean supportsScatterGather() {
+			return device.supportsScatterGather();
+		}
+
+		public NvmfCompletion read(ByteBuffer[] buffers, long lba) throws IOException {
+			submitted.add(lba);
+			return device.read(buffers, lba);
+		}
+
+		public NvmfCompletion write(ByteBuffer[] buffers, long lba) throws IOException {
+			submitted.add(lba);
+			return device.write(buffers, lba);
+		}
+
+		public int processCompletions(int max) throws IOException {
+			if (gate.getCount() == 0) {
+				HeldRead read;
+				while ((read = held.poll()) != null) {
+					read.completion = device.read(read.buffer, read.lba);
+				}
+			}
+			return device.processCompletions(max);
+		}
+
+		public void close() throws IOException {
+			device.close();
+		}
+
+		/* completes once it was submitted to the device after the gate opened */
+		static class HeldRead implements NvmfCompletion {
+			private final ByteBuffer buffer;
+			private final long lba;
+			private volatile NvmfCompletion completion;
+
+			HeldRead(ByteBuffer buffer, long lba) {
+				this.buffer = buffer;
+				this.lba = lba;
+			}
+
+			public boolean done() {
+				return completion != null && completion.done();
+			}
+
+			public boolean isSuccess() {
+				return completion.isSuccess();
+			}
+
+			public String getStatus() {
+				return completion.getStatus();
+			}
+
+			public void release() {
+				completion.release();
+			}
+		}
+	}
+
+	/* fails writes or completion processing once armed, to check what the client leaves behind */
+	static class FailingDevice implements NvmfDevice {
+		private final NvmfDevice device;
+		private final AtomicInteger writesToFail;
+		private final AtomicBoolean failCompletions;
+
+		FailingDevice(NvmfDevice device, AtomicInteger writesToFail, AtomicBoolean failCompletions) {
+			this.device = device;
+			this.writesToFail = writesToFail;
+			this.failCompletions = failCompletions;
+		}
+
+		public int getSectorSize() {
+			return device.getSectorSize();
+		}
+
+		public int getIOQueueSize() {
+			return device.getIOQueueSize();
+		}
+
+		public long getNamespaceSize() {
+			return device.getNamespaceSize();
+		}
+
+		public int getMaxTransferSize() {
+			return device.getMaxTransferSize();
+		}
+
+		public NvmfCompletion read(ByteBuffer buffer, long lba) throws IOException {
+			return device.read(buffer, lba);
+		}
+
+		public NvmfCompletion write(ByteBuffer buffer, long lba) throws IOException {
+			/* counts down to 0, which fails every write */
+			if (writesToFail.get() >= 0 && writesToFail.getAndDecrement() <= 0) {
+				writesToFail.set(0);
+				throw new IOException("injected write failure");
+			}
+			return device.write(buffer, lba);
+		}
+
+		public boolean supportsScatterGather() {
+			return device.supportsScatterGather();
+		}
+
+		public NvmfCompletion read(ByteBuffer[] buffers, long lba) throws IOException {
+			return device.read(buffers, lba);
+		}
+
+		public NvmfCompletion write(ByteBuffer[] buffers, long lba) throws IOException {
+			return device.write(buffers, lba);
+		}
+
+		public int processCompletions(int max) throws IOException {
+			if (failCompletions.get()) {
+				throw new IOException("injected completion failure");
+			}
+			return device.processCompletions(max);
+		}
+
+		public void close() throws IOException {
+			device.close();
+		}
+	}
+
+	static final int BLOCKS = 32;
+
+	File namespace;
+	NvmfDataNodeEndpoint endpoint;
+	/* passed to endpoints connected afterwards, none by default */
+	NvmfBlockCache blockCache;
+	int nextBlock;
+
+	Random rand = new Random();
+	/* tests change the constants at will, they are restored after each test */
+	private Map<Field, Object> constants;
+
+	@Before
+	public void init() throws Exception {
+		constants = new HashMap<Field, Object>();
+		for (Field field : NvmfDataNodeConstants.class.getFields()) {
+			if (Modifier.isStatic(field.getModifiers()) && !Modifier.isFinal(field.getModifiers())) {
+				constants.put(field, field.get(null));
+			}
+		}
+		namespace = File.createTempFile("nvmf-simulated", ".ns");
+		connect();
+		nextBlock = 0;
+	}
+
+	NvmfSimulatedDevice.Factory simulated() {
+		return new NvmfSimulatedDevice.Factory(namespace.getPath(), BLOCKS * CrailConstants.BLOCK_SIZE, 512, 32, 10, 0);
+	}
+
+	/* (re)connects to the namespace, picking up the current constants */
+	void connect() throws Exception {
+		connect(simulated());
+	}
+
+	void connect(final AtomicInteger writesToFail, final AtomicBoolean failCompletions) throws Exception {
+		final NvmfSimulatedDevice.Factory factory = simulated();
+		connect(new NvmfDevice.Factory() {
+			public NvmfDevice connect(URI url) throws IOException {
+				return new FailingDevice(factory.connect(url), writesToFail, failCompletions);
+			}
+		});
+	}
+
+	/* the device of the single queue pair, reads of block are gated */
+	GatedDevice connectGated(BlockInfo block, final boolean stall) throws Exception {
+		final NvmfSimulatedDevice.Factory factory = simulated();
+		final long lba = NvmfDataNodeUtils.linearBlockAddress(block, 0, 512);
+		final AtomicReference<GatedDevice> device = new AtomicReference<GatedDevice>();
+		connect(new NvmfDevice.Factory() {
+			public NvmfDevice connect(URI url) throws IOException {
+				device.set(new GatedDevice(factory.connect(url), lba, CrailConstants.BLOCK_SIZE / 512, stall));
+				return device.get();
+			}
+		});
+		return device.get();
+	}
+
+	void connect(NvmfDevice.Factory factory) throws Exception {
+		connect(factory, new NvmfStagingPool());
+	}
+
+	void connect(NvmfDevice.Factory factory, NvmfStagingPool stagingPool) throws Exception {
+		if (endpoint != null) {
+			endpoint.close();
+		}
+		endpoint = new NvmfDataNodeEndpoint(factory, new InetSocketAddress("127.0.0.1", 4420), blockCache,
+				stagingPool, null);
+	}
+
+	@After
+	public void fini() throws Exception {
+		try {
+			endpoint.close();
+			namespace.delete();
+		} finally {
+			for (Map.Entry<Field, Object> constant : constants.entrySet()) {
+				constant.getKey().set(null, constant.getValue());
+			}
+		}
+	}
+
+	synchronized BlockInfo newBlock() {
+		return new Block(nextBlock++ * CrailConstants.BLOCK_SIZE);
+	}
+
+	ByteBuffer randomBuffer(int position, int length) {
+		byte[] data = new byte[length];
+		rand.nextBytes(data);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(position + length);
+		buffer.position(position);
+		buffer.put(data);
+		buffer.position(position);
+		return buffer;
+	}
+
+	/* appends data at remoteOffset of a fresh block and reads it back */
+	void writeRead(int length, int position, int remoteOffset) throws Exception {
+		BlockInfo block = newBlock();
+		if (remoteOffset > 0) {
+			ByteBuffer skip = randomBuffer(0, remoteOffset);
+			Assert.assertEquals(remoteOffset, endpoint.write(skip, null, block, 0).get().getLen());
+		}
+		ByteBuffer outputBuffer = randomBuffer(position, length);
+		Assert.assertEquals(length, endpoint.write(outputBuffer, null, block, remoteOffset).get().getLen());
+		Assert.assertEquals(position, outputBuffer.position());
+
+		ByteBuffer inputBuffer = randomBuffer(position, length);
+		Assert.assertEquals(length, endpoint.read(inputBuffer, null, block, remoteOffset).get().getLen());
+		Assert.assertTrue("length = " + length + ", position = " + position + ", remoteOffset = " + remoteOffset,
+				inputBuffer.compareTo(outputBuffer) == 0);
+	}
+
+	List<NvmfBatchEntry> entries(BlockInfo block, int count) {
+		List<NvmfBatchEntry> entries = new ArrayList<NvmfBatchEntry>();
+		for (int i = 0; i < count; i++) {
+			entries.add(new NvmfBatchEntry(ByteBuffer.allocateDirect(4096), block, i * 4096));
+		}
+		return entries;
+	}
+
+	/* aligned and unaligned asynchronous appends and reads, completed on the dispatcher thread */
+	void asyncIO(boolean progress) throws Exception {
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 64 * 1000);
+		final AtomicReference<String> callbackThread = new AtomicReference<String>();
+		List<CompletableFuture<DataResult>> futures = new ArrayList<CompletableFuture<DataResult>>();
+		for (int offset = 0; offset < data.capacity(); offset += 4096) {
+			ByteBuffer slice = data.duplicate();
+			slice.position(offset).limit(Math.min(offset + 4096, data.capacity()));
+			CompletableFuture<DataResult> future = endpoint.writeAsync(slice, block, offset);
+			futures.add(future.whenComplete(new BiConsumer<DataResult, Throwable>() {
+				public void accept(DataResult result, Throwable e) {
+					callbackThread.compareAndSet(null, Thread.currentThread().getName());
+				}
+			}));
+		}
+		CompletableFuture<Void> writes = CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+		while (progress && !writes.isDone()) {
+			endpoint.progress();
+		}
+		writes.get();
+		Assert.assertTrue(callbackThread.get(), callbackThread.get().equals(Thread.currentThread().getName()) ||
+				callbackThread.get().startsWith("nvmf-async-"));
+
+		ByteBuffer input = ByteBuffer.allocateDirect(data.capacity());
+		futures.clear();
+		for (int offset = 100; offset < data.capacity(); offset += 8192) {
+			ByteBuffer slice = input.duplicate();
+			slice.position(offset).limit(Math.min(offset + 8192, data.capacity()));
+			futures.add(endpoint.readAsync(slice, block, offset));
+		}
+		CompletableFuture<Void> reads = CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+		while (progress && !reads.isDone()) {
+			endpoint.progress();
+		}
+		reads.get();
+		data.clear().position(100);
+		input.position(100);
+		Assert.assertTrue(input.compareTo(data) == 0);
+	}
+}
@@ -0,0 +1,145 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.datanode.nvmf.client.NvmfCompletion;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeUtils;
+import com.ibm.crail.datanode.nvmf.client.NvmfDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfSimulatedDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfStagingPool;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* staging buffers of unaligned I/O */
+public class StagingPoolTest extends SimulatedTargetBase {
+
+	/* the pool holds at most its capacity, and the buffers cached by terminated threads are reused */
+	@Test(timeout = 60000)
+	public void testStagingPool() throws Exception {
+		final NvmfStagingPool pool = new NvmfStagingPool(64 * 1024, new long[]{1});
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				// carves the whole capacity into 16 buffers and keeps 8 of them in the thread cache
+				pool.put(pool.get(4096));
+			}
+		});
+		thread.start();
+		thread.join();
+		Assert.assertEquals(64 * 1024, pool.getAllocatedBytes());
+
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < 16; i++) {
+			buffers.add(pool.get(4096));
+		}
+		Assert.assertEquals(0, pool.getUnpooledBuffers());
+		buffers.add(pool.get(4096));
+		Assert.assertEquals(1, pool.getUnpooledBuffers());
+		Assert.assertEquals(64 * 1024, pool.getAllocatedBytes());
+		Assert.assertEquals(17, pool.getBuffersInUse());
+		for (ByteBuffer buffer : buffers) {
+			pool.put(buffer);
+		}
+		Assert.assertEquals(0, pool.getBuffersInUse());
+	}
+
+	/* records the staging buffers handed out */
+	static class RecordingPool extends NvmfStagingPool {
+		final AtomicLong requestedBytes = new AtomicLong(0);
+
+		RecordingPool() {
+			super(1024 * 1024, new long[]{1});
+		}
+
+		@Override
+		public ByteBuffer get(int size) {
+			requestedBytes.addAndGet(size);
+			return super.get(size);
+		}
+	}
+
+	/* an unaligned read copies at most its head and tail sector, the interior goes to the user buffer */
+	@Test(timeout = 60000)
+	public void testUnalignedReadCopy() throws Exception {
+		RecordingPool pool = new RecordingPool();
+		connect(simulated(), pool);
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 256 * 1024);
+		endpoint.write(data, null, block, 0).get();
+
+		for (int remoteOffset : new int[]{100, 512, 1000}) {
+			for (int length : new int[]{64 * 1024 - 100, 64 * 1024, 200 * 1024 + 7}) {
+				pool.requestedBytes.set(0);
+				ByteBuffer input = ByteBuffer.allocateDirect(length);
+				Assert.assertEquals(length, endpoint.read(input, null, block, remoteOffset).get().getLen());
+				long staged = pool.requestedBytes.get();
+				Assert.assertTrue("staged " + staged + " bytes", staged <= 2 * 512);
+				data.clear().position(remoteOffset).limit(remoteOffset + length);
+				input.clear();
+				Assert.assertTrue(input.compareTo(data) == 0);
+			}
+		}
+		Assert.assertEquals(0, pool.getBuffersInUse());
+	}
+
+	/* a failing head sector hands back the staging buffers once the other parts completed */
+	@Test(timeout = 60000)
+	public void testFailedUnalignedRead() throws Exception {
+		RecordingPool pool = new RecordingPool();
+		final BlockInfo block = newBlock();
+		final long headLba = NvmfDataNodeUtils.linearBlockAddress(block, 0, 512);
+		final NvmfSimulatedDevice.Factory factory = simulated();
+		connect(new NvmfDevice.Factory() {
+			public NvmfDevice connect(URI url) throws IOException {
+				return new FailingDevice(factory.connect(url), new AtomicInteger(-1), new AtomicBoolean(false)) {
+					@Override
+					public NvmfCompletion read(ByteBuffer buffer, long lba) throws IOException {
+						final NvmfCompletion completion = super.read(buffer, lba);
+						if (lba != headLba) {
+							return completion;
+						}
+						return new NvmfCompletion() {
+							public boolean done() {
+								return completion.done();
+							}
+
+							public boolean isSuccess() {
+								return false;
+							}
+
+							public String getStatus() {
+								return "injected read failure";
+							}
+
+							public void release() {
+								completion.release();
+							}
+						};
+					}
+				};
+			}
+		}, pool);
+
+		for (int i = 0; i < 4; i++) {
+			try {
+				endpoint.read(ByteBuffer.allocateDirect(64 * 1024), null, block, 100).get();
+				Assert.fail("read did not fail");
+			} catch (ExecutionException e) {
+				// expected
+			}
+			Assert.assertEquals(0, pool.getBuffersInUse());
+		}
+		// the endpoint is still usable
+		ByteBuffer input = ByteBuffer.allocateDirect(4096);
+		Assert.assertEquals(4096, endpoint.read(input, null, newBlock(), 100).get().getLen());
+		Assert.assertEquals(0, pool.getBuffersInUse());
+	}
+}
@@ -0,0 +1,41 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import com.ibm.crail.datanode.nvmf.client.NvmfLatencyHistogram;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/* client side I/O statistics */
+public class StatisticsTest extends SimulatedTargetBase {
+
+	/*
+	 * Submission to completion ends when the poller processed the completion, not when the
+	 * caller looks at the future, and every get() counts as a wait.
+	 */
+	@Test(timeout = 60000)
+	public void testStatistics() throws Exception {
+		NvmfDataNodeConstants.STATISTICS = true;
+		NvmfDataNodeConstants.SHARED_QUEUE_PAIRS = true;
+		connect();
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 4096);
+		for (int i = 0; i < 20; i++) {
+			data.clear();
+			Future<DataResult> future = endpoint.write(data, null, block, i * 4096);
+			Thread.sleep(5);
+			future.get();
+			endpoint.release(future);
+		}
+		NvmfLatencyHistogram.Snapshot submitToComplete = endpoint.getStatistics().getSubmitToComplete();
+		Assert.assertEquals(20, submitToComplete.getCount());
+		Assert.assertTrue(submitToComplete.toString(),
+				submitToComplete.getP50() < TimeUnit.MILLISECONDS.toNanos(2));
+		Assert.assertEquals(20, endpoint.getStatistics().getWaitTime().getCount());
+	}
+}
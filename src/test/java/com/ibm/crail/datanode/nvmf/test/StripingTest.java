@@ -0,0 +1,118 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeUtils;
+import com.ibm.crail.datanode.nvmf.client.NvmfDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfSimulatedDevice;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/* a datanode striping its blocks across several namespaces */
+public class StripingTest extends SimulatedTargetBase {
+	static final int WIDTH = 3;
+
+	/* namespaces the client connected to, in order */
+	final ConcurrentLinkedQueue<Integer> connects = new ConcurrentLinkedQueue<Integer>();
+
+	File namespaceFile(int device) {
+		return new File(device == 0 ? namespace.getPath() : namespace.getPath() + "." + (device + 1));
+	}
+
+	@After
+	public void deleteNamespaces() {
+		for (int device = 1; device < WIDTH; device++) {
+			namespaceFile(device).delete();
+		}
+	}
+
+	void connectRecording() throws Exception {
+		final NvmfSimulatedDevice.Factory factory = simulated();
+		connect(new NvmfDevice.Factory() {
+			public NvmfDevice connect(URI url) throws IOException {
+				connects.add(NvmfDataNodeUtils.namespaceIndex(url));
+				return factory.connect(url);
+			}
+		});
+	}
+
+	ByteBuffer readFile(int device, long offset, int length) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(namespaceFile(device), "r");
+		try {
+			ByteBuffer data = ByteBuffer.allocate(length);
+			file.getChannel().read(data, offset);
+			data.flip();
+			return data;
+		} finally {
+			file.close();
+		}
+	}
+
+	/* cnode1 to cnodeN are exported and their blocks registered with the stripe width as key */
+	@Test(timeout = 60000)
+	public void testExport() throws Exception {
+		long namespaceSize = BLOCKS * CrailConstants.BLOCK_SIZE;
+		SimulatedDataNode datanode = new SimulatedDataNode(namespace.getPath(), namespaceSize);
+		NvmfDataNodeConstants.SIMULATED_NAMESPACES = WIDTH;
+		NvmfDataNodeConstants.ALLOCATION_SIZE = 4 * CrailConstants.BLOCK_SIZE;
+		datanode.start();
+		datanode.awaitPolls(1);
+		datanode.stop();
+
+		for (int device = 0; device < WIDTH; device++) {
+			Assert.assertEquals(namespaceSize, namespaceFile(device).length());
+		}
+		long addr = 0;
+		for (SimulatedDataNode.Region region : datanode.regions) {
+			Assert.assertEquals(WIDTH, region.key);
+			Assert.assertEquals(addr, region.addr);
+			addr += region.length;
+		}
+		Assert.assertEquals(WIDTH * namespaceSize, addr);
+	}
+
+	/* block i lives on namespace i % WIDTH, further namespaces are connected when first needed */
+	@Test(timeout = 60000)
+	public void testStriping() throws Exception {
+		connectRecording();
+		Assert.assertEquals(1, connects.size());
+		int blockSize = (int) CrailConstants.BLOCK_SIZE;
+		ByteBuffer[] heads = new ByteBuffer[2 * WIDTH];
+		ByteBuffer[] tails = new ByteBuffer[2 * WIDTH];
+		for (int i = 0; i < 2 * WIDTH; i++) {
+			BlockInfo block = new Block((long) i * blockSize, WIDTH);
+			heads[i] = randomBuffer(0, 4096);
+			tails[i] = randomBuffer(0, 4096);
+			endpoint.write(heads[i], null, block, 0).get();
+			// the last sectors of a block and the first of the next are on different namespaces
+			endpoint.write(tails[i], null, block, blockSize - 4096).get();
+		}
+		for (int device = 0; device < WIDTH; device++) {
+			Assert.assertTrue(connects.contains(device));
+		}
+		Assert.assertEquals(WIDTH * NvmfDataNodeConstants.QUEUE_PAIRS, connects.size());
+
+		for (int i = 0; i < 2 * WIDTH; i++) {
+			long stripeOffset = (long) (i / WIDTH) * blockSize;
+			heads[i].clear();
+			tails[i].clear();
+			Assert.assertTrue("head " + i, readFile(i % WIDTH, stripeOffset, 4096).compareTo(heads[i]) == 0);
+			Assert.assertTrue("tail " + i,
+					readFile(i % WIDTH, stripeOffset + blockSize - 4096, 4096).compareTo(tails[i]) == 0);
+
+			ByteBuffer input = ByteBuffer.allocateDirect(4096);
+			endpoint.read(input, null, new Block((long) i * blockSize, WIDTH), blockSize - 4096).get();
+			input.clear();
+			Assert.assertTrue("read " + i, input.compareTo(tails[i]) == 0);
+		}
+	}
+}
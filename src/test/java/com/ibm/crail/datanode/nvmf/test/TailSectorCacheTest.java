@@ -0,0 +1,89 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeEndpoint;
+import com.ibm.crail.datanode.nvmf.client.NvmfStagingPool;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/* the last sector of appended blocks, kept so unaligned appends need not read it back */
+public class TailSectorCacheTest extends SimulatedTargetBase {
+
+	void append(ByteBuffer data, BlockInfo block, int offset, int length) throws Exception {
+		ByteBuffer slice = data.duplicate();
+		slice.position(offset).limit(offset + length);
+		Assert.assertEquals(length, endpoint.write(slice, null, block, offset).get().getLen());
+	}
+
+	long readModifyWrites() {
+		return endpoint.getStatistics().getReadModifyWriteOps();
+	}
+
+	/* an unaligned append after a completed one takes the head of its sector from the cache */
+	@Test(timeout = 60000)
+	public void testCachedAppend() throws Exception {
+		NvmfDataNodeConstants.STATISTICS = true;
+		connect();
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 16 * 1000);
+		for (int offset = 0; offset < data.capacity(); offset += 1000) {
+			append(data, block, offset, 1000);
+		}
+		Assert.assertEquals(0, readModifyWrites());
+		Assert.assertEquals(0, endpoint.getStatistics().getReadOps());
+
+		ByteBuffer input = ByteBuffer.allocateDirect(data.capacity());
+		endpoint.read(input, null, block, 0).get();
+		data.clear();
+		Assert.assertTrue(input.compareTo(data) == 0);
+
+		// without the cached sector the append reads it back
+		BlockInfo other = newBlock();
+		append(data, other, 0, 1000);
+		endpoint.invalidateTailSector(other);
+		append(data, other, 1000, 1000);
+		Assert.assertEquals(1, readModifyWrites());
+	}
+
+	/*
+	 * A write to the start of a block begins a new file, the tail sector cached for the file
+	 * the block belonged to before must not be used for it.
+	 */
+	@Test(timeout = 60000)
+	public void testReassignedBlock() throws Exception {
+		NvmfDataNodeConstants.STATISTICS = true;
+		connect();
+		BlockInfo block = newBlock();
+		ByteBuffer stale = randomBuffer(0, 3000);
+		for (int offset = 0; offset < stale.capacity(); offset += 1000) {
+			append(stale, block, offset, 1000);
+		}
+
+		// the block is freed and the new file on it written by another client
+		ByteBuffer data = randomBuffer(0, 3100);
+		NvmfDataNodeEndpoint other = new NvmfDataNodeEndpoint(simulated(), new InetSocketAddress("127.0.0.1", 4420),
+				null, new NvmfStagingPool(), null);
+		try {
+			ByteBuffer slice = data.duplicate();
+			slice.limit(3000);
+			other.write(slice, null, block, 0).get();
+		} finally {
+			other.close();
+		}
+
+		// we rewrite its start and append after the data of the other client
+		append(data, block, 0, 512);
+		long readModifyWrites = readModifyWrites();
+		append(data, block, 3000, 100);
+		Assert.assertEquals(readModifyWrites + 1, readModifyWrites());
+
+		ByteBuffer input = ByteBuffer.allocateDirect(data.capacity());
+		endpoint.read(input, null, block, 0).get();
+		data.clear();
+		Assert.assertTrue(input.compareTo(data) == 0);
+	}
+}
@@ -0,0 +1,145 @@
+package com.ibm.crail.datanode.nvmf.test;
+
+import com.ibm.crail.datanode.DataResult;
+import com.ibm.crail.datanode.nvmf.NvmfDataNodeConstants;
+import com.ibm.crail.datanode.nvmf.client.NvmfCompletion;
+import com.ibm.crail.datanode.nvmf.client.NvmfDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfSimulatedDevice;
+import com.ibm.crail.namenode.protocol.BlockInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* small appends coalesced into larger writes */
+public class WriteCoalescerTest extends SimulatedTargetBase {
+
+	/* coalesced writes of an idle writer are flushed by the timer, without anybody waiting on them */
+	@Test(timeout = 60000)
+	public void testCoalescingTimer() throws Exception {
+		NvmfDataNodeConstants.COALESCE_SIZE = 64 * 1024;
+		NvmfDataNodeConstants.COALESCE_TIMEOUT = 1000;
+		connect();
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 8 * 1000);
+		List<Future<DataResult>> futures = new ArrayList<Future<DataResult>>();
+		for (int offset = 0; offset < data.capacity(); offset += 1000) {
+			ByteBuffer slice = data.duplicate();
+			slice.position(offset).limit(offset + 1000);
+			futures.add(endpoint.write(slice, null, block, offset));
+		}
+		for (Future<DataResult> future : futures) {
+			while (!future.isDone()) {
+				Thread.sleep(1);
+			}
+		}
+		ByteBuffer input = ByteBuffer.allocateDirect(data.capacity());
+		endpoint.read(input, null, block, 0).get();
+		data.clear();
+		Assert.assertTrue(input.compareTo(data) == 0);
+	}
+
+	List<Future<DataResult>> append(ByteBuffer data, BlockInfo block, int length) throws Exception {
+		List<Future<DataResult>> futures = new ArrayList<Future<DataResult>>();
+		for (int offset = 0; offset < data.capacity(); offset += length) {
+			ByteBuffer slice = data.duplicate();
+			slice.position(offset).limit(Math.min(offset + length, data.capacity()));
+			futures.add(endpoint.write(slice, null, block, offset));
+		}
+		return futures;
+	}
+
+	void verify(ByteBuffer data, BlockInfo block) throws Exception {
+		ByteBuffer input = ByteBuffer.allocateDirect(data.capacity());
+		endpoint.read(input, null, block, 0).get();
+		data.clear();
+		Assert.assertTrue(input.compareTo(data) == 0);
+	}
+
+	/*
+	 * Ranges reaching the threshold are written up to a sector boundary and the rest is carried
+	 * into the next range, so no range reads back a sector the previous one is still writing.
+	 */
+	@Test(timeout = 60000)
+	public void testCarriedSector() throws Exception {
+		NvmfDataNodeConstants.COALESCE_SIZE = 4096;
+		NvmfDataNodeConstants.COALESCE_TIMEOUT = 10000000;
+		NvmfDataNodeConstants.STATISTICS = true;
+		final NvmfSimulatedDevice.Factory factory = simulated();
+		final ConcurrentLinkedQueue<long[]> writes = new ConcurrentLinkedQueue<long[]>();
+		connect(new NvmfDevice.Factory() {
+			public NvmfDevice connect(URI url) throws IOException {
+				return new FailingDevice(factory.connect(url), new AtomicInteger(-1), new AtomicBoolean(false)) {
+					@Override
+					public NvmfCompletion write(ByteBuffer buffer, long lba) throws IOException {
+						writes.add(new long[]{lba, buffer.remaining() / 512});
+						return super.write(buffer, lba);
+					}
+				};
+			}
+		});
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 100 * 1000);
+		List<Future<DataResult>> futures = append(data, block, 1000);
+		for (Future<DataResult> future : futures) {
+			Assert.assertEquals(1000, future.get().getLen());
+		}
+		Assert.assertEquals(0, endpoint.getStatistics().getReadModifyWriteOps());
+		verify(data, block);
+
+		// the ranges follow each other without sharing a sector
+		Assert.assertTrue(writes.size() > 20);
+		long end = 0;
+		for (long[] write : writes) {
+			Assert.assertTrue("write at lba " + write[0] + " overlaps lba " + (end - 1), write[0] >= end);
+			end = write[0] + write[1];
+		}
+	}
+
+	/* a range continuing one the timer flushed in the middle of a sector waits for its write */
+	@Test(timeout = 60000)
+	public void testContinuedRange() throws Exception {
+		NvmfDataNodeConstants.COALESCE_SIZE = 64 * 1024;
+		NvmfDataNodeConstants.COALESCE_TIMEOUT = 1000;
+		NvmfDataNodeConstants.STATISTICS = true;
+		connect();
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 8 * 1000);
+		List<Future<DataResult>> futures = new ArrayList<Future<DataResult>>();
+		for (int offset = 0; offset < data.capacity(); offset += 1000) {
+			ByteBuffer slice = data.duplicate();
+			slice.position(offset).limit(offset + 1000);
+			futures.add(endpoint.write(slice, null, block, offset));
+			// the flusher writes the range alone
+			Thread.sleep(10);
+		}
+		for (Future<DataResult> future : futures) {
+			future.get();
+		}
+		Assert.assertEquals(0, endpoint.getStatistics().getReadModifyWriteOps());
+		verify(data, block);
+	}
+
+	/* pending writes are found by the address of their block, not by the BlockInfo used */
+	@Test(timeout = 60000)
+	public void testBlockAddress() throws Exception {
+		NvmfDataNodeConstants.COALESCE_SIZE = 64 * 1024;
+		NvmfDataNodeConstants.COALESCE_TIMEOUT = 10000000;
+		connect();
+		BlockInfo block = newBlock();
+		ByteBuffer data = randomBuffer(0, 4 * 1000);
+		List<Future<DataResult>> futures = append(data, block, 1000);
+		verify(data, new Block(block.getAddr()));
+		for (Future<DataResult> future : futures) {
+			Assert.assertTrue(future.isDone());
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package com.ibm.crail.datanode.nvmf.tools;
+
+import com.ibm.crail.conf.CrailConstants;
+import com.ibm.crail.datanode.nvmf.client.NvmfCompletion;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeEndpoint;
+import com.ibm.crail.datanode.nvmf.client.NvmfDataNodeUtils;
+import com.ibm.crail.datanode.nvmf.client.NvmfDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfSimulatedDevice;
+import com.ibm.crail.datanode.nvmf.client.NvmfStagingPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/* the load generator against a simulated namespace, as in CI baselines */
+public class NvmfLoadGeneratorTest {
+	static final int BLOCKS = 16;
+	static final int SECTOR_SIZE = 512;
+
+	/* a command as seen by a namespace */
+	static class Command {
+		final int namespace;
+		final boolean write;
+		final long offset;
+		final int length;
+
+		Command(int namespace, boolean write, long offset, int length) {
+			this.namespace = namespace;
+			this.write = write;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/* records the commands submitted to a namespace */
+	static class RecordingDevice implements NvmfDevice {
+		private final NvmfDevice device;
+		private final int namespace;
+		private final ConcurrentLinkedQueue<Command> commands;
+
+		RecordingDevice(NvmfDevice device, int namespace, ConcurrentLinkedQueue<Command> commands) {
+			this.device = device;
+			this.namespace = namespace;
+			this.commands = commands;
+		}
+
+		public int getSectorSize() {
+			return device.getSectorSize();
+		}
+
+		public int getIOQueueSize() {
+			return device.getIOQueueSize();
+		}
+
+		public long getNamespaceSize() {
+			return device.getNamespaceSize();
+		}
+
+		public int getMaxTransferSize() {
+			return device.getMaxTransferSize();
+		}
+
+		public NvmfCompletion read(ByteBuffer buffer, long lba) throws IOException {
+			commands.add(new Command(namespace, false, lba * SECTOR_SIZE, buffer.remaining()));
+			return device.read(buffer, lba);
+		}
+
+		public NvmfCompletion write(ByteBuffer buffer, long lba) throws IOException {
+			commands.add(new Command(namespace, true, lba * SECTOR_SIZE, buffer.remaining()));
+			return device.write(buffer, lba);
+		}
+
+		public boolean supportsScatterGather() {
+			return false;
+		}
+
+		public NvmfCompletion read(ByteBuffer[] buffers, long lba) throws IOException {
+			throw new IOException("no scatter gather");
+		}
+
+		public NvmfCompletion write(ByteBuffer[] buffers, long lba) throws IOException {
+			throw new IOException("no scatter gather");
+		}
+
+		public int processCompletions(int max) throws IOException {
+			return device.processCompletions(max);
+		}
+
+		public void close() throws IOException {
+			device.close();
+		}
+	}
+
+	File namespace;
+	NvmfDataNodeEndpoint endpoint;
+	final ConcurrentLinkedQueue<Command> commands = new ConcurrentLinkedQueue<Command>();
+
+	@Before
+	public void init() throws Exception {
+		namespace = File.createTempFile("nvmf-load", ".ns");
+		final NvmfSimulatedDevice.Factory factory = new NvmfSimulatedDevice.Factory(namespace.getPath(),
+				BLOCKS * CrailConstants.BLOCK_SIZE, SECTOR_SIZE, 32, 10, 0);
+		endpoint = new NvmfDataNodeEndpoint(new NvmfDevice.Factory() {
+			public NvmfDevice connect(URI url) throws IOException {
+				return new RecordingDevice(factory.connect(url), NvmfDataNodeUtils.namespaceIndex(url), commands);
+			}
+		}, new InetSocketAddress("127.0.0.1", 4420), null, new NvmfStagingPool(), null);
+	}
+
+	@After
+	public void fini() throws Exception {
+		endpoint.close();
+		namespace.delete();
+		new File(namespace.getPath() + ".2").delete();
+	}
+
+	String run(boolean random, int readPercentage, int ioSize, int alignment, int threads, long offset, long size,
+			   int stripeWidth) throws Exception {
+		NvmfLoadGenerator generator = new NvmfLoadGenerator(endpoint, random, readPercentage, ioSize, alignment,
+				4, threads, TimeUnit.MILLISECONDS.toNanos(200), offset, size, stripeWidth);
+		long elapsed = generator.run();
+		Assert.assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(200));
+		return generator.report(elapsed, true);
+	}
+
+	static long ops(String json, String kind) {
+		Matcher matcher = Pattern.compile("\"" + kind + "\":\\{\"ops\":(\\d+),").matcher(json);
+		Assert.assertTrue(json, matcher.find());
+		return Long.parseLong(matcher.group(1));
+	}
+
+	/* every command starts aligned in [offset, offset + size) and stays within one block */
+	void assertRange(long offset, long size, int alignment, int ioSize) {
+		for (Command command : commands) {
+			Assert.assertEquals(0, command.offset % alignment);
+			Assert.assertEquals(ioSize, command.length);
+			Assert.assertTrue(command.offset >= offset && command.offset + ioSize <= offset + size);
+			Assert.assertEquals(command.offset / CrailConstants.BLOCK_SIZE,
+					(command.offset + ioSize - 1) / CrailConstants.BLOCK_SIZE);
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testSequentialWrite() throws Exception {
+		long blockSize = CrailConstants.BLOCK_SIZE;
+		String json = run(false, 0, 65536, 65536, 2, 4 * blockSize, 4 * blockSize, 1);
+		Assert.assertEquals(0, ops(json, "read"));
+		long writes = ops(json, "write");
+		Assert.assertTrue(writes > 0);
+		Assert.assertEquals(writes, commands.size());
+		assertRange(4 * blockSize, 4 * blockSize, 65536, 65536);
+
+		// each thread writes its own half in order, wrapping around at its end
+		long[] next = new long[]{4 * blockSize, 6 * blockSize};
+		for (Command command : commands) {
+			int thread = command.offset < 6 * blockSize ? 0 : 1;
+			Assert.assertEquals(next[thread], command.offset);
+			next[thread] += 65536;
+			if (next[thread] == (thread == 0 ? 6 : 8) * blockSize) {
+				next[thread] = (thread == 0 ? 4 : 6) * blockSize;
+			}
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testRandomRead() throws Exception {
+		String json = run(true, 100, 4096, 512, 1, 0, 8 * CrailConstants.BLOCK_SIZE, 1);
+		Assert.assertEquals(0, ops(json, "write"));
+		Assert.assertTrue(ops(json, "read") > 0);
+		assertRange(0, 8 * CrailConstants.BLOCK_SIZE, 512, 4096);
+		Assert.assertTrue(json.matches("(?s)\\{\"runtime\":[0-9.]+,\"bs\":4096,\"iodepth\":4,\"threads\":1," +
+				"\"iops\":[0-9.]+,\"bandwidth\":[0-9.]+,\"read\":\\{\"ops\":\\d+,\"iops\":[0-9.]+," +
+				"\"bandwidth\":[0-9.]+,\"latency_ns\":\\{\"mean\":[0-9.]+,\"p50\":\\d+,\"p90\":\\d+,\"p99\":\\d+," +
+				"\"p99.9\":\\d+,\"max\":\\d+\\}\\},\"write\":.*\\}\n"));
+	}
+
+	@Test(timeout = 60000)
+	public void testMixed() throws Exception {
+		String json = run(true, 70, 4096, 4096, 2, 0, 8 * CrailConstants.BLOCK_SIZE, 1);
+		long reads = ops(json, "read");
+		long writes = ops(json, "write");
+		Assert.assertTrue(reads > writes && writes > 0);
+		Assert.assertEquals(reads + writes, commands.size());
+
+		NvmfLoadGenerator generator = new NvmfLoadGenerator(endpoint, true, 70, 4096, 4096, 4, 1,
+				TimeUnit.MILLISECONDS.toNanos(50), 0, 8 * CrailConstants.BLOCK_SIZE, 1);
+		String text = generator.report(generator.run(), false);
+		Assert.assertTrue(text, text.contains("read latency (us): mean "));
+		Assert.assertTrue(text, text.contains("write latency (us): mean "));
+	}
+
+	/* blocks of a striped datanode alternate between its namespaces */
+	@Test(timeout = 60000)
+	public void testStriped() throws Exception {
+		run(true, 100, 4096, 4096, 1, 0, 8 * CrailConstants.BLOCK_SIZE, 2);
+		boolean[] used = new boolean[2];
+		for (Command command : commands) {
+			used[command.namespace] = true;
+			Assert.assertTrue(command.offset + 4096 <= 4 * CrailConstants.BLOCK_SIZE);
+		}
+		Assert.assertTrue(used[0] && used[1]);
+	}
+}